@@ -0,0 +1,119 @@
+package calculator;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// In-process calls on the calculator engines, no RMI transport involved.
+// stackSize is how many values sit below the ones each benchmark pushes and pops.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({"locked", "perclient", "lockfree"})
+    public String engine;
+
+    @Param({"0", "1000", "1000000"})
+    public int stackSize;
+
+    Calculator cal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cal = Engines.create(engine);
+        cal.pushValues(Engines.values(stackSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(cal, true);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int pushPop_1thread() throws Exception {
+        cal.pushValue(42);
+        return cal.pop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int pushPop_4threads() throws Exception {
+        cal.pushValue(42);
+        return cal.pop();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int pushPop_16threads() throws Exception {
+        cal.pushValue(42);
+        return cal.pop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isEmpty_1thread() throws Exception {
+        return cal.isEmpty();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean isEmpty_4threads() throws Exception {
+        return cal.isEmpty();
+    }
+
+    // pushOperation collapses the stack, so every invocation starts from a freshly loaded one
+    @State(Scope.Thread)
+    public static class Loaded {
+        Calculator cal;
+        int[] values;
+
+        @Setup(Level.Trial)
+        public void setUp(EngineBenchmark bench) throws Exception {
+            cal = Engines.create(bench.engine);
+            values = Engines.values(Math.max(1, bench.stackSize));
+        }
+
+        @Setup(Level.Invocation)
+        public void reload() throws Exception {
+            cal.drain();
+            cal.pushValues(values);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws NoSuchObjectException {
+            UnicastRemoteObject.unexportObject(cal, true);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void pushOperation_max(Loaded loaded) throws Exception {
+        loaded.cal.pushOperation("max");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void pushOperation_gcd(Loaded loaded) throws Exception {
+        loaded.cal.pushOperation("gcd");
+    }
+}
@@ -0,0 +1,26 @@
+package calculator;
+
+import java.rmi.RemoteException;
+
+// Builds the calculator under test from a JMH @Param name
+final class Engines {
+
+    private Engines() {
+    }
+
+    static Calculator create(String engine) throws RemoteException {
+        if (engine.equals("locked")) return new CalculatorImplementation();
+        if (engine.equals("perclient")) return new CalculatorPerClient();
+        if (engine.equals("lockfree")) return new CalculatorLockFree();
+        throw new IllegalArgumentException("unknown engine: " + engine);
+    }
+
+    // n small positive values, so gcd/lcm/min/max all do real work
+    static int[] values(int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = 6 * (1 + i % 97);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,83 @@
+package calculator;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Exact lcm over n values: the long fast path (IntMath.lcmExact, spilling to BigInteger only
+// once the result leaves a long) against folding everything in BigInteger, and the stack's own
+// reduce, which starts from its per-block checkpoints. range picks how far the result grows:
+// int - stays in an int, long - needs a long, wide - leaves a long after a few values.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LcmBenchmark {
+
+    @Param({"int", "long", "wide"})
+    public String range;
+
+    @Param({"64", "4096"})
+    public int n;
+
+    int[] values;
+    IntStack stack;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (range.equals("int")) values[i] = 1 + i % 16;           // lcm(1..16) = 720720
+            else if (range.equals("long")) values[i] = 1 + i % 40;     // lcm(1..40) ~ 5.3e15
+            else values[i] = 1000003 + 2 * (i % 500);                 // mostly coprime, about 20 bits each
+        }
+        stack = new IntStack();
+        stack.pushAll(values);
+    }
+
+    @Benchmark
+    public BigInteger longFastPath() {
+        long l = IntMath.INIT_LCM;
+        int i = 0;
+        for (; i < values.length; i++) {
+            long next = IntMath.lcmExact(l, values[i]);
+            if (next == IntMath.LCM_OVERFLOW) break;
+            l = next;
+        }
+        BigInteger big = BigInteger.valueOf(l);
+        for (; i < values.length; i++) {
+            big = IntMath.lcm(big, values[i]);
+        }
+        return big;
+    }
+
+    @Benchmark
+    public BigInteger naiveBigInteger() {
+        BigInteger big = BigInteger.ONE;
+        for (int v : values) {
+            BigInteger b = BigInteger.valueOf(v).abs();
+            big = big.divide(big.gcd(b)).multiply(b);
+        }
+        return big;
+    }
+
+    @Benchmark
+    public Object stackReduce() {
+        long l = stack.reduce(IntMath.OP_LCM);
+        return l == IntStack.BIG ? stack.reduceBig(IntMath.OP_LCM) : (Object) l;
+    }
+}
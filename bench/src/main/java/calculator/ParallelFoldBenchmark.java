@@ -0,0 +1,79 @@
+package calculator;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Crossover between the sequential and the fork-join stack folds, to pick
+// calculator.parallel.threshold: the default belongs around the smallest n where "parallel"
+// beats "sequential" on the target machine. Folds only split when the common pool has more than
+// one thread, so on a single CPU both modes measure the same code.
+//   pushValues - one batch of n values, whose checkpoint blocks are folded on push
+//   gcdFold    - gcd over n values below a wide bottom
+//   lcmFold    - BigInteger lcm over n values (the spill path of reduceBig)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelFoldBenchmark {
+
+    @Param({"sequential", "parallel"})
+    public String mode;
+
+    @Param({"16384", "65536", "262144", "1048576", "4194304"})
+    public int n;
+
+    int[] values;
+    int[] lcmValues;
+    IntStack stack;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = Engines.values(n);
+        lcmValues = new int[n];
+        for (int i = 0; i < n; i++) {
+            lcmValues[i] = 1 + i % 64;   // lcm(1..64) is about 90 bits, past a long but small
+        }
+        stack = new IntStack();
+        // 1: every fold of this benchmark splits
+        ParallelFold.setThreshold(mode.equals("parallel") ? 1 : 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ParallelFold.setThreshold(ParallelFold.DEFAULT_THRESHOLD);
+    }
+
+    @Benchmark
+    public int pushValues() {
+        stack.pushAll(values);
+        int g = stack.gcd();
+        stack.clear();
+        return g;
+    }
+
+    @Benchmark
+    public int gcdFold() {
+        return ParallelFold.fold(IntMath.OP_GCD, values, 0, n);
+    }
+
+    @Benchmark
+    public BigInteger lcmFold() {
+        return ParallelFold.lcm(BigInteger.ONE, lcmValues, 0, n);
+    }
+}
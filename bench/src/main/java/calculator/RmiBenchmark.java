@@ -0,0 +1,133 @@
+package calculator;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End-to-end calls through a loopback RMI registry in the same JVM: serialization,
+// the RMI connection handling and the engine all show up in these numbers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RmiBenchmark {
+    private static final int REGISTRY_PORT = 1199;
+    private static final String BIND_NAME = "BenchCalculator";
+    private static final int BULK = 1000;
+
+    @Param({"locked", "lockfree"})
+    public String engine;
+
+    Registry created;
+    Registry registry;
+    Calculator server;
+
+    // Bind and look up through a registry stub, not the local Registry object: a local
+    // lookup would hand back the server object itself and skip the transport entirely
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        created = LocateRegistry.createRegistry(REGISTRY_PORT);
+        registry = LocateRegistry.getRegistry("localhost", REGISTRY_PORT);
+        server = Engines.create(engine);
+        registry.rebind(BIND_NAME, server);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.unbind(BIND_NAME);
+        UnicastRemoteObject.unexportObject(server, true);
+        UnicastRemoteObject.unexportObject(created, true);
+    }
+
+    // every benchmark thread is its own client with its own stub
+    @State(Scope.Thread)
+    public static class Client {
+        Calculator stub;
+        AsyncCalculator async;
+        int[] bulk;
+
+        @Setup(Level.Trial)
+        public void setUp(RmiBenchmark bench) throws Exception {
+            stub = (Calculator) bench.registry.lookup(BIND_NAME);
+            async = new AsyncCalculator(stub);
+            bulk = Engines.values(BULK);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int pushPop_1client(Client client) throws Exception {
+        client.stub.pushValue(42);
+        return client.stub.pop();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int pushPop_8clients(Client client) throws Exception {
+        client.stub.pushValue(42);
+        return client.stub.pop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isEmpty_1client(Client client) throws Exception {
+        return client.stub.isEmpty();
+    }
+
+    // BULK values in and out with two calls instead of 2 * BULK
+    @Benchmark
+    @Threads(1)
+    public int[] pushValuesPopN_1client(Client client) throws Exception {
+        client.stub.pushValues(client.bulk);
+        return client.stub.popN(BULK);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int pushOperation_1client(Client client) throws Exception {
+        client.stub.pushValue(12);
+        client.stub.pushValue(18);
+        client.stub.pushOperation("gcd");
+        return client.stub.pop();
+    }
+
+    // 50 pushes and a pop: 51 round trips one after another, against one AsyncCalculator session
+    // that coalesces the pushes and only waits for the pop
+    @Benchmark
+    @Threads(1)
+    public int push50Pop_sync(Client client) throws Exception {
+        for (int i = 0; i < 50; i++) client.stub.pushValue(i);
+        int top = client.stub.pop();
+        client.stub.popN(49);
+        return top;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int push50Pop_async(Client client) throws Exception {
+        for (int i = 0; i < 50; i++) client.async.pushValue(i);
+        CompletableFuture<Integer> top = client.async.pop();
+        client.async.popN(49);
+        return top.get();
+    }
+}
@@ -0,0 +1,72 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Median of n values: introselect (Selection) against sorting a copy, both starting from a copy
+// into a reused buffer as the stack does, plus the stack's own median reduce. order picks the
+// input: random, few distinct values, or already sorted (a naive quickselect pivot's worst case).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionBenchmark {
+
+    @Param({"random", "fewDistinct", "sorted"})
+    public String order;
+
+    @Param({"1024", "65536", "1048576"})
+    public int n;
+
+    int[] values;
+    int[] scratch;
+    IntStack stack;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random rnd = new Random(42);
+        values = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (order.equals("random")) values[i] = rnd.nextInt();
+            else if (order.equals("fewDistinct")) values[i] = rnd.nextInt(8);
+            else values[i] = i;
+        }
+        scratch = new int[n];
+        stack = new IntStack();
+        stack.pushAll(values);
+    }
+
+    @Benchmark
+    public int quickselect() {
+        System.arraycopy(values, 0, scratch, 0, n);
+        return Selection.select(scratch, n, (n - 1) >>> 1);
+    }
+
+    @Benchmark
+    public int sort() {
+        System.arraycopy(values, 0, scratch, 0, n);
+        Arrays.sort(scratch);
+        return scratch[(n - 1) >>> 1];
+    }
+
+    @Benchmark
+    public long stackMedian() {
+        return stack.reduce(IntMath.OP_MEDIAN);
+    }
+}
@@ -0,0 +1,89 @@
+package calculator;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loopback latency of one small call for a co-located client:
+//   rmiDefault - RMI export with the default socket factories (before)
+//   rmiTuned   - RMI export through TunedSocketFactory, TCP_NODELAY + loopback only (after)
+//   nioTcp     - NIO front end over loopback TCP
+//   nioUnix    - NIO front end over a Unix domain socket
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocketFactoryBenchmark {
+    private static final int REGISTRY_PORT = 1197;
+    private static final String BIND_NAME = "BenchCalculator";
+
+    @Param({"rmiDefault", "rmiTuned", "nioTcp", "nioUnix"})
+    public String sockets;
+
+    Registry created;
+    Calculator server;
+    NioCalculatorServer nio;
+    Path socketFile;
+    Calculator client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (sockets.startsWith("rmi")) {
+            TunedSocketFactory tuned = sockets.equals("rmiTuned") ? new TunedSocketFactory(true, 0, 0, true) : null;
+            System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+            server = new CalculatorImplementation(0, tuned, tuned);
+            created = LocateRegistry.createRegistry(REGISTRY_PORT);
+            LocateRegistry.getRegistry("127.0.0.1", REGISTRY_PORT).rebind(BIND_NAME, server);
+            client = CalculatorConnector.connect("rmi://127.0.0.1:" + REGISTRY_PORT + "/" + BIND_NAME);
+        } else if (sockets.equals("nioTcp")) {
+            server = new CalculatorImplementation();
+            nio = new NioCalculatorServer(server, new InetSocketAddress("127.0.0.1", 0));
+            nio.start();
+            client = CalculatorConnector.connect("nio://127.0.0.1:" + ((InetSocketAddress) nio.getLocalAddress()).getPort() + "/shared");
+        } else {
+            server = new CalculatorImplementation();
+            socketFile = Files.createTempDirectory("calc").resolve("calculator.sock");
+            nio = new NioCalculatorServer(server, java.net.UnixDomainSocketAddress.of(socketFile));
+            nio.start();
+            client = CalculatorConnector.connect("unix:" + socketFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (nio != null) nio.stop();
+        if (created != null) UnicastRemoteObject.unexportObject(created, true);
+        UnicastRemoteObject.unexportObject(server, true);
+    }
+
+    @Benchmark
+    public int pushPop() throws Exception {
+        client.pushValue(42);
+        return client.pop();
+    }
+
+    @Benchmark
+    public boolean isEmpty() throws Exception {
+        return client.isEmpty();
+    }
+}
@@ -0,0 +1,103 @@
+package calculator;
+
+import java.net.InetSocketAddress;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// RMI vs the binary NIO front end on loopback, same shared CalculatorImplementation behind both.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int REGISTRY_PORT = 1198;
+    private static final String BIND_NAME = "BenchCalculator";
+    private static final int BULK = 1000;
+
+    @Param({"rmi", "nio"})
+    public String transport;
+
+    Registry created;
+    Calculator server;
+    NioCalculatorServer nio;
+    String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new CalculatorImplementation();
+        if (transport.equals("rmi")) {
+            created = LocateRegistry.createRegistry(REGISTRY_PORT);
+            LocateRegistry.getRegistry("localhost", REGISTRY_PORT).rebind(BIND_NAME, server);
+            url = "rmi://localhost:" + REGISTRY_PORT + "/" + BIND_NAME;
+        } else {
+            nio = new NioCalculatorServer(server, new InetSocketAddress("localhost", 0));
+            nio.start();
+            url = "nio://localhost:" + ((InetSocketAddress) nio.getLocalAddress()).getPort() + "/shared";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (nio != null) nio.stop();
+        if (created != null) UnicastRemoteObject.unexportObject(created, true);
+        UnicastRemoteObject.unexportObject(server, true);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Calculator cal;
+        int[] bulk;
+
+        @Setup(Level.Trial)
+        public void setUp(TransportBenchmark bench) throws Exception {
+            cal = CalculatorConnector.connect(bench.url);
+            bulk = Engines.values(BULK);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int pushPop_1client(Client client) throws Exception {
+        client.cal.pushValue(42);
+        return client.cal.pop();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int pushPop_8clients(Client client) throws Exception {
+        client.cal.pushValue(42);
+        return client.cal.pop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isEmpty_1client(Client client) throws Exception {
+        return client.cal.isEmpty();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int[] pushValuesPopN_1client(Client client) throws Exception {
+        client.cal.pushValues(client.bulk);
+        return client.cal.popN(BULK);
+    }
+}
@@ -0,0 +1,92 @@
+package calculator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of durability on the shared stack: push/pop through CalculatorImplementation with no log
+// and with a WriteAheadLog under each fsync policy. With several threads BATCHED shares one
+// msync between everyone waiting (group commit), PER_OP pays one per call under the lock.
+// The log directory is -Dwal.bench.dir (default: a temp dir), so it can be pointed at a real disk.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalBenchmark {
+
+    @Param({"none", "perop", "batched", "async"})
+    public String fsync;
+
+    Path dir;
+    WriteAheadLog wal;
+    CalculatorImplementation cal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (fsync.equals("none")) {
+            cal = new CalculatorImplementation();
+            return;
+        }
+        String base = System.getProperty("wal.bench.dir");
+        dir = base == null ? Files.createTempDirectory("wal-bench") : Files.createTempDirectory(Path.of(base), "wal-bench");
+        wal = new WriteAheadLog(dir, WriteAheadLog.policy(fsync), WriteAheadLog.DEFAULT_SEGMENT_BYTES,
+                fsync.equals("async") ? 100 : 0, 60000);
+        cal = new CalculatorImplementation(0, null, null, wal.recovered(), wal.recoveredWide(), wal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        UnicastRemoteObject.unexportObject(cal, true);
+        if (wal != null) {
+            wal.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int pushPop_1thread() throws Exception {
+        cal.pushValue(42);
+        return cal.pop();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int pushPop_8threads() throws Exception {
+        cal.pushValue(42);
+        return cal.pop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void pushValues_64_1thread() throws Exception {
+        cal.pushValues(BATCH);
+        cal.popN(BATCH.length);
+    }
+
+    private static final int[] BATCH = Engines.values(64);
+}
@@ -0,0 +1,374 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// Asynchronous client over any Calculator (RMI stub, NIO client, ...): every method returns at
+// once with a CompletableFuture. One AsyncCalculator is one session: its calls reach the server
+// in the order they were made, drained one at a time by a task on a bounded worker pool that
+// all sessions share, so many sessions overlap their round trips without a thread each.
+// Within a session, pushValue/pushValues calls queued back to back are sent as one pushValues,
+// so pushing 50 values and popping costs two round trips instead of 51. A popOrWait that has to
+// wait does so on a thread of its own, not on a worker, and the session goes on once it returns.
+public class AsyncCalculator {
+    public static final int DEFAULT_WORKERS = 16;
+
+    // coalesced pushes per round trip, and calls a session runs before it lets others have the worker
+    private static final int MAX_COALESCED = 1 << 16;
+    private static final int CALLS_PER_TURN = 64;
+
+    private static final ExecutorService WORKERS = newWorkerPool(DEFAULT_WORKERS);
+
+    // threads blocked in popOrWait, one per waiting session
+    private static final ExecutorService WAITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "async-calculator-wait-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Calculator cal;
+    private final Executor executor;
+
+    // pending calls of this session; scheduled while a drain task is queued or running
+    private final ArrayDeque<Call<?>> queue = new ArrayDeque<Call<?>>();
+    private boolean scheduled;
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            runQueued();
+        }
+    };
+
+    // a session on the shared pool of DEFAULT_WORKERS threads
+    public AsyncCalculator(Calculator cal) {
+        this(cal, WORKERS);
+    }
+
+    // a session on the given executor, which bounds how many sessions talk to the server at once
+    public AsyncCalculator(Calculator cal, Executor executor) {
+        this.cal = cal;
+        this.executor = executor;
+    }
+
+    // Fixed pool of daemon threads for AsyncCalculator sessions
+    public static ExecutorService newWorkerPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "async-calculator-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public Calculator calculator() {
+        return cal;
+    }
+
+    public CompletableFuture<Void> pushValue(int val) {
+        return submit(new Push(new int[]{val}));
+    }
+
+    public CompletableFuture<Void> pushValues(int[] vals) {
+        if (vals == null) {
+            CompletableFuture<Void> f = new CompletableFuture<Void>();
+            f.completeExceptionally(new RemoteException("pushValues called with null"));
+            return f;
+        }
+        return submit(new Push(vals.clone()));
+    }
+
+    public CompletableFuture<Void> pushOperation(final String operator) {
+        return submit(new Call<Void>() {
+            Void run() throws RemoteException {
+                cal.pushOperation(operator);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> pushOperation(final int opcode) {
+        return submit(new Call<Void>() {
+            Void run() throws RemoteException {
+                cal.pushOperation(opcode);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> pushOperation(final int opcode, final int arg) {
+        return submit(new Call<Void>() {
+            Void run() throws RemoteException {
+                cal.pushOperation(opcode, arg);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> pop() {
+        return submit(new Call<Integer>() {
+            Integer run() throws RemoteException {
+                return cal.pop();
+            }
+        });
+    }
+
+    // holds up the calls queued after it in this session until it returns, but not a worker
+    public CompletableFuture<Integer> popOrWait(long timeoutMs) {
+        return submit(new Wait(timeoutMs));
+    }
+
+    public CompletableFuture<int[]> popN(final int n) {
+        return submit(new Call<int[]>() {
+            int[] run() throws RemoteException {
+                return cal.popN(n);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> drain() {
+        return submit(new Call<int[]>() {
+            int[] run() throws RemoteException {
+                return cal.drain();
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> isEmpty() {
+        return submit(new Call<Boolean>() {
+            Boolean run() throws RemoteException {
+                return cal.isEmpty();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> tryPop() {
+        return submit(new Call<Integer>() {
+            Integer run() throws RemoteException {
+                return cal.tryPop();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> peek() {
+        return submit(new Call<Integer>() {
+            Integer run() throws RemoteException {
+                return cal.peek();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> size() {
+        return submit(new Call<Integer>() {
+            Integer run() throws RemoteException {
+                return cal.size();
+            }
+        });
+    }
+
+    public CompletableFuture<BigInteger> popWide() {
+        return submit(new Call<BigInteger>() {
+            BigInteger run() throws RemoteException {
+                return cal.popWide();
+            }
+        });
+    }
+
+    // Sent in order like the rest, through delayPopAsync, so no worker sleeps for millis;
+    // calls made after it do not wait for the pop itself, as with delayPopAsync
+    public CompletableFuture<Integer> delayPop(final int millis) {
+        final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        submit(new Call<Void>() {
+            Void run() throws RemoteException {
+                DelayPopFuture.request(cal, millis).whenComplete(new BiConsumer<Integer, Throwable>() {
+                    public void accept(Integer val, Throwable error) {
+                        if (error != null) result.completeExceptionally(error);
+                        else result.complete(val);
+                    }
+                });
+                return null;
+            }
+        }).exceptionally(new Function<Throwable, Void>() {
+            public Void apply(Throwable error) {
+                result.completeExceptionally(error);
+                return null;
+            }
+        });
+        return result;
+    }
+
+    // Queue the call and make sure a drain task is on its way
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        boolean start;
+        synchronized (queue) {
+            queue.add(call);
+            start = !scheduled;
+            scheduled = true;
+        }
+        if (start) {
+            schedule();
+        }
+        return call.future;
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            synchronized (queue) {
+                for (Call<?> c : queue) {
+                    c.future.completeExceptionally(e);
+                }
+                queue.clear();
+                scheduled = false;
+            }
+        }
+    }
+
+    // Run this session's calls in order; after CALLS_PER_TURN, requeue so other sessions get the worker
+    private void runQueued() {
+        for (int turn = 0; turn < CALLS_PER_TURN; turn++) {
+            Call<?> call;
+            synchronized (queue) {
+                call = queue.poll();
+                if (call == null) {
+                    scheduled = false;
+                    return;
+                }
+                if (call instanceof Push) {
+                    ((Push) call).coalesce(queue);
+                }
+            }
+            if (call instanceof Wait) {
+                // the waiter thread schedules the session again once the wait is over
+                if (((Wait) call).startOrPark()) return;
+            } else {
+                call.complete();
+            }
+        }
+        schedule();
+    }
+
+    // One queued request and the future it completes
+    private abstract static class Call<T> {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        abstract T run() throws RemoteException;
+
+        void complete() {
+            try {
+                future.complete(run());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    // popOrWait: a tryPop on the worker, and only if that finds nothing the wait on WAITERS
+    private final class Wait extends Call<Integer> {
+        private final long timeoutMs;
+
+        Wait(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+        }
+
+        Integer run() throws RemoteException {
+            return cal.popOrWait(timeoutMs);
+        }
+
+        // true if the session is parked until the wait on WAITERS is over
+        boolean startOrPark() {
+            Integer v;
+            try {
+                v = cal.tryPop();
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+                return false;
+            }
+            if (v != null || timeoutMs <= 0) {
+                future.complete(v);
+                return false;
+            }
+            WAITERS.execute(new Runnable() {
+                public void run() {
+                    complete();
+                    schedule();
+                }
+            });
+            return true;
+        }
+    }
+
+    // pushValue/pushValues; takes over the pushes queued right behind it
+    private final class Push extends Call<Void> {
+        private final int[] vals;
+        private ArrayDeque<Push> merged;
+        private int total;
+
+        Push(int[] vals) {
+            this.vals = vals;
+            this.total = vals.length;
+        }
+
+        // called under the queue lock
+        void coalesce(ArrayDeque<Call<?>> queue) {
+            while (queue.peek() instanceof Push && total + ((Push) queue.peek()).vals.length <= MAX_COALESCED) {
+                Push next = (Push) queue.poll();
+                if (merged == null) merged = new ArrayDeque<Push>();
+                merged.add(next);
+                total += next.vals.length;
+            }
+        }
+
+        Void run() throws RemoteException {
+            if (merged == null) {
+                cal.pushValues(vals);
+                return null;
+            }
+            int[] all = new int[total];
+            System.arraycopy(vals, 0, all, 0, vals.length);
+            int at = vals.length;
+            for (Push p : merged) {
+                System.arraycopy(p.vals, 0, all, at, p.vals.length);
+                at += p.vals.length;
+            }
+            cal.pushValues(all);
+            return null;
+        }
+
+        // pushValues is all or nothing, so the merged calls share the outcome
+        void complete() {
+            Throwable error = null;
+            try {
+                run();
+            } catch (Throwable t) {
+                error = t;
+            }
+            finish(error);
+            if (merged != null) {
+                for (Push p : merged) p.finish(error);
+            }
+        }
+
+        private void finish(Throwable error) {
+            if (error == null) future.complete(null);
+            else future.completeExceptionally(error);
+        }
+    }
+}
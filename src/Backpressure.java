@@ -0,0 +1,185 @@
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Overload limits shared by the Calculator implementations, set once at startup (see
+// CalculatorServer). Each limit is checked before the call waits for anything, and a call over
+// one fails at once with an OverloadedException, counted per limit in CalculatorMetrics:
+//   depth      a push that would take a stack past maxDepth values (0 = no limit)
+//   rate       a client over its token bucket of rate calls/s with bursts of burst (0 = off).
+//              A client is the NIO connection, the per-client stack, the off-heap session or the
+//              shared view (CalculatorPrivate.connectShared) it calls through; only calls on an
+//              anonymous shared stub fall back to one bucket per caller host
+//   lockQueue  a call to a locked shared stack while maxLockQueue callers already wait for
+//              that stack's lock (0 = no limit)
+public final class Backpressure {
+    // no limit: a stack grows until the heap runs out
+    public static final int DEFAULT_MAX_DEPTH = 0;
+
+    // how often CLIENTS drops the buckets that have refilled
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile int maxDepth = DEFAULT_MAX_DEPTH;
+    private static volatile int rate;
+    private static volatile int burst;
+    private static volatile int maxLockQueue;
+
+    // buckets of RMI caller hosts and off-heap sessions (by id) while rate limiting is on. A bucket that has refilled is the same as a new one, so those are dropped
+    // once per SWEEP_NANOS and the map only holds clients that called in the last burst
+    private static final ConcurrentHashMap<Object, Bucket> CLIENTS = new ConcurrentHashMap<Object, Bucket>();
+    private static final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // bucket of the NIO connection whose request this thread is running, see NioCalculatorServer
+    private static final ThreadLocal<Bucket> CONNECTION = new ThreadLocal<Bucket>();
+
+    private Backpressure() {
+    }
+
+    // burst 0 means one second's worth of calls
+    public static void configure(int maxDepth, int rate, int burst, int maxLockQueue) {
+        if (maxDepth < 0 || rate < 0 || burst < 0 || maxLockQueue < 0) {
+            throw new IllegalArgumentException("backpressure limits must be >= 0, got maxDepth=" + maxDepth
+                    + " rate=" + rate + " burst=" + burst + " maxLockQueue=" + maxLockQueue);
+        }
+        Backpressure.maxDepth = maxDepth;
+        Backpressure.rate = rate;
+        Backpressure.burst = (burst == 0) ? Math.max(1, rate) : burst;
+        Backpressure.maxLockQueue = maxLockQueue;
+        CLIENTS.clear();
+    }
+
+    public static int maxDepth() {
+        return maxDepth;
+    }
+
+    // a bucket for one client, or null while rate limiting is off
+    public static Bucket newBucket() {
+        return rate == 0 ? null : new Bucket(rate, burst);
+    }
+
+    // Charge the call to the NIO connection running on this thread, else to own (a per-client
+    // stack's or shared view's bucket), else to the RMI caller's host; in-process calls are not limited
+    public static void admit(CalculatorMetrics metrics, Bucket own) throws OverloadedException {
+        if (rate == 0) {
+            return;
+        }
+        Bucket b = CONNECTION.get();
+        if (b == null) b = own;
+        if (b == null) {
+            String host = clientHost();
+            if (host != null) b = clientBucket(host);
+        }
+        take(metrics, b);
+    }
+
+    // admit() for a call on off-heap session id, which has a bucket of its own
+    public static void admit(CalculatorMetrics metrics, long session) throws OverloadedException {
+        if (rate == 0) {
+            return;
+        }
+        Bucket b = CONNECTION.get();
+        if (b == null && clientHost() != null) b = clientBucket(Long.valueOf(session));
+        take(metrics, b);
+    }
+
+    // Refuse adding values to a stack of size values if that passes maxDepth
+    public static void checkDepth(CalculatorMetrics metrics, int size, int adding) throws OverloadedException {
+        int max = maxDepth;
+        if (max > 0 && (long) size + adding > max) {
+            metrics.rejected(CalculatorMetrics.REJECTED_DEPTH);
+            throw new OverloadedException("stack is full: " + size + " values, limit " + max);
+        }
+    }
+
+    // Refuse to join the queue of a stack's lock once maxLockQueue callers are in it
+    public static void checkLockQueue(CalculatorMetrics metrics, int queueLength) throws OverloadedException {
+        int max = maxLockQueue;
+        if (max > 0 && queueLength >= max) {
+            metrics.rejected(CalculatorMetrics.REJECTED_LOCK_QUEUE);
+            throw new OverloadedException("server busy: " + max + " calls already waiting for the stack");
+        }
+    }
+
+    // Run the engine calls of one NIO request or shared view call against its bucket (may be null)
+    static void enter(Bucket connection) {
+        if (connection != null) CONNECTION.set(connection);
+    }
+
+    static void exit(Bucket connection) {
+        if (connection != null) CONNECTION.remove();
+    }
+
+    // number of client buckets kept now
+    static int clientBuckets() {
+        return CLIENTS.size();
+    }
+
+    private static void take(CalculatorMetrics metrics, Bucket b) throws OverloadedException {
+        if (b != null && !b.tryTake()) {
+            metrics.rejected(CalculatorMetrics.REJECTED_RATE);
+            throw new OverloadedException("rate limit: over " + rate + " calls/s (burst " + burst + ")");
+        }
+    }
+
+    // null outside an RMI call
+    private static String clientHost() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return null;
+        }
+    }
+
+    private static Bucket clientBucket(Object client) {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last > SWEEP_NANOS && lastSweep.compareAndSet(last, now)) {
+            for (Map.Entry<Object, Bucket> e : CLIENTS.entrySet()) {
+                if (e.getValue().full(now)) CLIENTS.remove(e.getKey(), e.getValue());
+            }
+        }
+        Bucket b = CLIENTS.get(client);
+        if (b == null) {
+            Bucket fresh = new Bucket(rate, burst);
+            b = CLIENTS.putIfAbsent(client, fresh);
+            if (b == null) b = fresh;
+        }
+        return b;
+    }
+
+    // Token bucket kept as one timestamp (GCRA): tat is when the bucket would be full again.
+    // A call is allowed while tat is at most burst-1 intervals ahead of now, and moves it one
+    // interval on; so up to burst calls go through back to back, then one per interval.
+    public static final class Bucket {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        Bucket(int rate, int burst) {
+            intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+            toleranceNanos = intervalNanos * (burst - 1);
+        }
+
+        // refilled by now, so no different from a new bucket
+        boolean full(long now) {
+            return tat.get() - now <= 0;
+        }
+
+        boolean tryTake() {
+            long now = System.nanoTime();
+            while (true) {
+                long t = tat.get();
+                long from = (t - now > 0) ? t : now;
+                if (from - now > toleranceNanos) {
+                    return false;
+                }
+                if (tat.compareAndSet(t, from + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Wire format of the NIO transport. Every frame is
+//     int length | byte code | payload
+// where length counts the code byte plus the payload. Requests carry an opcode, responses
+// a status. ints are big-endian, int[] is a count followed by the values, strings are a
+// short byte count followed by UTF-8, a BigInteger is an int byte count followed by its
+// two's-complement bytes.
+//
+// The first request on a connection must be ATTACH_SHARED or ATTACH_PRIVATE; after that the
+// connection speaks to the shared stack or to its own private stack until it is closed.
+public final class BinaryProtocol {
+    public static final int MAX_FRAME = 1 << 26;    // 64 MB, ~16M ints in one pushValues
+
+    // requests
+    public static final byte ATTACH_SHARED = 1;
+    public static final byte ATTACH_PRIVATE = 2;
+    public static final byte PUSH_VALUE = 10;      // int
+    public static final byte PUSH_VALUES = 11;     // int[]
+    public static final byte PUSH_OPERATION = 12;  // string
+    public static final byte POP = 13;
+    public static final byte POP_N = 14;           // int
+    public static final byte DRAIN = 15;
+    public static final byte IS_EMPTY = 16;
+    public static final byte DELAY_POP = 17;       // int millis
+    public static final byte POP_WIDE = 18;        // answered with a BigInteger
+    public static final byte PUSH_OPCODE = 19;     // int opcode (Operators), int arg
+    public static final byte POP_OR_WAIT = 20;     // long timeoutMs; answered with byte present, int value
+    public static final byte TRY_POP = 21;         // answered with byte present, int value
+    public static final byte PEEK = 22;            // answered with byte present, int value
+    public static final byte SIZE = 23;            // answered with an int
+
+    // responses
+    public static final byte OK = 0;               // payload depends on the request
+    public static final byte ERROR = 1;            // string message
+    public static final byte OVERLOADED = 2;       // string message; refused by a Backpressure limit, retry later
+
+    private BinaryProtocol() {
+    }
+
+    public static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(bytes.length, Short.MAX_VALUE);
+        buf.putShort((short) n);
+        buf.put(bytes, 0, n);
+    }
+
+    public static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static int stringSize(String s) {
+        return 2 + Math.min(s.getBytes(StandardCharsets.UTF_8).length, Short.MAX_VALUE);
+    }
+
+    public static void putInts(ByteBuffer buf, int[] vals) {
+        buf.putInt(vals.length);
+        for (int v : vals) buf.putInt(v);
+    }
+
+    public static int[] getInts(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining() / 4) {
+            throw new IllegalArgumentException("bad int[] length " + n);
+        }
+        int[] vals = new int[n];
+        for (int i = 0; i < n; i++) vals[i] = buf.getInt();
+        return vals;
+    }
+
+    public static void putBig(ByteBuffer buf, BigInteger v) {
+        byte[] bytes = v.toByteArray();
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    public static BigInteger getBig(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 1 || n > buf.remaining()) {
+            throw new IllegalArgumentException("bad BigInteger length " + n);
+        }
+        byte[] bytes = new byte[n];
+        buf.get(bytes);
+        return new BigInteger(bytes);
+    }
+
+    public static int bigSize(BigInteger v) {
+        return 4 + v.bitLength() / 8 + 1;
+    }
+}
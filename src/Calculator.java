@@ -1,3 +1,4 @@
+import java.math.BigInteger;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
@@ -6,15 +7,48 @@ public interface Calculator extends Remote {
     // push a value to the top of the shared stack
     void pushValue(int val) throws RemoteException;
 
+    // push all values in order in one call, the last value ends up on top
+    void pushValues(int[] vals) throws RemoteException;
+
     // apply the operator, and push the result
     void pushOperation(String operator) throws RemoteException;
 
     //pop and return the top value
     int pop() throws RemoteException;
 
+    //pop the top n values in one call, result[0] is the old top
+    int[] popN(int n) throws RemoteException;
+
+    //pop everything in one call, result[0] is the old top (empty array if the stack is empty)
+    int[] drain() throws RemoteException;
+
     //check whether the stack is empty or not
     boolean isEmpty() throws RemoteException;
 
     //waiting for the given millis
     int delayPop(int millis) throws RemoteException;
+
+    //return at once; after the given millis the server pops and reports the value to the callback
+    void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException;
+
+    //pop the top value exactly, also when it does not fit in an int (pop() refuses those)
+    BigInteger popWide() throws RemoteException;
+
+    //same as pushOperation(String) for the operator with this opcode (Operators.code), without parsing a name
+    void pushOperation(int opcode) throws RemoteException;
+
+    //the same for an operator that takes an argument: percentile (thousandths of a percent) or kth (k)
+    void pushOperation(int opcode, int arg) throws RemoteException;
+
+    //pop the top value, waiting up to timeoutMs for a push if the stack is empty; null if none came in time
+    Integer popOrWait(long timeoutMs) throws RemoteException;
+
+    //pop the top value, or return null at once if the stack is empty (no exception)
+    Integer tryPop() throws RemoteException;
+
+    //the top value without popping it, null if the stack is empty
+    Integer peek() throws RemoteException;
+
+    //number of values on the stack
+    int size() throws RemoteException;
 }
@@ -1,17 +1,14 @@
-import java.rmi.Naming;
-
 // Demo client for the shared-stack Calculator RMI service.
 
 public class CalculatorClient {
     public static void main(String[] args){
         try{
-            // Obtain a remote reference (stub) to the shared Calculator.
-            Calculator cal = (Calculator) Naming.lookup(CalculatorServer.URL);
+            // Obtain a remote reference (stub) to the shared Calculator; StubCache looks it up once
+            // and resolves it again by itself if the server restarts.
+            Calculator cal = StubCache.get(CalculatorServer.URL, Calculator.class);
 
             // Make sure the stack starts empty so previous runs don't affect results.
-            while (!cal.isEmpty()){
-                cal.pop();
-            }
+            cal.drain();
 
             cal.pushValue(0);
             cal.pushValue(11);
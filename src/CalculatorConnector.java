@@ -0,0 +1,45 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.net.URI;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Picks the transport from the URL, so application code only ever sees Calculator:
+//   rmi://host:port/Calculator          shared stack over RMI (cached stub, see StubCache)
+//   rmi://host:port/CalculatorPrivate   a new private stack over RMI
+//   rmi://host:port/CalculatorSessions  a new private stack kept off-heap, all behind one stub
+//   nio://host:port/shared              shared stack over the binary NIO protocol
+//   nio://host:port/private             a private stack over the binary NIO protocol
+//   unix:/path/to/socket                shared stack over the NIO protocol on a Unix domain socket
+//   unix:/path/to/socket?private        a private stack, same socket
+public final class CalculatorConnector {
+
+    private CalculatorConnector() {
+    }
+
+    public static Calculator connect(String url) throws Exception {
+        if (url.startsWith("rmi:")) {
+            // stubs come from StubCache; a private stack is not re-resolved, a new one would be empty
+            Remote remote = StubCache.lookup(url);
+            if (remote instanceof CalculatorPrivate) return StubCache.get(url, CalculatorPrivate.class).connect();
+            if (remote instanceof CalculatorSessions) return StubCache.get(url, CalculatorSessions.class).open();
+            return StubCache.get(url, Calculator.class);
+        }
+        if (url.startsWith("nio:")) {
+            URI uri = new URI(url);
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort());
+            String path = (uri.getPath() == null) ? "" : uri.getPath();
+            if (path.equals("/private")) return NioCalculatorClient.connectPrivate(address);
+            if (path.equals("/shared") || path.isEmpty() || path.equals("/")) return NioCalculatorClient.connectShared(address);
+            throw new RemoteException("unknown NIO stack " + path + " (use /shared or /private)");
+        }
+        if (url.startsWith("unix:")) {
+            URI uri = new URI(url);
+            SocketAddress address = UnixDomainSocketAddress.of(uri.getPath());
+            if ("private".equals(uri.getQuery())) return NioCalculatorClient.connectPrivate(address);
+            return NioCalculatorClient.connectShared(address);
+        }
+        throw new IllegalArgumentException("unsupported calculator URL: " + url);
+    }
+}
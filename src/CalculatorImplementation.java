@@ -1,154 +1,719 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 // the server side of the RMI remote object
 public class CalculatorImplementation extends UnicastRemoteObject implements Calculator {
-    private static final int INIT_GCD = 0;  // initial value for gcd
-    private static final int INIT_LCM = 1;  // initial value for lcm
-
     // Shared stack: All clients operate on the same shared instance
-    private final Stack<Integer> stack = new Stack<Integer>();
+    private final IntStack stack = new IntStack();
 
     // Fair lock (true indicates fairness): Whoever waits longer is more likely to obtain the lock first
     private final ReentrantLock lock = new ReentrantLock(true);
 
+    // popOrWait callers wait here for a push; waiters is guarded by lock
+    private final Condition nonEmpty = lock.newCondition();
+    private int waiters;
+
+    // Every change to the stack is made inside a write stamp, taken under lock so it never waits.
+    // peek/size/isEmpty read optimistically against it without the lock, so monitoring clients
+    // neither queue behind writers nor hold them up; only a read that a write overlapped is
+    // redone under the lock.
+    private final StampedLock view = new StampedLock();
+
+    // CalculatorMetrics.SHARED, or the stack's own for a named stack
+    private final CalculatorMetrics metrics;
+
+    // both written under lock; used by CalculatorStacksImpl to drop idle named stacks
+    // (retired is volatile for the optimistic reads)
+    private long lastUsedNanos = System.nanoTime();
+    private volatile boolean retired;
+
+    // guarded by lock; a standby replica only takes changes from its primary (ReplicationReplica)
+    private boolean standby;
+
+    // optional write-ahead journal (WriteAheadLog); every mutation is journaled under the lock before it is applied
+    private final StackJournal journal;
+
     //pop the remote object
     public CalculatorImplementation() throws RemoteException{
         super();
+        journal = null;
+        metrics = CalculatorMetrics.SHARED;
+    }
+
+    // export on the given port through custom socket factories (e.g. TunedSocketFactory)
+    public CalculatorImplementation(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException{
+        this(port, csf, ssf, CalculatorMetrics.SHARED);
+    }
+
+    // as above, recording into metrics of its own (a named stack)
+    public CalculatorImplementation(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf,
+                                    CalculatorMetrics metrics) throws RemoteException{
+        super(port, csf, ssf);
+        journal = null;
+        this.metrics = metrics;
+    }
+
+    // durable variant: start from the recovered values (bottom first, recoveredWide replacing the
+    // bottom one if it is wide) and journal every mutation
+    public CalculatorImplementation(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf,
+                                    int[] recovered, BigInteger recoveredWide, StackJournal journal) throws RemoteException{
+        super(port, csf, ssf);
+        this.journal = journal;
+        metrics = CalculatorMetrics.SHARED;
+        if (recovered != null) {
+            stack.restore(recovered, recoveredWide);
+        }
     }
 
     // Push an integer onto the top of the stack
     public void pushValue(int val) throws RemoteException {
-        lock.lock();
+        long start = System.nanoTime();
+        long seq = 0;
+        checkRoom(1);
+        acquireWritable();
         try {
-            stack.push(val);
+            Backpressure.checkDepth(metrics, stack.size(), 1);
+            if (journal != null) {
+                seq = journal.pushed(val);
+            }
+            long w = view.writeLock();
+            try {
+                stack.push(val);
+            } finally {
+                view.unlockWrite(w);
+            }
+            if (waiters > 0) {
+                nonEmpty.signal();
+            }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
+        } finally {
+            lock.unlock();
+            metrics.record(CalculatorMetrics.PUSH_VALUE, start);
+        }
+        awaitDurable(seq);
+    }
+
+    // Push a batch of integers under a single lock acquisition
+    public void pushValues(int[] vals) throws RemoteException {
+        if (vals == null) {
+            throw new RemoteException("pushValues called with null");
+        }
+        long start = System.nanoTime();
+        long seq = 0;
+        checkRoom(vals.length);
+        acquireWritable();
+        try {
+            Backpressure.checkDepth(metrics, stack.size(), vals.length);
+            if (journal != null) {
+                seq = journal.pushedAll(vals);
+            }
+            long w = view.writeLock();
+            try {
+                stack.pushAll(vals);
+            } finally {
+                view.unlockWrite(w);
+            }
+            if (waiters > 0 && vals.length > 0) {
+                nonEmpty.signalAll();
+            }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
         } finally {
             lock.unlock();
+            metrics.record(CalculatorMetrics.PUSH_VALUES, start);
         }
+        awaitDurable(seq);
     }
 
-    // Push an operator, which triggers: pop up the all integers in the current stack, Then push the result back to the top of the stack.
+    // Push an operator, which triggers: collapse all integers in the current stack into one, Then push the result back to the top of the stack.
+    // min/max/gcd/lcm come from the stack's running checkpoints, so they are O(1) while the lock is held;
+    // streaming operators (sum, product, avg, registered ones) fold the values. See Operators.
+    // Results are exact: a result beyond int stays on the stack as a wide value, see popWide().
     public void pushOperation(String operator) throws RemoteException{
-        String op = (operator == null)? "": operator.trim().toLowerCase();
-        lock.lock();
+        long start = System.nanoTime();
+        try {
+            int code = Operators.resolve(operator);
+            collapse(code, Operators.argument(code, operator));
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    public void pushOperation(int opcode) throws RemoteException{
+        long start = System.nanoTime();
+        try {
+            collapse(Operators.check(opcode), 0);
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    // counted with pushOperation(int)
+    public void pushOperation(int opcode, int arg) throws RemoteException{
+        long start = System.nanoTime();
+        try {
+            collapse(opcode, Operators.check(opcode, arg));
+        } finally {
+            metrics.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    private void collapse(int code, int arg) throws RemoteException{
+        long seq = 0;
+        acquireWritable();
 
         try{
-            if(stack.empty()){
+            if(stack.isEmpty()){
                 throw new RemoteException("pushOperation called on empty stack");
             }
 
-            // min
-            if(op.equals("min")) {
-                int m = Integer.MAX_VALUE;
-                while (!stack.empty()){
-                    int v = stack.pop();
-                    if(v<m) m = v;
+            long result = stack.reduce(code, arg);
+            if (IntMath.fitsInt(result)) {
+                if (journal != null) {
+                    seq = journal.collapsed((int) result);
+                }
+                long w = view.writeLock();
+                try {
+                    stack.clear();
+                    stack.push((int) result);
+                } finally {
+                    view.unlockWrite(w);
+                }
+            } else {
+                BigInteger wide = (result == IntStack.BIG) ? stack.reduceBig(code, arg) : BigInteger.valueOf(result);
+                if (journal != null) {
+                    seq = journal.collapsedWide(wide);
+                }
+                long w = view.writeLock();
+                try {
+                    stack.collapse(wide);
+                } finally {
+                    view.unlockWrite(w);
                 }
-                stack.push(m);
-                return;
             }
+            checkpointIfDue();
+        } catch (IllegalArgumentException e) {
+            // kth beyond the stack size or a result wider than IntMath.maxWideBits; nothing was changed
+            throw new RemoteException(e.getMessage());
+        } catch (IOException e) {
+            throw journalFailure(e);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+    }
 
-            // max
-            if (op.equals("max")) {
-                int m = Integer.MIN_VALUE;
-                while (!stack.empty()) {
-                    int v = stack.pop();
-                    if (v > m) m = v;
-                }
-                stack.push(m);
-                return;
+    //pop and return the top value
+    public int pop() throws RemoteException{
+        long start = System.nanoTime();
+        long seq = 0;
+        int top;
+        acquireWritable();
+        try {
+            if (stack.isEmpty()) {
+                throw new RemoteException("pop called on empty stack");
+            }
+            if (stack.topIsWide()) {
+                throw new RemoteException("pop: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+            }
+            if (journal != null) {
+                seq = journal.popped(1);
+            }
+            long w = view.writeLock();
+            try {
+                top = stack.pop();
+            } finally {
+                view.unlockWrite(w);
             }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
+        } finally {
+            lock.unlock();
+            metrics.record(CalculatorMetrics.POP, start);
+        }
+        awaitDurable(seq);
+        return top;
+    }
 
-            // greatest common divisor
-            if (op.equals("gcd")) {
-                int g = INIT_GCD; // gcd(0, x) = |x|
-                while (!stack.empty()) {
-                    int v = stack.pop();
-                    g = gcd(g, v);
+    //pop the top value, waiting up to timeoutMs for a push while the stack is empty; null on timeout
+    public Integer popOrWait(long timeoutMs) throws RemoteException{
+        long start = System.nanoTime();
+        long seq = 0;
+        int top;
+        acquireWritable();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+            waiters++;
+            try {
+                // a push signals one waiter per value; whoever takes the value first wins, the rest wait on
+                while (stack.isEmpty()) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = nonEmpty.awaitNanos(nanos);
+                    if (retired) {
+                        throw new NoSuchObjectException("this stack has been removed");
+                    }
+                    if (standby) {
+                        throw new RemoteException("this stack is a standby replica; promote it before writing");
+                    }
                 }
-                if (g < 0) g = -g;
-                stack.push(g);
-                return;
+            } finally {
+                waiters--;
+            }
+            lastUsedNanos = System.nanoTime();
+            if (stack.topIsWide()) {
+                throw new RemoteException("popOrWait: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
             }
+            if (journal != null) {
+                seq = journal.popped(1);
+            }
+            long w = view.writeLock();
+            try {
+                top = stack.pop();
+            } finally {
+                view.unlockWrite(w);
+            }
+            checkpointIfDue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("popOrWait interrupted", e);
+        } catch (IOException e) {
+            throw journalFailure(e);
+        } finally {
+            lock.unlock();
+            metrics.record(CalculatorMetrics.POP_OR_WAIT, start);
+        }
+        awaitDurable(seq);
+        return top;
+    }
 
-            // lease common multiple
-            if (op.equals("lcm")) {
-                int l = INIT_LCM; // lcm(1, x) = x
-                while (!stack.empty()) {
-                    int v = stack.pop();
-                    l = lcm(l, v);
-                }
-                if (l < 0) l = -l;
-                stack.push(l);
-                return;
+    //pop the top n values under a single lock acquisition; nothing is popped if fewer than n are present
+    public int[] popN(int n) throws RemoteException{
+        if (n < 0) {
+            throw new RemoteException("popN called with negative count: " + n);
+        }
+        long start = System.nanoTime();
+        long seq = 0;
+        int[] popped;
+        acquireWritable();
+        try {
+            if (stack.size() < n) {
+                throw new RemoteException("popN(" + n + ") called on stack of size " + stack.size());
+            }
+            if (n > 0 && n == stack.size() && stack.wideBottom() != null) {
+                throw new RemoteException("popN: the bottom value does not fit in an int, use popWide() for it");
+            }
+            if (journal != null && n > 0) {
+                seq = journal.popped(n);
+            }
+            long w = view.writeLock();
+            try {
+                popped = stack.popN(n);
+            } finally {
+                view.unlockWrite(w);
             }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
+        } finally {
+            lock.unlock();
+            metrics.record(CalculatorMetrics.POP_N, start);
+        }
+        awaitDurable(seq);
+        return popped;
+    }
 
-            throw new RemoteException("Unknown operator: " + operator + "（use min|max|gcd|lcm)");
+    //pop every value under a single lock acquisition
+    public int[] drain() throws RemoteException{
+        long start = System.nanoTime();
+        long seq = 0;
+        int[] popped;
+        acquireWritable();
+        try {
+            if (stack.wideBottom() != null) {
+                throw new RemoteException("drain: the bottom value does not fit in an int, use popWide() for it");
+            }
+            if (journal != null && !stack.isEmpty()) {
+                seq = journal.popped(stack.size());
+            }
+            long w = view.writeLock();
+            try {
+                popped = stack.popN(stack.size());
+            } finally {
+                view.unlockWrite(w);
+            }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
         } finally {
             lock.unlock();
+            metrics.record(CalculatorMetrics.DRAIN, start);
         }
+        awaitDurable(seq);
+        return popped;
     }
 
-    //pop and return the top value
-    public int pop() throws RemoteException{
-        lock.lock();
+    //pop the top value whatever its width: the only way to read an lcm/gcd result beyond int
+    public BigInteger popWide() throws RemoteException{
+        long start = System.nanoTime();
+        long seq = 0;
+        BigInteger top;
+        acquireWritable();
         try {
-            if (stack.empty()) {
-                throw new RemoteException("pop called on empty stack");
+            if (stack.isEmpty()) {
+                throw new RemoteException("popWide called on empty stack");
+            }
+            if (journal != null) {
+                seq = journal.popped(1);
             }
-            return stack.pop();
+            long w = view.writeLock();
+            try {
+                top = stack.popWide();
+            } finally {
+                view.unlockWrite(w);
+            }
+            checkpointIfDue();
+        } catch (IOException e) {
+            throw journalFailure(e);
         } finally {
             lock.unlock();
+            metrics.record(CalculatorMetrics.POP_WIDE, start);
         }
+        awaitDurable(seq);
+        return top;
     }
 
-    //check whether the stack is empty or not
+    //check whether the stack is empty or not, without the lock unless a write overlaps the read
     public boolean isEmpty() throws RemoteException{
-        lock.lock();
+        long start = System.nanoTime();
+        try {
+            return readSize() == 0;
+        } finally {
+            metrics.record(CalculatorMetrics.IS_EMPTY, start);
+        }
+    }
+
+    //pop the top value, or return null at once if the stack is empty: an empty stack is
+    //answered from an optimistic read, without the lock or a RemoteException
+    public Integer tryPop() throws RemoteException{
+        long start = System.nanoTime();
+        long seq = 0;
+        int top;
+        try {
+            if (optimisticSize() == 0) {
+                admitRead();
+                return null;
+            }
+            acquireWritable();
+            try {
+                if (stack.isEmpty()) {
+                    return null;
+                }
+                if (stack.topIsWide()) {
+                    throw new RemoteException("tryPop: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+                }
+                if (journal != null) {
+                    seq = journal.popped(1);
+                }
+                long w = view.writeLock();
+                try {
+                    top = stack.pop();
+                } finally {
+                    view.unlockWrite(w);
+                }
+                checkpointIfDue();
+            } catch (IOException e) {
+                throw journalFailure(e);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            metrics.record(CalculatorMetrics.TRY_POP, start);
+        }
+        awaitDurable(seq);
+        return top;
+    }
+
+    //the top value without popping it, null if the stack is empty
+    public Integer peek() throws RemoteException{
+        long start = System.nanoTime();
+        try {
+            admitRead();
+            long stamp = view.tryOptimisticRead();
+            try {
+                int size = stack.size();
+                boolean wide = stack.topIsWide();
+                int top = (size == 0 || wide) ? 0 : stack.peek();
+                if (view.validate(stamp)) {
+                    return peeked(size, wide, top);
+                }
+            } catch (RuntimeException raced) {
+                // a write moved the array under the read; it is redone under the lock
+            }
+            acquire();
+            try {
+                int size = stack.size();
+                boolean wide = stack.topIsWide();
+                return peeked(size, wide, (size == 0 || wide) ? 0 : stack.peek());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            metrics.record(CalculatorMetrics.PEEK, start);
+        }
+    }
+
+    //number of values on the stack, a wide bottom value counting as one
+    public int size() throws RemoteException{
+        long start = System.nanoTime();
         try {
-            return stack.empty();
+            return readSize();
+        } finally {
+            metrics.record(CalculatorMetrics.SIZE, start);
+        }
+    }
+
+    private static Integer peeked(int size, boolean wide, int top) throws RemoteException {
+        if (size == 0) {
+            return null;
+        }
+        if (wide) {
+            throw new RemoteException("peek: the top value does not fit in an int, use popWide()");
+        }
+        return top;
+    }
+
+    // stack.size() read optimistically, or under the lock if a write overlapped the read
+    private int readSize() throws RemoteException {
+        admitRead();
+        int size = optimisticSize();
+        if (size >= 0) {
+            return size;
+        }
+        acquire();
+        try {
+            return stack.size();
         } finally {
             lock.unlock();
         }
     }
 
+    // stack.size() without the lock, or -1 if a write overlapped the read
+    private int optimisticSize() {
+        long stamp = view.tryOptimisticRead();
+        int size = stack.size();
+        return view.validate(stamp) ? size : -1;
+    }
+
+    // Refuse a push of n values onto a full stack before queueing for the lock (checked exactly under it)
+    private void checkRoom(int n) throws OverloadedException {
+        int size = optimisticSize();
+        if (size >= 0) {
+            Backpressure.checkDepth(metrics, size, n);
+        }
+    }
+
     //waiting for the given millis
     public int delayPop(int millis) throws RemoteException{
+        long start = System.nanoTime();
         int wait = Math.max(0, millis);
         try{
             Thread.sleep(wait);
             return pop();
         } catch (InterruptedException e) {
             throw new RemoteException("delayPop interrupted", e);
+        } finally {
+            metrics.record(CalculatorMetrics.DELAY_POP, start);
+        }
+    }
+
+    //schedule the pop on the shared timer instead of sleeping on this RMI thread
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException{
+        if (callback == null) {
+            throw new RemoteException("delayPopAsync called without a callback");
+        }
+        Backpressure.admit(metrics, null);
+        long start = System.nanoTime();
+        DelayScheduler.schedule(this, millis, callback);
+        metrics.record(CalculatorMetrics.DELAY_POP_ASYNC, start);
+    }
+
+    // Retire the stack if it is empty and has not been used for idleNanos: every later call fails
+    // with NoSuchObjectException, so nothing can be pushed onto a stack that is being removed.
+    // A stack with popOrWait callers waiting on it is in use.
+    boolean retireIfIdle(long idleNanos) {
+        lock.lock();
+        try {
+            if (!retired && waiters == 0 && stack.isEmpty() && System.nanoTime() - lastUsedNanos > idleNanos) {
+                retired = true;
+            }
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    // Retire the stack whatever it holds; popOrWait callers fail at once
+    void retire() {
+        lock.lock();
+        try {
+            retired = true;
+            nonEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Put a standby replica in read-only mode until promote()
+    void standby() {
+        lock.lock();
+        try {
+            standby = true;
+            nonEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void promote() {
+        lock.lock();
+        try {
+            standby = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand the journal a full copy of the stack now, e.g. for a replica that has just connected
+    void checkpoint() throws IOException {
+        lock.lock();
+        try {
+            if (journal != null) {
+                journal.checkpoint(stack.toArray(), stack.wideBottom());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Apply a change shipped by the replication primary: clear the stack if asked, pop count
+    // values, then push the given ones. Works while on standby and is not journaled, like loadReplicated.
+    void applyReplicated(boolean clear, int count, int[] push) {
+        lock.lock();
+        long w = view.writeLock();
+        try {
+            if (clear) {
+                stack.clear();
+            }
+            if (count > 0) {
+                stack.popN(Math.min(count, stack.size()));
+            }
+            if (push != null) {
+                stack.pushAll(push);
+            }
+        } finally {
+            view.unlockWrite(w);
+            lock.unlock();
+        }
+    }
+
+    // Replace the stack by a snapshot or a collapse shipped by the primary
+    void loadReplicated(int[] bottomFirst, BigInteger wideBottom) {
+        lock.lock();
+        try {
+            long w = view.writeLock();
+            try {
+                stack.restore(bottomFirst, wideBottom);
+            } finally {
+                view.unlockWrite(w);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand the journal a full copy of the stack when it asks for one; called under the lock
+    private void checkpointIfDue() throws IOException {
+        if (journal != null && journal.checkpointDue()) {
+            journal.checkpoint(stack.toArray(), stack.wideBottom());
         }
     }
 
-    //method of gcd
-    private static int gcd(int a, int b){
-        if(a<0) a = -a;
-        if(b<0) b = -b;
-        if(a == 0) return b;
-        if(b == 0) return a;
+    // Wait, without the lock, until the journaled mutation seq is durable (seq 0: nothing journaled)
+    private void awaitDurable(long seq) throws RemoteException {
+        if (seq == 0) {
+            return;
+        }
+        try {
+            journal.awaitDurable(seq);
+        } catch (IOException e) {
+            throw journalFailure(e);
+        }
+    }
 
-        while (b != 0 ) {
-            int temporary = a % b;
-            a = b;
-            b = temporary;
+    // RemoteExceptions thrown inside the locked section pass through; anything else came from the journal
+    private static RemoteException journalFailure(IOException e) {
+        if (e instanceof RemoteException) {
+            return (RemoteException) e;
         }
+        return new RemoteException("write-ahead log failed", e);
+    }
 
-        return a;
+    // acquire() for the calls that change the stack, which a standby replica refuses; over a
+    // Backpressure limit the call fails here instead of joining the lock queue
+    private void acquireWritable() throws RemoteException {
+        Backpressure.admit(metrics, null);
+        int queued = lock.getQueueLength();
+        metrics.lockQueueSampled(queued);
+        Backpressure.checkLockQueue(metrics, queued);
+        acquire();
+        if (standby) {
+            lock.unlock();
+            throw new RemoteException("this stack is a standby replica; promote it before writing");
+        }
     }
 
-    //method of lcm
-    private static int lcm(int a, int b){
-        if(a == 0 || b == 0) {
-            return 0;
+    // lock.lock(), recording the wait in the metrics; fails once retired
+    private void acquire() throws NoSuchObjectException {
+        long start = System.nanoTime();
+        lock.lock();
+        long now = System.nanoTime();
+        metrics.lockWaited(now - start);
+        if (retired) {
+            lock.unlock();
+            throw new NoSuchObjectException("this stack has been removed");
         }
+        lastUsedNanos = now;
+    }
 
-        int g = gcd(a,b);
-        return (a / g) * b;
+    // the metrics this stack records into
+    CalculatorMetrics metrics() {
+        return metrics;
     }
 
+    // the retired check of acquire() and the rate limit for the reads that skip the lock
+    private void admitRead() throws RemoteException {
+        if (retired) {
+            throw new NoSuchObjectException("this stack has been removed");
+        }
+        Backpressure.admit(metrics, null);
+    }
 }
@@ -0,0 +1,278 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared-stack Calculator without a lock: every operation is a CAS on a TreiberStack.
+// pushOperation stays atomic because the stack is an immutable snapshot with the
+// min/max/gcd/lcm of everything below each node, and the collapse is a single CAS
+// that replaces exactly the snapshot the result was computed from (streaming operators such as
+// sum walk that snapshot instead).
+public class CalculatorLockFree extends UnicastRemoteObject implements Calculator {
+    private final TreiberStack stack = new TreiberStack();
+
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.LOCK_FREE;
+
+    // popOrWait is the one blocking call: waiters park on this monitor, and a push only takes it
+    // when someone is waiting (waiters is raised before the waiter's last look at the stack)
+    private final Object waitLock = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    public CalculatorLockFree() throws RemoteException{
+        super();
+    }
+
+    // export on the given port through custom socket factories (e.g. TunedSocketFactory)
+    public CalculatorLockFree(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException{
+        super(port, csf, ssf);
+    }
+
+    public void pushValue(int val) throws RemoteException {
+        long start = admit();
+        try {
+            // the size is read before the push, so racing pushes can overshoot the limit slightly
+            Backpressure.checkDepth(METRICS, stack.size(), 1);
+            stack.push(val);
+            if (waiters.get() > 0) wakeWaiters();
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUE, start);
+        }
+    }
+
+    public void pushValues(int[] vals) throws RemoteException {
+        long start = admit();
+        try {
+            if (vals == null) {
+                throw new RemoteException("pushValues called with null");
+            }
+            Backpressure.checkDepth(METRICS, stack.size(), vals.length);
+            stack.pushAll(vals);
+            if (waiters.get() > 0) wakeWaiters();
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUES, start);
+        }
+    }
+
+    public void pushOperation(String operator) throws RemoteException{
+        long start = admit();
+        try {
+            int code = Operators.resolve(operator);
+            collapse(code, Operators.argument(code, operator));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    public void pushOperation(int opcode) throws RemoteException{
+        long start = admit();
+        try {
+            collapse(Operators.check(opcode), 0);
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    // counted with pushOperation(int)
+    public void pushOperation(int opcode, int arg) throws RemoteException{
+        long start = admit();
+        try {
+            collapse(opcode, Operators.check(opcode, arg));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    private void collapse(int code, int arg) throws RemoteException{
+        boolean collapsed;
+        try {
+            collapsed = stack.collapse(code, arg);
+        } catch (IllegalArgumentException e) {
+            // kth beyond the stack size or a result wider than IntMath.maxWideBits; nothing was changed
+            throw new RemoteException(e.getMessage());
+        }
+        if (!collapsed) {
+            throw new RemoteException("pushOperation called on empty stack");
+        }
+    }
+
+    public int pop() throws RemoteException{
+        long start = admit();
+        try {
+            long v = stack.pop();
+            if (v == TreiberStack.EMPTY) {
+                throw new RemoteException("pop called on empty stack");
+            }
+            if (v == TreiberStack.WIDE) {
+                throw new RemoteException("pop: the top value does not fit in an int, use popWide()");
+            }
+            return (int) v;
+        } finally {
+            METRICS.record(CalculatorMetrics.POP, start);
+        }
+    }
+
+    public Integer popOrWait(long timeoutMs) throws RemoteException{
+        long start = admit();
+        try {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+            while (true) {
+                long v = stack.pop();
+                if (v == TreiberStack.WIDE) {
+                    throw new RemoteException("popOrWait: the top value does not fit in an int, use popWide()");
+                }
+                if (v != TreiberStack.EMPTY) {
+                    return (int) v;
+                }
+                synchronized (waitLock) {
+                    waiters.incrementAndGet();
+                    try {
+                        if (stack.isEmpty()) {
+                            long nanos = deadline - System.nanoTime();
+                            if (nanos <= 0) return null;
+                            TimeUnit.NANOSECONDS.timedWait(waitLock, nanos);
+                        }
+                    } finally {
+                        waiters.decrementAndGet();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("popOrWait interrupted", e);
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_OR_WAIT, start);
+        }
+    }
+
+    public int[] popN(int n) throws RemoteException{
+        long start = admit();
+        try {
+            if (n < 0) {
+                throw new RemoteException("popN called with negative count: " + n);
+            }
+            int[] out = stack.popN(n);
+            if (out == null) {
+                throw new RemoteException("popN(" + n + ") called on stack of size " + stack.size());
+            }
+            if (out == TreiberStack.REACHES_WIDE) {
+                throw new RemoteException("popN: the bottom value does not fit in an int, use popWide() for it");
+            }
+            return out;
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_N, start);
+        }
+    }
+
+    public int[] drain() throws RemoteException{
+        long start = admit();
+        try {
+            int[] out = stack.drain();
+            if (out == TreiberStack.REACHES_WIDE) {
+                throw new RemoteException("drain: the bottom value does not fit in an int, use popWide() for it");
+            }
+            return out;
+        } finally {
+            METRICS.record(CalculatorMetrics.DRAIN, start);
+        }
+    }
+
+    public BigInteger popWide() throws RemoteException{
+        long start = admit();
+        try {
+            BigInteger v = stack.popWide();
+            if (v == null) {
+                throw new RemoteException("popWide called on empty stack");
+            }
+            return v;
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_WIDE, start);
+        }
+    }
+
+    public Integer tryPop() throws RemoteException{
+        long start = admit();
+        try {
+            long v = stack.pop();
+            if (v == TreiberStack.WIDE) {
+                throw new RemoteException("tryPop: the top value does not fit in an int, use popWide()");
+            }
+            return (v == TreiberStack.EMPTY) ? null : Integer.valueOf((int) v);
+        } finally {
+            METRICS.record(CalculatorMetrics.TRY_POP, start);
+        }
+    }
+
+    public Integer peek() throws RemoteException{
+        long start = admit();
+        try {
+            long v = stack.peek();
+            if (v == TreiberStack.WIDE) {
+                throw new RemoteException("peek: the top value does not fit in an int, use popWide()");
+            }
+            return (v == TreiberStack.EMPTY) ? null : Integer.valueOf((int) v);
+        } finally {
+            METRICS.record(CalculatorMetrics.PEEK, start);
+        }
+    }
+
+    public int size() throws RemoteException{
+        long start = admit();
+        try {
+            return stack.size();
+        } finally {
+            METRICS.record(CalculatorMetrics.SIZE, start);
+        }
+    }
+
+    public boolean isEmpty() throws RemoteException{
+        long start = admit();
+        try {
+            return stack.isEmpty();
+        } finally {
+            METRICS.record(CalculatorMetrics.IS_EMPTY, start);
+        }
+    }
+
+    public int delayPop(int millis) throws RemoteException{
+        long start = System.nanoTime();
+        try {
+            int wait = Math.max(0, millis);
+            try{
+                Thread.sleep(wait);
+                return pop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("delayPop interrupted", e);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.DELAY_POP, start);
+        }
+    }
+
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException{
+        long start = admit();
+        try {
+            if (callback == null) {
+                throw new RemoteException("delayPopAsync called without a callback");
+            }
+            DelayScheduler.schedule(this, millis, callback);
+        } finally {
+            METRICS.record(CalculatorMetrics.DELAY_POP_ASYNC, start);
+        }
+    }
+
+    // System.nanoTime() for a call charged to the caller's rate limit; delayPop is charged for its pop
+    private static long admit() throws OverloadedException {
+        Backpressure.admit(METRICS, null);
+        return System.nanoTime();
+    }
+
+    private void wakeWaiters() {
+        synchronized (waitLock) {
+            waitLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Per-method call counts and latency histograms for one kind of Calculator, plus lock wait
+// time and queue length where there is a lock, and calls refused by Backpressure. Exposed as a JMX MBean with flat numeric
+// attributes such as "pop.count", "pop.p99Us", "lockWait.p999Us" or "rejected.rate", so jconsole or a JMX
+// exporter can read them from a running server. Each named stack has an instance of its own under
+// calculator:type=StackMetrics,name="...", so stacks with their own locks do not write the same
+// counters, and a contended stack shows up by name.
+public class CalculatorMetrics implements DynamicMBean {
+    // method slots, in Calculator interface order
+    public static final int PUSH_VALUE = 0;
+    public static final int PUSH_VALUES = 1;
+    public static final int PUSH_OPERATION = 2;
+    public static final int POP = 3;
+    public static final int POP_N = 4;
+    public static final int DRAIN = 5;
+    public static final int IS_EMPTY = 6;
+    public static final int DELAY_POP = 7;
+    public static final int DELAY_POP_ASYNC = 8;
+    public static final int POP_WIDE = 9;
+    public static final int PUSH_OPCODE = 10;
+    public static final int POP_OR_WAIT = 11;
+    public static final int TRY_POP = 12;
+    public static final int PEEK = 13;
+    public static final int SIZE = 14;
+
+    private static final String[] METHODS = {
+            "pushValue", "pushValues", "pushOperation", "pop", "popN", "drain", "isEmpty", "delayPop", "delayPopAsync", "popWide",
+            "pushOpcode", "popOrWait", "tryPop", "peek", "size"
+    };
+    // calls refused by Backpressure, by limit
+    public static final int REJECTED_DEPTH = 0;
+    public static final int REJECTED_RATE = 1;
+    public static final int REJECTED_LOCK_QUEUE = 2;
+    private static final String[] LIMITS = {"depth", "rate", "lockQueue"};
+
+    private static final String LOCK_WAIT = "lockWait";
+    private static final String[] STATS = {"count", "p50Us", "p99Us", "p999Us", "maxUs"};
+
+    // one instance per implementation class, shared by all of its objects; named stacks use forStack()
+    public static final CalculatorMetrics SHARED = new CalculatorMetrics("shared", true);
+    public static final CalculatorMetrics PER_CLIENT = new CalculatorMetrics("perClient", false);
+    public static final CalculatorMetrics LOCK_FREE = new CalculatorMetrics("lockFree", false);
+    public static final CalculatorMetrics OFF_HEAP = new CalculatorMetrics("offHeap", false);
+
+    // instances registered with the platform MBeanServer, by their object name
+    private static final Map<ObjectName, CalculatorMetrics> REGISTERED = new ConcurrentHashMap<ObjectName, CalculatorMetrics>();
+
+    private final String name;
+    private final ObjectName objectName;
+    private final LatencyHistogram[] methods = new LatencyHistogram[METHODS.length];
+    private final LatencyHistogram lockWait;
+    // sampled from lock.getQueueLength() by the writing calls; written only when they change
+    private volatile int lockQueue;
+    private volatile int lockQueueMax;
+    private final LongAdder[] rejected = new LongAdder[LIMITS.length];
+    private final MBeanInfo info;
+
+    CalculatorMetrics(String name, boolean hasLock) {
+        this(name, hasLock, "calculator:type=Metrics,name=" + name);
+    }
+
+    private CalculatorMetrics(String name, boolean hasLock, String objectName) {
+        this.name = name;
+        try {
+            this.objectName = new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(objectName, e);
+        }
+        for (int i = 0; i < methods.length; i++) methods[i] = new LatencyHistogram();
+        for (int i = 0; i < rejected.length; i++) rejected[i] = new LongAdder();
+        this.lockWait = hasLock ? new LatencyHistogram() : null;
+        this.info = buildInfo();
+    }
+
+    // Record a call that started at System.nanoTime() == startNanos
+    public void record(int method, long startNanos) {
+        methods[method].record(System.nanoTime() - startNanos);
+    }
+
+    // The lock queue length a call found before it queued itself. Plain checks and volatile
+    // writes, no read-modify-write: two racing samples may lose a new maximum, the next one
+    // above it restores it
+    public void lockQueueSampled(int queueLength) {
+        if (queueLength != lockQueue) lockQueue = queueLength;
+        if (queueLength > lockQueueMax) lockQueueMax = queueLength;
+    }
+
+    // time a call waited in lock.lock()
+    public void lockWaited(long waitNanos) {
+        lockWait.record(waitNanos);
+    }
+
+    public int lockQueueLength() {
+        return lockQueue;
+    }
+
+    public int lockQueueLengthMax() {
+        return lockQueueMax;
+    }
+
+    // A call refused by Backpressure for the given REJECTED_* limit
+    public void rejected(int limit) {
+        rejected[limit].increment();
+    }
+
+    public long rejectedCount(int limit) {
+        return rejected[limit].sum();
+    }
+
+    public LatencyHistogram histogram(String method) {
+        if (method.equals(LOCK_WAIT)) return lockWait;
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) return methods[i];
+        }
+        return null;
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : methods) h.reset();
+        if (lockWait != null) lockWait.reset();
+        lockQueueMax = lockQueue;
+        for (LongAdder r : rejected) r.reset();
+    }
+
+    // The metrics of one named stack (CalculatorStacksImpl), with a lock of its own
+    public static CalculatorMetrics forStack(String stack) {
+        return new CalculatorMetrics(stack, true, "calculator:type=StackMetrics,name=" + ObjectName.quote(stack));
+    }
+
+    // Register every per-class metrics instance with the platform MBeanServer under calculator:type=Metrics,name=...
+    public static void registerAll() throws Exception {
+        for (CalculatorMetrics m : new CalculatorMetrics[]{SHARED, PER_CLIENT, LOCK_FREE, OFF_HEAP}) {
+            m.register();
+        }
+    }
+
+    public ObjectName objectName() {
+        return objectName;
+    }
+
+    // Register this instance, taking the name over from an earlier instance that had it
+    public void register() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (REGISTERED) {
+            if (REGISTERED.get(objectName) == this) return;
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+            REGISTERED.put(objectName, this);
+        }
+    }
+
+    // Unregister this instance, unless another one has taken its name since
+    public void unregister() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (REGISTERED) {
+            if (!REGISTERED.remove(objectName, this)) return;
+            try {
+                server.unregisterMBean(objectName);
+            } catch (InstanceNotFoundException ignored) {
+                // unregistered by someone else
+            }
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (lockWait != null && attribute.equals("lockQueueLength")) return lockQueue;
+        if (lockWait != null && attribute.equals("lockQueueLengthMax")) return lockQueueMax;
+        for (int i = 0; i < LIMITS.length; i++) {
+            if (attribute.equals("rejected." + LIMITS[i])) return rejected[i].sum();
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram h = (dot < 0) ? null : histogram(attribute.substring(0, dot));
+        if (h == null) throw new AttributeNotFoundException(attribute);
+
+        String stat = attribute.substring(dot + 1);
+        if (stat.equals("count")) return h.count();
+        if (stat.equals("p50Us")) return micros(h.percentile(0.50));
+        if (stat.equals("p99Us")) return micros(h.percentile(0.99));
+        if (stat.equals("p999Us")) return micros(h.percentile(0.999));
+        if (stat.equals("maxUs")) return micros(h.max());
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException ignored) {
+                // JMX contract: unknown attributes are left out
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        // what the DynamicMBean contract asks for an unknown operation
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    private MBeanInfo buildInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        List<String> histograms = new ArrayList<String>();
+        for (String m : METHODS) histograms.add(m);
+        if (lockWait != null) histograms.add(LOCK_WAIT);
+
+        for (String h : histograms) {
+            for (String stat : STATS) {
+                String type = stat.equals("count") ? "long" : "double";
+                attrs.add(new MBeanAttributeInfo(h + "." + stat, type, h + " " + stat, true, false, false));
+            }
+        }
+        if (lockWait != null) {
+            attrs.add(new MBeanAttributeInfo("lockQueueLength", "int", "threads waiting for the lock, as the last writing call found it", true, false, false));
+            attrs.add(new MBeanAttributeInfo("lockQueueLengthMax", "int", "most threads seen waiting for the lock", true, false, false));
+        }
+
+        for (String limit : LIMITS) {
+            attrs.add(new MBeanAttributeInfo("rejected." + limit, "long", "calls refused over the " + limit + " limit", true, false, false));
+        }
+
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "clear every histogram and rejection count", null, "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Calculator metrics (" + name + ")",
+                attrs.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reset}, null);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -1,113 +1,286 @@
+import java.math.BigInteger;
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Stack;
+import java.util.concurrent.TimeUnit;
 
 // Each client has his own stack implementation of Calculator
 public class CalculatorPerClient extends UnicastRemoteObject implements Calculator {
-    private final Stack<Integer> stack = new Stack<Integer>();
+    private final IntStack stack = new IntStack();
+
+    // popOrWait callers in stack.wait(); guarded by the stack monitor
+    private int waiters;
 
     private static final int MIN_DELAY_MS = 0;
 
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.PER_CLIENT;
+
+    // this client's rate limit (Backpressure), null while off
+    private final Backpressure.Bucket bucket = Backpressure.newBucket();
+
+    // last time a client called this stack, read by SessionManager for idle eviction
+    private volatile long lastUsedNanos = System.nanoTime();
+
     public CalculatorPerClient() throws RemoteException{
         super();
     }
 
+    // export on the given port through custom socket factories (e.g. TunedSocketFactory)
+    public CalculatorPerClient(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException{
+        super(port, csf, ssf);
+    }
+
     // Push an integer onto the stack top exclusive to the current instance
     public void pushValue(int val) throws RemoteException{
-        // Ensure that the same instance is safe in a multi-threads
-        synchronized (stack){
-            stack.push(val);
+        long start = admit();
+        try {
+            // Ensure that the same instance is safe in a multi-threads
+            synchronized (stack){
+                Backpressure.checkDepth(METRICS, stack.size(), 1);
+                stack.push(val);
+                if (waiters > 0) stack.notify();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUE, start);
         }
     }
 
+    public void pushValues(int[] vals) throws RemoteException{
+        long start = admit();
+        try {
+            if (vals == null) throw new RemoteException("pushValues with null");
+            synchronized (stack){
+                Backpressure.checkDepth(METRICS, stack.size(), vals.length);
+                stack.pushAll(vals);
+                if (waiters > 0 && vals.length > 0) stack.notifyAll();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUES, start);
+        }
+    }
+
+    // O(1): the stack keeps running min/max/gcd/lcm, so nothing is popped one by one.
+    // Exact: a result beyond int stays on the stack as a wide value, read it with popWide()
     public void pushOperation(String operator) throws RemoteException{
-        String op = (operator == null) ? "": operator.trim().toLowerCase();
+        long start = admit();
+        try {
+            int code = Operators.resolve(operator);
+            collapse(code, Operators.argument(code, operator));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    public void pushOperation(int opcode) throws RemoteException{
+        long start = admit();
+        try {
+            collapse(Operators.check(opcode), 0);
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
 
+    // counted with pushOperation(int)
+    public void pushOperation(int opcode, int arg) throws RemoteException{
+        long start = admit();
+        try {
+            collapse(opcode, Operators.check(opcode, arg));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    private void collapse(int code, int arg) throws RemoteException{
         synchronized (stack) {
-            if (stack.empty()) {
+            if (stack.isEmpty()) {
                 throw new RemoteException("pushOperation on empty stack");
             }
 
-            if(op.equals("min")){
-                int m = Integer.MAX_VALUE;
-                while (!stack.empty()){
-                    m = Math.min(m, stack.pop());
+            try {
+                long result = stack.reduce(code, arg);
+                if (IntMath.fitsInt(result)) {
+                    stack.clear();
+                    stack.push((int) result);
+                } else {
+                    stack.collapse(result == IntStack.BIG ? stack.reduceBig(code, arg) : BigInteger.valueOf(result));
                 }
-                stack.push(m);
-                return;
+            } catch (IllegalArgumentException e) {
+                // kth beyond the stack size or a result wider than IntMath.maxWideBits; nothing was changed
+                throw new RemoteException(e.getMessage());
             }
+        }
+    }
 
-            if(op.equals("max")){
-                int m = Integer.MIN_VALUE;
-                while (!stack.empty()){
-                    m = Math.max(m, stack.pop());
-                }
-                stack.push(m);
-                return;
+    public int pop() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                if(stack.isEmpty()) throw new RemoteException("pop on empty stack");
+                if(stack.topIsWide()) throw new RemoteException("pop: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+                return stack.pop();
             }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP, start);
+        }
+    }
 
-            if(op.equals("gcd")) {
-                int g = 0;
-                while (!stack.empty()){
-                    g= gcd(g, stack.pop());
+    public Integer popOrWait(long timeoutMs) throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+                waiters++;
+                try {
+                    while (stack.isEmpty()) {
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos <= 0) return null;
+                        TimeUnit.NANOSECONDS.timedWait(stack, nanos);
+                    }
+                } catch (InterruptedException e) {
+                    // pass on a notify this thread may have swallowed
+                    stack.notify();
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("popOrWait interrupted", e);
+                } finally {
+                    waiters--;
                 }
-                stack.push(Math.abs(g));
-                return;
+                if(stack.topIsWide()) throw new RemoteException("popOrWait: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+                return stack.pop();
             }
+        } finally {
+            touch();
+            METRICS.record(CalculatorMetrics.POP_OR_WAIT, start);
+        }
+    }
 
-            if(op.equals("lcm")) {
-                int l = 1;
-                while (!stack.empty()){
-                    l= lcm(l, stack.pop());
-                }
-                stack.push(Math.abs(l));
-                return;
+    public int[] popN(int n) throws RemoteException{
+        long start = admit();
+        try {
+            if (n < 0) throw new RemoteException("popN with negative count: " + n);
+            synchronized (stack){
+                if(stack.size() < n) throw new RemoteException("popN(" + n + ") on stack of size " + stack.size());
+                if(n > 0 && n == stack.size() && stack.wideBottom() != null) throw new RemoteException("popN: the bottom value does not fit in an int, use popWide() for it");
+                return stack.popN(n);
             }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_N, start);
+        }
+    }
 
-            throw new RemoteException("Unknown operator: " + operator + "(use min|max|gcd|lcm)");
+    public int[] drain() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                if(stack.wideBottom() != null) throw new RemoteException("drain: the bottom value does not fit in an int, use popWide() for it");
+                return stack.popN(stack.size());
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.DRAIN, start);
         }
     }
 
-    public int pop() throws RemoteException{
-        synchronized (stack){
-            if(stack.empty()) throw new RemoteException("pop on empty stack");
-            return stack.pop();
+    public BigInteger popWide() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                if(stack.isEmpty()) throw new RemoteException("popWide on empty stack");
+                return stack.popWide();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_WIDE, start);
+        }
+    }
+
+    public Integer tryPop() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                if(stack.isEmpty()) return null;
+                if(stack.topIsWide()) throw new RemoteException("tryPop: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+                return stack.pop();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.TRY_POP, start);
+        }
+    }
+
+    public Integer peek() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack){
+                if(stack.isEmpty()) return null;
+                if(stack.topIsWide()) throw new RemoteException("peek: the top value " + stack.wideBottom() + " does not fit in an int, use popWide()");
+                return stack.peek();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PEEK, start);
+        }
+    }
+
+    public int size() throws RemoteException{
+        long start = admit();
+        try {
+            synchronized (stack) {
+                return stack.size();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.SIZE, start);
         }
     }
 
     public boolean isEmpty() throws RemoteException{
-        synchronized (stack) {
-            return stack.empty();
+        long start = admit();
+        try {
+            synchronized (stack) {
+                return stack.isEmpty();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.IS_EMPTY, start);
         }
     }
 
     public int delayPop(int millis) throws RemoteException{
-        int wait = Math.max(MIN_DELAY_MS, millis);
+        long start = touch();
         try {
-            Thread.sleep(wait);
-            return pop();
-        } catch (InterruptedException ie){
-            Thread.currentThread().interrupt();
-            throw new RemoteException("delayPop is interrupted", ie);
+            int wait = Math.max(MIN_DELAY_MS, millis);
+            try {
+                Thread.sleep(wait);
+                return pop();
+            } catch (InterruptedException ie){
+                Thread.currentThread().interrupt();
+                throw new RemoteException("delayPop is interrupted", ie);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.DELAY_POP, start);
         }
     }
 
-    private static int gcd(int a, int b){
-        a = Math.abs(a);
-        b = Math.abs(b);
-        if(a==0) return b;
-        if(b==0) return a;
-        while (b != 0){
-            int temporary = a%b;
-            a=b;
-            b=temporary;
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException{
+        long start = admit();
+        try {
+            if (callback == null) throw new RemoteException("delayPopAsync without a callback");
+            DelayScheduler.schedule(this, Math.max(MIN_DELAY_MS, millis), callback);
+        } finally {
+            METRICS.record(CalculatorMetrics.DELAY_POP_ASYNC, start);
         }
-        return a;
     }
 
-    private static int lcm(int a, int b){
-        if(a == 0 || b == 0) return 0;
-        int g = gcd(a,b);
-        return (a / g)*b;
+    // nanoTime of the last remote call on this stack
+    long lastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    // touch(), for a call charged to this client's rate limit; delayPop is charged for its pop
+    private long admit() throws OverloadedException {
+        Backpressure.admit(METRICS, bucket);
+        return touch();
+    }
+
+    // mark the stack as used now; returns the timestamp so calls can also time themselves
+    long touch() {
+        long now = System.nanoTime();
+        lastUsedNanos = now;
+        return now;
     }
 }
@@ -3,5 +3,27 @@ import java.rmi.RemoteException;
 
 //create and return a Calculator remote object with a stack for the current caller's own
 public interface CalculatorPrivate extends Remote {
+    //a stack kept for the session lease like openSession(), without an id, and capped apart from sessions
     Calculator connect() throws RemoteException;
+
+    //the shared stack through a stub of this client's own, rate limited apart from other clients on its host
+    Calculator connectShared() throws RemoteException;
+
+    //a stack kept for the session lease, with an unguessable id for reconnect()
+    CalculatorSession openSession() throws RemoteException;
+
+    //get the warm stack of an earlier session back (fails once its lease has expired)
+    Calculator reconnect(String sessionId) throws RemoteException;
+
+    //release a session right away instead of waiting for its lease to expire
+    boolean closeSession(String sessionId) throws RemoteException;
+
+    //number of openSession() sessions that are currently exported
+    int liveSessions() throws RemoteException;
+
+    //number of connect() stacks that are currently exported
+    int liveConnections() throws RemoteException;
+
+    //number of sessions and connect() stacks removed because they were idle for a whole lease
+    long evictedSessions() throws RemoteException;
 }
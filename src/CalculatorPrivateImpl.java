@@ -1,14 +1,82 @@
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 
 //The server-side implementation of the dedicated stack provider (private)
 public class CalculatorPrivateImpl extends UnicastRemoteObject implements CalculatorPrivate {
+    public static final long DEFAULT_LEASE_MS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_SESSIONS = 10000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 100000;
+
+    private final SessionManager sessions;
+    private final Calculator shared;
+    private final int port;
+    private final RMIClientSocketFactory csf;
+    private final RMIServerSocketFactory ssf;
+
     public CalculatorPrivateImpl() throws RemoteException{
-        super();
+        this(DEFAULT_LEASE_MS, DEFAULT_MAX_SESSIONS);
+    }
+
+    public CalculatorPrivateImpl(long leaseMillis, int maxSessions) throws RemoteException{
+        this(leaseMillis, maxSessions, 0, null, null);
+    }
+
+    public CalculatorPrivateImpl(long leaseMillis, int maxSessions, int port,
+                                 RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException{
+        this(leaseMillis, maxSessions, port, csf, ssf, null);
+    }
+
+    public CalculatorPrivateImpl(long leaseMillis, int maxSessions, int port,
+                                 RMIClientSocketFactory csf, RMIServerSocketFactory ssf, Calculator shared) throws RemoteException{
+        this(leaseMillis, maxSessions, DEFAULT_MAX_CONNECTIONS, port, csf, ssf, shared);
+    }
+
+    // this object and every per-client stack it hands out are exported through the given socket
+    // factories; connectShared() hands out views of shared (null = none)
+    public CalculatorPrivateImpl(long leaseMillis, int maxSessions, int maxConnections, int port,
+                                 RMIClientSocketFactory csf, RMIServerSocketFactory ssf, Calculator shared) throws RemoteException{
+        super(port, csf, ssf);
+        this.shared = shared;
+        this.port = port;
+        this.csf = csf;
+        this.ssf = ssf;
+        sessions = new SessionManager(leaseMillis, maxSessions, maxConnections, port, csf, ssf);
     }
 
     //Create and return a Calculator remote object with a dedicated stack for the current caller
     public Calculator connect() throws RemoteException{
-        return new CalculatorPerClient();   // Each call will create a new CalculatorPerClient
+        // Each call creates its own CalculatorPerClient under the session lease, capped apart from openSession()
+        return sessions.connect();
+    }
+
+    public Calculator connectShared() throws RemoteException{
+        if (shared == null) throw new RemoteException("this server has no shared stack to connect to");
+        return new CalculatorSharedView(shared, port, csf, ssf);
+    }
+
+    public CalculatorSession openSession() throws RemoteException{
+        return sessions.open();
+    }
+
+    public Calculator reconnect(String sessionId) throws RemoteException{
+        return sessions.reconnect(sessionId);
+    }
+
+    public boolean closeSession(String sessionId) throws RemoteException{
+        return sessions.close(sessionId);
+    }
+
+    public int liveSessions() throws RemoteException{
+        return sessions.liveSessions();
+    }
+
+    public int liveConnections() throws RemoteException{
+        return sessions.liveConnections();
+    }
+
+    public long evictedSessions() throws RemoteException{
+        return sessions.evictedSessions();
     }
 }
@@ -0,0 +1,25 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Status and failover control of hot-standby replication, bound next to the shared stack
+// of a primary (ReplicationPrimary) or a standby replica (ReplicationReplica).
+public interface CalculatorReplication extends Remote {
+
+    // "primary", "replica" or "promoted"
+    String role() throws RemoteException;
+
+    // primary: last mutation shipped; replica: last mutation applied
+    long sequence() throws RemoteException;
+
+    // mutations the slowest replica (primary) or this replica has not applied yet
+    long lagRecords() throws RemoteException;
+
+    // primary: slowest heartbeat round trip through a replica's stream; replica: how old the last heartbeat was on arrival
+    long lagMillis() throws RemoteException;
+
+    // primary: connected replicas; replica: 1 while following its primary, else 0
+    int replicas() throws RemoteException;
+
+    // replica: stop following the primary and accept writes; a no-op on a primary
+    void promote() throws RemoteException;
+}
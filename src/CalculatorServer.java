@@ -1,3 +1,7 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
 
@@ -5,7 +9,7 @@ import java.rmi.registry.LocateRegistry;
 
 public class CalculatorServer {
     // RMI Registry port
-    public static final int REGISTRY_PORT = 1099;
+    public static final int REGISTRY_PORT = Integer.getInteger("calculator.registry.port", 1099);
 
     // bind name for shared stack
     public static final String BIND_NAME = "Calculator";
@@ -13,35 +17,261 @@ public class CalculatorServer {
     // bind name for dedicated stack
     public static final String PRIVATE_BIND_NAME = "CalculatorPrivate";
 
+    // bind name for the off-heap per-client sessions
+    public static final String SESSIONS_BIND_NAME = "CalculatorSessions";
+
+    // bind name for the named shared stacks
+    public static final String STACKS_BIND_NAME = "CalculatorStacks";
+
+    // bind name for the replication status/failover object
+    public static final String REPLICATION_BIND_NAME = "CalculatorReplication";
+
     // RMI URL for shared
     public static final String URL = "rmi://localhost:" + REGISTRY_PORT + "/" + BIND_NAME;
 
     // RMI URL for dedicated
     public static final String PRIVATE_URL = "rmi://localhost:" + REGISTRY_PORT + "/" + PRIVATE_BIND_NAME;
 
+    // RMI URL for the off-heap per-client sessions
+    public static final String SESSIONS_URL = "rmi://localhost:" + REGISTRY_PORT + "/" + SESSIONS_BIND_NAME;
+
+    // RMI URL for the named shared stacks
+    public static final String STACKS_URL = "rmi://localhost:" + REGISTRY_PORT + "/" + STACKS_BIND_NAME;
+
+    // RMI URL for replication status and promote()
+    public static final String REPLICATION_URL = "rmi://localhost:" + REGISTRY_PORT + "/" + REPLICATION_BIND_NAME;
+
+    // shared-stack engine, chosen at start with -Dcalculator.engine=locked|lockfree
+    public static final String ENGINE = System.getProperty("calculator.engine", "locked");
+
+    // per-client sessions: idle lease, cap on live sessions and cap on live connect() stacks
+    public static final long SESSION_LEASE_MS = Long.getLong("calculator.session.leaseMs", CalculatorPrivateImpl.DEFAULT_LEASE_MS);
+    public static final int MAX_SESSIONS = Integer.getInteger("calculator.session.max", CalculatorPrivateImpl.DEFAULT_MAX_SESSIONS);
+    public static final int MAX_CONNECTIONS = Integer.getInteger("calculator.session.maxConnections", CalculatorPrivateImpl.DEFAULT_MAX_CONNECTIONS);
+
+    // off-heap sessions (CalculatorSessionsImpl): cap on open sessions and the size of one slab of
+    // values in bytes (a power of two, also the most one session can hold); same lease as above
+    public static final int SLAB_MAX_SESSIONS = Integer.getInteger("calculator.slab.maxSessions", CalculatorSessionsImpl.DEFAULT_MAX_SESSIONS);
+    public static final int SLAB_BYTES = Integer.getInteger("calculator.slab.bytes", SlabStore.DEFAULT_SLAB_BYTES);
+
+    // named stacks: removed after being empty and unused this long; cap on how many exist
+    public static final long STACKS_IDLE_MS = Long.getLong("calculator.stacks.idleMs", CalculatorStacksImpl.DEFAULT_IDLE_MS);
+    public static final int MAX_STACKS = Integer.getInteger("calculator.stacks.max", CalculatorStacksImpl.DEFAULT_MAX_STACKS);
+
+    // binary NIO front end on the same shared stack; -Dcalculator.nio.port=0 turns it off
+    public static final int NIO_PORT = Integer.getInteger("calculator.nio.port", NioCalculatorServer.DEFAULT_PORT);
+
+    // most bytes of input one NIO connection buffers, so also the largest request (pushValues)
+    public static final int NIO_MAX_BUFFERED = Integer.getInteger("calculator.nio.maxBuffered", NioCalculatorServer.DEFAULT_MAX_BUFFERED);
+
+    // threads for the NIO requests that can wait (shared-stack lock, durable write, popOrWait)
+    public static final int NIO_WORKERS = Integer.getInteger("calculator.nio.workers", NioCalculatorServer.DEFAULT_WORKERS);
+
+    // NIO URL for shared
+    public static final String NIO_URL = "nio://localhost:" + NIO_PORT + "/shared";
+
+    // RMI export tuning (TunedSocketFactory), all off by default so stubs carry plain RMI sockets:
+    // -Dcalculator.rmi.tcpNoDelay=true turns Nagle off, the buffers default to the OS ones, and
+    // -Dcalculator.rmi.loopbackOnly=true listens on 127.0.0.1 only (registry and NIO included)
+    public static final boolean RMI_TCP_NODELAY = Boolean.getBoolean("calculator.rmi.tcpNoDelay");
+    public static final int RMI_SEND_BUFFER = Integer.getInteger("calculator.rmi.sendBuffer", 0);
+    public static final int RMI_RECEIVE_BUFFER = Integer.getInteger("calculator.rmi.receiveBuffer", 0);
+    public static final boolean RMI_LOOPBACK_ONLY = Boolean.getBoolean("calculator.rmi.loopbackOnly");
+
+    // Unix domain socket for the NIO front end, for clients on the same host ("" = off)
+    public static final String UNIX_SOCKET = System.getProperty("calculator.unix.socket", "");
+
+    // durable shared stack (locked engine only): write-ahead log directory ("" = in memory only),
+    // fsync policy perop|batched|async, flush interval (batched: gather window, async: msync cadence),
+    // longest time between snapshots and the size of one mapped log segment
+    public static final String WAL_DIR = System.getProperty("calculator.wal.dir", "");
+    public static final String WAL_FSYNC = System.getProperty("calculator.wal.fsync", "batched");
+    public static final long WAL_FLUSH_MS = Long.getLong("calculator.wal.flushMs", WAL_FSYNC.equals("async") ? 100 : 0);
+    public static final long WAL_CHECKPOINT_MS = Long.getLong("calculator.wal.checkpointMs", 60000);
+    public static final int WAL_SEGMENT_BYTES = Integer.getInteger("calculator.wal.segmentBytes", WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+
+    // hot standby (locked engine only): a primary ships the shared stack's mutations to replicas on
+    // 127.0.0.1:calculator.replication.port; -Dcalculator.replication.primary=host:port starts this
+    // server as a read-only replica of that primary (it serves replication.port itself once promoted)
+    public static final int REPLICATION_PORT = Integer.getInteger("calculator.replication.port", 0);
+    public static final String REPLICATION_PRIMARY = System.getProperty("calculator.replication.primary", "");
+
+    // stack folds over at least this many values (large pushValues batches, BigInteger lcm)
+    // run on the common ForkJoinPool; 0 keeps them on the calling thread
+    public static final int PARALLEL_THRESHOLD = Integer.getInteger("calculator.parallel.threshold", ParallelFold.DEFAULT_THRESHOLD);
+
+    // widest exact pushOperation result (lcm, sum, product beyond a long) in bits; wider ones are refused
+    public static final int WIDE_MAX_BITS = Integer.getInteger("calculator.wide.maxBits", IntMath.DEFAULT_MAX_WIDE_BITS);
+
+    // extra pushOperation operators, "name=ReducerClass,...", registered before anything is bound
+    public static final String OPERATORS = System.getProperty("calculator.operators", "");
+
+    // backpressure (Backpressure): most values on one stack (0 = no limit), per-client token bucket
+    // in calls/s (0 = off) and its burst (0 = one second's worth), and most callers queued for the
+    // lock of one shared stack before more are refused (0 = no limit)
+    public static final int MAX_DEPTH = Integer.getInteger("calculator.maxDepth", Backpressure.DEFAULT_MAX_DEPTH);
+    public static final int RATE_PER_CLIENT = Integer.getInteger("calculator.rate.perClient", 0);
+    public static final int RATE_BURST = Integer.getInteger("calculator.rate.burst", 0);
+    public static final int MAX_LOCK_QUEUE = Integer.getInteger("calculator.lock.maxQueue", 0);
+
+    // delayPopAsync pops waiting for their timer or delivery before more are refused
+    public static final int MAX_DELAYED_POPS = Integer.getInteger("calculator.delay.maxPending", DelayScheduler.DEFAULT_MAX_PENDING);
+
+    // cluster mode (ClusterRouter): announce the named stacks as node calculator.cluster.node
+    // (default node-<registry port>) in the registry at host:port ("" = standalone)
+    public static final String CLUSTER_REGISTRY = System.getProperty("calculator.cluster.registry", "");
+    public static final String CLUSTER_NODE = System.getProperty("calculator.cluster.node", "node-" + REGISTRY_PORT);
+
     public static void main(String[] args) {
         try{
+            TunedSocketFactory sockets = rmiSocketFactory();
+            if (sockets != null) System.out.println("RMI objects exported with " + sockets);
+
             try{
-                LocateRegistry.createRegistry(REGISTRY_PORT);
+                // clients reach the registry with plain sockets; only where it listens follows the factory
+                LocateRegistry.createRegistry(REGISTRY_PORT, null, sockets);
                 System.out.println("RMI registry created on the port " + REGISTRY_PORT);
             } catch (Exception e) {
                 System.out.println("Registry may already be running: "+ e.getMessage());
             }
 
+            ParallelFold.setThreshold(PARALLEL_THRESHOLD);
+            IntMath.setMaxWideBits(WIDE_MAX_BITS);
+            Operators.registerAll(OPERATORS);
+            Backpressure.configure(MAX_DEPTH, RATE_PER_CLIENT, RATE_BURST, MAX_LOCK_QUEUE);
+            DelayScheduler.setMaxPending(MAX_DELAYED_POPS);
+
+            // optional write-ahead log and replication, both journals of the locked shared stack
+            WriteAheadLog wal = openWriteAheadLog();
+            ReplicationPrimary primary = REPLICATION_PORT > 0
+                    ? new ReplicationPrimary(REPLICATION_PORT, wal, ReplicationPrimary.DEFAULT_QUEUE_FRAMES, 0, sockets, sockets)
+                    : null;
+            StackJournal journal = primary != null ? primary : wal;
+
             // Bind the remote object of the shared stack
-            Calculator shared = new CalculatorImplementation();
+            Calculator shared = newSharedCalculator(ENGINE, sockets, wal, journal);
+            if (!REPLICATION_PRIMARY.isEmpty()) {
+                ReplicationReplica replica = new ReplicationReplica(REPLICATION_PRIMARY, (CalculatorImplementation) shared,
+                        primary, 0, sockets, sockets);
+                replica.start();
+                Naming.rebind(REPLICATION_URL, replica);
+                System.out.println("Standby replica of " + REPLICATION_PRIMARY + ", promote through " + REPLICATION_URL);
+            } else if (primary != null) {
+                primary.start((CalculatorImplementation) shared);
+                Naming.rebind(REPLICATION_URL, primary);
+                System.out.println("Replication primary on 127.0.0.1:" + primary.getListenPort() + ", status at " + REPLICATION_URL);
+            }
             Naming.rebind(URL, shared);
-            System.out.println("Calculator (shared) bound at " + URL);
+            System.out.println("Calculator (shared, " + ENGINE + ") bound at " + URL);
 
             // Bind the remote object of the dedicated stack
-            CalculatorPrivate factory = new CalculatorPrivateImpl();
+            CalculatorPrivate factory = new CalculatorPrivateImpl(SESSION_LEASE_MS, MAX_SESSIONS, MAX_CONNECTIONS, 0, sockets, sockets, shared);
             Naming.rebind(PRIVATE_URL, factory);
             System.out.println("CalculatorPrivate (per-client stacks) bound at " + PRIVATE_URL);
 
+            // Bind the one object behind all off-heap per-client sessions
+            CalculatorSessions sessions = new CalculatorSessionsImpl(SESSION_LEASE_MS, SLAB_MAX_SESSIONS, SLAB_BYTES, 0, sockets, sockets);
+            Naming.rebind(SESSIONS_URL, sessions);
+            System.out.println("CalculatorSessions (off-heap per-client stacks) bound at " + SESSIONS_URL);
+
+            // Bind the factory of named shared stacks, one lock per name
+            CalculatorStacks stacks = new CalculatorStacksImpl(STACKS_IDLE_MS, MAX_STACKS, 0, sockets, sockets);
+            Naming.rebind(STACKS_URL, stacks);
+            System.out.println("CalculatorStacks (named shared stacks) bound at " + STACKS_URL);
+            if (!CLUSTER_REGISTRY.isEmpty()) {
+                joinCluster(stacks);
+            }
+
+            // Same shared stack, second transport
+            if (NIO_PORT > 0) {
+                NioCalculatorServer nio = new NioCalculatorServer(shared, nioAddress(), NIO_MAX_BUFFERED, NIO_WORKERS);
+                nio.start();
+                System.out.println("Calculator (shared + private) over NIO at " + nio.getLocalAddress());
+            }
+            if (!UNIX_SOCKET.isEmpty()) {
+                NioCalculatorServer unix = new NioCalculatorServer(shared, UnixDomainSocketAddress.of(UNIX_SOCKET), NIO_MAX_BUFFERED, NIO_WORKERS);
+                unix.start();
+                System.out.println("Calculator (shared + private) over NIO at unix:" + UNIX_SOCKET);
+            }
+
+            // latency histograms and lock metrics, readable with jconsole/JMX under calculator:type=Metrics
+            CalculatorMetrics.registerAll();
+
             System.out.println("Server is ready");
         } catch (Exception e) {
             System.err.println("Server error: " + e);
             e.printStackTrace();
         }
     }
+
+    // locked: CalculatorImplementation behind a fair ReentrantLock, optionally journaled (write-ahead log, replication)
+    // and starting from what wal (may be null) recovered; lockfree: CalculatorLockFree (Treiber stack)
+    static Calculator newSharedCalculator(String engine, TunedSocketFactory sockets, WriteAheadLog wal, StackJournal journal) throws Exception {
+        if (engine.equals("locked")) {
+            if (journal == null) {
+                return new CalculatorImplementation(0, sockets, sockets);
+            }
+            if (wal == null) {
+                return new CalculatorImplementation(0, sockets, sockets, null, null, journal);
+            }
+            return new CalculatorImplementation(0, sockets, sockets, wal.recovered(), wal.recoveredWide(), journal);
+        }
+        if (journal != null || !REPLICATION_PRIMARY.isEmpty()) {
+            throw new IllegalArgumentException("calculator.wal.* and calculator.replication.* need calculator.engine=locked");
+        }
+        if (engine.equals("lockfree")) {
+            return new CalculatorLockFree(0, sockets, sockets);
+        }
+        throw new IllegalArgumentException("Unknown calculator.engine: " + engine + " (use locked|lockfree)");
+    }
+
+    // Announce the named stacks in the cluster registry, and withdraw them on a normal shutdown
+    static void joinCluster(CalculatorStacks stacks) throws Exception {
+        ClusterRouter.join(CLUSTER_REGISTRY, CLUSTER_NODE, stacks);
+        System.out.println("Cluster node " + CLUSTER_NODE + " joined at " + CLUSTER_REGISTRY);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                ClusterRouter.leave(CLUSTER_REGISTRY, CLUSTER_NODE);
+            }
+        });
+    }
+
+    // the write-ahead log under calculator.wal.dir, already recovered; null when no directory is set
+    static WriteAheadLog openWriteAheadLog() throws Exception {
+        if (WAL_DIR.isEmpty()) {
+            return null;
+        }
+        final WriteAheadLog wal = new WriteAheadLog(Paths.get(WAL_DIR), WriteAheadLog.policy(WAL_FSYNC),
+                WAL_SEGMENT_BYTES, WAL_FLUSH_MS, WAL_CHECKPOINT_MS);
+        int[] recovered = wal.recovered();
+        System.out.println("Write-ahead log " + WAL_DIR + " (" + WAL_FSYNC + "): recovered " + recovered.length + " values");
+        // msync the tail on a normal shutdown, which matters for async
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    wal.close();
+                } catch (Exception e) {
+                    System.err.println("Write-ahead log close failed: " + e);
+                }
+            }
+        });
+        return wal;
+    }
+
+    // the NIO listener follows -Dcalculator.rmi.loopbackOnly like the RMI objects
+    static InetSocketAddress nioAddress() {
+        return RMI_LOOPBACK_ONLY ? new InetSocketAddress(InetAddress.getLoopbackAddress(), NIO_PORT) : new InetSocketAddress(NIO_PORT);
+    }
+
+    // null (plain RMI sockets) unless some tuning is switched on
+    static TunedSocketFactory rmiSocketFactory() {
+        if (!RMI_TCP_NODELAY && RMI_SEND_BUFFER == 0 && RMI_RECEIVE_BUFFER == 0 && !RMI_LOOPBACK_ONLY) {
+            return null;
+        }
+        if (RMI_LOOPBACK_ONLY && System.getProperty("java.rmi.server.hostname") == null) {
+            // stubs must point at the address the server actually listens on
+            System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+        }
+        return new TunedSocketFactory(RMI_TCP_NODELAY, RMI_SEND_BUFFER, RMI_RECEIVE_BUFFER, RMI_LOOPBACK_ONLY);
+    }
 }
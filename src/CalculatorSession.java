@@ -0,0 +1,22 @@
+import java.io.Serializable;
+
+// What openSession() hands back: the private Calculator plus the id to reconnect to it later
+public class CalculatorSession implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final Calculator calculator;
+
+    public CalculatorSession(String id, Calculator calculator) {
+        this.id = id;
+        this.calculator = calculator;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Calculator getCalculator() {
+        return calculator;
+    }
+}
@@ -0,0 +1,53 @@
+import java.math.BigInteger;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// One exported object for many per-client stacks kept off-heap (CalculatorSessionsImpl): every
+// call names its session by id and by the random key it was opened with, so one client cannot
+// reach another's session by guessing. open() hands back the session as a Calculator, so client
+// code does not see either; the methods below are what that Calculator calls.
+public interface CalculatorSessions extends Remote {
+    //open a new session with an empty stack, as a Calculator that sends its id along
+    SessionCalculator open() throws RemoteException;
+
+    //close a session right away instead of waiting for its lease to expire
+    boolean close(long id, long key) throws RemoteException;
+
+    //number of open sessions
+    int liveSessions() throws RemoteException;
+
+    //number of sessions closed because they were idle for a whole lease
+    long evictedSessions() throws RemoteException;
+
+    //direct memory taken by the slabs holding the values of all sessions
+    long offHeapBytes() throws RemoteException;
+
+    // the Calculator methods, on the stack of session id opened with key
+    void pushValue(long id, long key, int val) throws RemoteException;
+
+    void pushValues(long id, long key, int[] vals) throws RemoteException;
+
+    void pushOperation(long id, long key, String operator) throws RemoteException;
+
+    void pushOperation(long id, long key, int opcode) throws RemoteException;
+
+    void pushOperation(long id, long key, int opcode, int arg) throws RemoteException;
+
+    int pop(long id, long key) throws RemoteException;
+
+    int[] popN(long id, long key, int n) throws RemoteException;
+
+    int[] drain(long id, long key) throws RemoteException;
+
+    boolean isEmpty(long id, long key) throws RemoteException;
+
+    BigInteger popWide(long id, long key) throws RemoteException;
+
+    Integer popOrWait(long id, long key, long timeoutMs) throws RemoteException;
+
+    Integer tryPop(long id, long key) throws RemoteException;
+
+    Integer peek(long id, long key) throws RemoteException;
+
+    int size(long id, long key) throws RemoteException;
+}
@@ -0,0 +1,388 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-client stacks for very many small sessions. Unlike CalculatorPrivateImpl, a session is not
+// an exported CalculatorPerClient with an IntStack of its own: all values sit in one off-heap
+// SlabStore, and this single exported object serves every session by id and key. A session costs
+// 4 bytes per value plus a header of about 32 bytes, and the garbage collector does not see it at all.
+// Sessions unused for a whole lease are closed by a sweeper, as SessionManager does.
+//
+// Values are ints. A pushOperation result beyond int is kept exact as the session's wide bottom,
+// as in IntStack: a placeholder in the slab plus the BigInteger in a map that only holds the few
+// sessions that have one. pushOperation folds over a copy of the values, O(n) in the stack size,
+// which for small sessions costs less than keeping running checkpoints for each of them.
+public class CalculatorSessionsImpl extends UnicastRemoteObject implements CalculatorSessions {
+    public static final long DEFAULT_LEASE_MS = CalculatorPrivateImpl.DEFAULT_LEASE_MS;
+    public static final int DEFAULT_MAX_SESSIONS = 1 << 20;
+
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.OFF_HEAP;
+
+    private final SlabStore store;
+    private final int maxSessions;
+    private final ConcurrentHashMap<Long, BigInteger> wide = new ConcurrentHashMap<Long, BigInteger>();
+    private final AtomicLong evicted = new AtomicLong();
+    private final ScheduledExecutorService sweeper;
+
+    // popOrWait callers; pushes only notify while there are any
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public CalculatorSessionsImpl() throws RemoteException {
+        this(DEFAULT_LEASE_MS, DEFAULT_MAX_SESSIONS, SlabStore.DEFAULT_SLAB_BYTES, 0, null, null);
+    }
+
+    // values in slabs of slabBytes (a power of two, also the most one session can hold, in bytes);
+    // this object is exported on the given port through the given socket factories
+    public CalculatorSessionsImpl(long leaseMillis, int maxSessions, int slabBytes, int port,
+                                  RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+        super(port, csf, ssf);
+        if (leaseMillis <= 0) throw new IllegalArgumentException("lease must be positive: " + leaseMillis);
+        this.store = new SlabStore(slabBytes, maxSessions);
+        this.maxSessions = maxSessions;
+
+        // sweep a few times per lease, so an idle session lives at most ~1.25 leases
+        final long leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        long period = Math.max(1, leaseMillis / 4);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "offheap-session-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                for (long id : store.closeIdle(leaseNanos)) {
+                    closed(id);
+                    evicted.incrementAndGet();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public SessionCalculator open() throws RemoteException {
+        Backpressure.admit(METRICS, null);
+        long id = store.open();
+        if (id < 0) {
+            throw new RemoteException("too many live sessions (max " + maxSessions + ")");
+        }
+        long key;
+        synchronized (store.lock(id)) {
+            key = store.key(id);
+        }
+        // marshalled by value; this object goes along as its stub
+        return new SessionCalculator(this, id, key);
+    }
+
+    public boolean close(long id, long key) throws RemoteException {
+        synchronized (store.lock(id)) {
+            if (!store.isOpen(id, key) || !store.close(id)) return false;
+        }
+        closed(id);
+        return true;
+    }
+
+    public int liveSessions() throws RemoteException {
+        return store.openStacks();
+    }
+
+    public long evictedSessions() throws RemoteException {
+        return evicted.get();
+    }
+
+    public long offHeapBytes() throws RemoteException {
+        return store.offHeapBytes();
+    }
+
+    public void pushValue(long id, long key, int val) throws RemoteException {
+        long start = admit(id);
+        try {
+            Object lock = store.lock(id);
+            synchronized (lock) {
+                check(id, key);
+                room(id, 1);
+                store.push(id, val);
+                if (waiting.get() > 0) lock.notifyAll();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUE, start);
+        }
+    }
+
+    public void pushValues(long id, long key, int[] vals) throws RemoteException {
+        long start = admit(id);
+        try {
+            if (vals == null) throw new RemoteException("pushValues with null");
+            Object lock = store.lock(id);
+            synchronized (lock) {
+                check(id, key);
+                room(id, vals.length);
+                store.pushAll(id, vals);
+                if (waiting.get() > 0 && vals.length > 0) lock.notifyAll();
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_VALUES, start);
+        }
+    }
+
+    public void pushOperation(long id, long key, String operator) throws RemoteException {
+        long start = admit(id);
+        try {
+            int code = Operators.resolve(operator);
+            collapse(id, key, code, Operators.argument(code, operator));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPERATION, start);
+        }
+    }
+
+    public void pushOperation(long id, long key, int opcode) throws RemoteException {
+        long start = admit(id);
+        try {
+            collapse(id, key, Operators.check(opcode), 0);
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    // counted with pushOperation(id, int)
+    public void pushOperation(long id, long key, int opcode, int arg) throws RemoteException {
+        long start = admit(id);
+        try {
+            collapse(id, key, opcode, Operators.check(opcode, arg));
+        } finally {
+            METRICS.record(CalculatorMetrics.PUSH_OPCODE, start);
+        }
+    }
+
+    private void collapse(long id, long key, int code, int arg) throws RemoteException {
+        synchronized (store.lock(id)) {
+            check(id, key);
+            int size = store.size(id);
+            if (size == 0) {
+                throw new RemoteException("pushOperation on empty stack");
+            }
+
+            IntStack values = new IntStack(size);
+            values.restore(store.toArray(id), wide.get(id));
+            try {
+                long result = values.reduce(code, arg);
+                store.clear(id);
+                if (IntMath.fitsInt(result)) {
+                    wide.remove(id);
+                    store.push(id, (int) result);
+                } else {
+                    BigInteger big = (result == IntStack.BIG) ? values.reduceBig(code, arg) : BigInteger.valueOf(result);
+                    if (big.bitLength() < 32) {
+                        wide.remove(id);
+                        store.push(id, big.intValue());
+                    } else {
+                        wide.put(id, big);
+                        store.push(id, 0);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // kth beyond the stack size or a result wider than IntMath.maxWideBits; nothing was changed
+                throw new RemoteException(e.getMessage());
+            }
+        }
+    }
+
+    public int pop(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                if (store.size(id) == 0) throw new RemoteException("pop on empty stack");
+                return popInt(id, "pop");
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP, start);
+        }
+    }
+
+    public Integer popOrWait(long id, long key, long timeoutMs) throws RemoteException {
+        long start = admit(id);
+        try {
+            Object lock = store.lock(id);
+            synchronized (lock) {
+                check(id, key);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+                waiting.incrementAndGet();
+                try {
+                    while (store.size(id) == 0) {
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos <= 0) return null;
+                        // woken by any push on this lock stripe, or by a close
+                        TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+                        check(id, key);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("popOrWait interrupted", e);
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                return popInt(id, "popOrWait");
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_OR_WAIT, start);
+        }
+    }
+
+    public int[] popN(long id, long key, int n) throws RemoteException {
+        long start = admit(id);
+        try {
+            if (n < 0) throw new RemoteException("popN with negative count: " + n);
+            synchronized (store.lock(id)) {
+                check(id, key);
+                int size = store.size(id);
+                if (size < n) throw new RemoteException("popN(" + n + ") on stack of size " + size);
+                if (n > 0 && n == size && wide.containsKey(id)) throw new RemoteException("popN: the bottom value does not fit in an int, use popWide() for it");
+                return store.popN(id, n);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_N, start);
+        }
+    }
+
+    public int[] drain(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                if (wide.containsKey(id)) throw new RemoteException("drain: the bottom value does not fit in an int, use popWide() for it");
+                return store.popN(id, store.size(id));
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.DRAIN, start);
+        }
+    }
+
+    public BigInteger popWide(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                if (store.size(id) == 0) throw new RemoteException("popWide on empty stack");
+                int v = store.pop(id);
+                if (store.size(id) == 0) {
+                    BigInteger w = wide.remove(id);
+                    if (w != null) return w;
+                }
+                return BigInteger.valueOf(v);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.POP_WIDE, start);
+        }
+    }
+
+    public Integer tryPop(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                if (store.size(id) == 0) return null;
+                return popInt(id, "tryPop");
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.TRY_POP, start);
+        }
+    }
+
+    public Integer peek(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                if (store.size(id) == 0) return null;
+                checkTop(id, "peek");
+                return store.peek(id);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.PEEK, start);
+        }
+    }
+
+    public int size(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                return store.size(id);
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.SIZE, start);
+        }
+    }
+
+    public boolean isEmpty(long id, long key) throws RemoteException {
+        long start = admit(id);
+        try {
+            synchronized (store.lock(id)) {
+                check(id, key);
+                return store.size(id) == 0;
+            }
+        } finally {
+            METRICS.record(CalculatorMetrics.IS_EMPTY, start);
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    // pop a non-empty stack whose top must fit in an int
+    private int popInt(long id, String what) throws RemoteException {
+        checkTop(id, what);
+        return store.pop(id);
+    }
+
+    private void checkTop(long id, String what) throws RemoteException {
+        if (store.size(id) == 1 && wide.containsKey(id)) {
+            throw new RemoteException(what + ": the top value " + wide.get(id) + " does not fit in an int, use popWide()");
+        }
+    }
+
+    // Refuse a push past maxDepth (Backpressure) or past what one slab holds
+    private void room(long id, int adding) throws RemoteException {
+        int size = store.size(id);
+        Backpressure.checkDepth(METRICS, size, adding);
+        if ((long) size + adding > store.maxValues()) {
+            throw new RemoteException("an off-heap session holds at most " + store.maxValues() + " values");
+        }
+    }
+
+    // Fail calls on a closed or evicted session, or with the wrong key, as SessionManager.reconnect does
+    private void check(long id, long key) throws RemoteException {
+        if (!store.isOpen(id, key)) {
+            throw new RemoteException("session " + id + " is unknown or has expired");
+        }
+        store.touch(id);
+    }
+
+    // after store.close(id): drop its wide bottom and wake its popOrWait callers
+    private void closed(long id) {
+        wide.remove(id);
+        if (waiting.get() > 0) {
+            Object lock = store.lock(id);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // rate limited per session
+    private static long admit(long id) throws OverloadedException {
+        Backpressure.admit(METRICS, id);
+        return System.nanoTime();
+    }
+}
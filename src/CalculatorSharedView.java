@@ -0,0 +1,165 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+
+// The shared stack through a stub of one client's own, handed out by
+// CalculatorPrivate.connectShared(): every call goes to the shared Calculator, charged to this
+// view's rate limit bucket instead of the one bucket of the caller's host, so clients on the
+// same host are limited apart. It holds no values, so it is left to distributed GC.
+public class CalculatorSharedView extends UnicastRemoteObject implements Calculator {
+    private final Calculator shared;
+
+    // this client's rate limit (Backpressure), null while off
+    private final Backpressure.Bucket bucket = Backpressure.newBucket();
+
+    public CalculatorSharedView(Calculator shared, int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException{
+        super(port, csf, ssf);
+        this.shared = shared;
+    }
+
+    public void pushValue(int val) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.pushValue(val);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public void pushValues(int[] vals) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.pushValues(vals);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public void pushOperation(String operator) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.pushOperation(operator);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public void pushOperation(int opcode) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.pushOperation(opcode);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public void pushOperation(int opcode, int arg) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.pushOperation(opcode, arg);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public int pop() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.pop();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public int[] popN(int n) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.popN(n);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public int[] drain() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.drain();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public boolean isEmpty() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.isEmpty();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public int delayPop(int millis) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.delayPop(millis);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            shared.delayPopAsync(millis, callback);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public BigInteger popWide() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.popWide();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public Integer popOrWait(long timeoutMs) throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.popOrWait(timeoutMs);
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public Integer tryPop() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.tryPop();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public Integer peek() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.peek();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+
+    public int size() throws RemoteException{
+        Backpressure.enter(bucket);
+        try {
+            return shared.size();
+        } finally {
+            Backpressure.exit(bucket);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Many named shared stacks in one server. Everyone who asks for the same name shares that
+// stack; different names never contend with each other.
+public interface CalculatorStacks extends Remote {
+
+    // the stack with this name, created on first use
+    Calculator stack(String name) throws RemoteException;
+
+    // drop the stack and everything on it; stubs that still point at it fail with NoSuchObjectException
+    boolean removeStack(String name) throws RemoteException;
+
+    // names of the stacks that currently exist
+    String[] stackNames() throws RemoteException;
+}
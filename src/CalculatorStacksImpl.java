@@ -0,0 +1,161 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+// Named shared stacks: each name gets its own CalculatorImplementation, and with it its own
+// fair lock, so independent workloads run in parallel instead of queueing behind one lock.
+// Stacks are created on first lookup; a sweeper removes stacks that are empty and have not
+// been used for a whole idle period, and removeStack drops one explicitly. A lookup that finds
+// a stack the sweeper has retired but not yet removed replaces it with a new one, and the cap
+// is reserved in the same atomic step as the insert. Each name has CalculatorMetrics of its own
+// (kept by a replacement), registered over JMX while the name exists.
+public class CalculatorStacksImpl extends UnicastRemoteObject implements CalculatorStacks {
+    public static final long DEFAULT_IDLE_MS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_STACKS = 10000;
+
+    private final ConcurrentHashMap<String, CalculatorImplementation> stacks = new ConcurrentHashMap<String, CalculatorImplementation>();
+    // names holding a slot of maxStacks; a retired stack keeps its slot until removed or replaced
+    private final AtomicInteger count = new AtomicInteger();
+    private final long idleNanos;
+    private final int maxStacks;
+    private final int port;
+    private final RMIClientSocketFactory csf;
+    private final RMIServerSocketFactory ssf;
+    private final ScheduledExecutorService sweeper;
+
+    public CalculatorStacksImpl() throws RemoteException {
+        this(DEFAULT_IDLE_MS, DEFAULT_MAX_STACKS, 0, null, null);
+    }
+
+    // this object and every named stack are exported through the given socket factories
+    public CalculatorStacksImpl(long idleMillis, int maxStacks, int port,
+                                RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+        super(port, csf, ssf);
+        if (idleMillis <= 0) throw new IllegalArgumentException("idle time must be positive: " + idleMillis);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.maxStacks = maxStacks;
+        this.port = port;
+        this.csf = csf;
+        this.ssf = ssf;
+
+        long period = Math.max(1, idleMillis / 4);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stack-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                removeIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Calculator stack(String name) throws RemoteException {
+        if (name == null || name.isEmpty()) {
+            throw new RemoteException("stack name must not be empty");
+        }
+        CalculatorImplementation calc = stacks.get(name);
+        if (calc != null && !calc.isRetired()) return calc;
+
+        // create or replace under the map's lock for this name, so exactly one caller does it
+        final RemoteException[] failure = new RemoteException[1];
+        final CalculatorImplementation[] replaced = new CalculatorImplementation[1];
+        final boolean[] added = new boolean[1];
+        calc = stacks.compute(name, new BiFunction<String, CalculatorImplementation, CalculatorImplementation>() {
+            public CalculatorImplementation apply(String key, CalculatorImplementation old) {
+                if (old != null && !old.isRetired()) return old;
+                if (old == null && count.incrementAndGet() > maxStacks) {
+                    count.decrementAndGet();
+                    failure[0] = new RemoteException("too many named stacks (max " + maxStacks + ")");
+                    return null;
+                }
+                try {
+                    CalculatorMetrics metrics = old != null ? old.metrics() : CalculatorMetrics.forStack(key);
+                    CalculatorImplementation created = new CalculatorImplementation(port, csf, ssf, metrics);
+                    // the retired one's slot and metrics go to its replacement; removeIdle no longer finds it
+                    replaced[0] = old;
+                    added[0] = old == null;
+                    return created;
+                } catch (RemoteException e) {
+                    if (old == null) count.decrementAndGet();
+                    failure[0] = e;
+                    return old;
+                }
+            }
+        });
+        if (replaced[0] != null) unexport(replaced[0]);
+        if (failure[0] != null) throw failure[0];
+        if (added[0]) register(name, calc.metrics());
+        return calc;
+    }
+
+    public boolean removeStack(String name) throws RemoteException {
+        CalculatorImplementation calc = stacks.remove(name);
+        if (calc == null) return false;
+        count.decrementAndGet();
+        calc.retire();
+        unexport(calc);
+        unregister(name, calc.metrics());
+        return true;
+    }
+
+    public String[] stackNames() throws RemoteException {
+        return stacks.keySet().toArray(new String[0]);
+    }
+
+    public int stackCount() {
+        return stacks.size();
+    }
+
+    void removeIdle() {
+        Iterator<Map.Entry<String, CalculatorImplementation>> it = stacks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CalculatorImplementation> e = it.next();
+            CalculatorImplementation calc = e.getValue();
+            if (calc.retireIfIdle(idleNanos) && stacks.remove(e.getKey(), calc)) {
+                count.decrementAndGet();
+                unexport(calc);
+                unregister(e.getKey(), calc.metrics());
+            }
+        }
+    }
+
+    // JMX trouble costs the stack its MBean, not the call that created or removed it
+    private static void register(String name, CalculatorMetrics metrics) {
+        try {
+            metrics.register();
+        } catch (Exception e) {
+            System.err.println("Metrics of stack " + name + " not registered: " + e);
+        }
+    }
+
+    private static void unregister(String name, CalculatorMetrics metrics) {
+        try {
+            metrics.unregister();
+        } catch (Exception e) {
+            System.err.println("Metrics of stack " + name + " not unregistered: " + e);
+        }
+    }
+
+    private static void unexport(CalculatorImplementation calc) {
+        try {
+            UnicastRemoteObject.unexportObject(calc, true);
+        } catch (NoSuchObjectException ignored) {
+            // already gone
+        }
+    }
+}
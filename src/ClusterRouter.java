@@ -0,0 +1,311 @@
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Cluster mode for named stacks. Several CalculatorServer processes started with
+// -Dcalculator.cluster.registry=host:port bind their CalculatorStacks there as
+// "CalculatorCluster/<node>" (join); a ClusterRouter lists those entries and places each node
+// at virtualNodes points of a 64-bit hash ring. A stack belongs to the first node point at or
+// after the hash of its name, so every router agrees on the owner without talking to the others,
+// and a node joining or leaving only moves the names next to its own points (about 1/n of them).
+//
+// stack(name) returns a Calculator that finds the owner on every call, so it follows the ring
+// when the node set changes. The ring is refreshed from the registry every refreshMs, and at once
+// when a node stops answering: that node is left out until its entry is bound to a new process.
+// Values are not moved between nodes: a stack whose owner changed starts empty on the new owner,
+// and one left behind on the old owner is removed by its idle sweeper.
+public class ClusterRouter implements Closeable {
+    public static final String PREFIX = "CalculatorCluster/";
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final long DEFAULT_REFRESH_MS = 2000;
+
+    private final Registry registry;
+    private final String where;
+    private final int virtualNodes;
+    private final ScheduledExecutorService refresher;
+    private volatile Ring ring;
+
+    // node stubs that stopped answering; skipped until their name is bound to another stub
+    private final Set<Remote> dead = ConcurrentHashMap.newKeySet();
+
+    public ClusterRouter(String host, int port) throws RemoteException {
+        this(host, port, DEFAULT_VIRTUAL_NODES, DEFAULT_REFRESH_MS);
+    }
+
+    public ClusterRouter(String host, int port, int virtualNodes, long refreshMs) throws RemoteException {
+        if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes must be >= 1, got " + virtualNodes);
+        this.registry = LocateRegistry.getRegistry(host, port);
+        this.where = host + ":" + port;
+        this.virtualNodes = virtualNodes;
+        refresh();
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cluster-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RemoteException e) {
+                    // registry unreachable for now; keep routing on the last ring
+                }
+            }
+        }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    // "host:port" of a cluster registry
+    public static ClusterRouter connect(String registry) throws RemoteException {
+        int colon = registry.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("cluster registry must be host:port, got " + registry);
+        return new ClusterRouter(registry.substring(0, colon), Integer.parseInt(registry.substring(colon + 1)));
+    }
+
+    // Server side: announce stacks as node in the cluster registry at "host:port"
+    public static void join(String registry, String node, CalculatorStacks stacks) throws Exception {
+        int colon = registry.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("cluster registry must be host:port, got " + registry);
+        Registry r = LocateRegistry.getRegistry(registry.substring(0, colon), Integer.parseInt(registry.substring(colon + 1)));
+        r.rebind(PREFIX + node, stacks);
+    }
+
+    // Server side: withdraw node, e.g. on shutdown; false if the registry is gone already
+    public static boolean leave(String registry, String node) {
+        int colon = registry.lastIndexOf(':');
+        try {
+            LocateRegistry.getRegistry(registry.substring(0, colon), Integer.parseInt(registry.substring(colon + 1)))
+                    .unbind(PREFIX + node);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // The named stack on whichever node owns it at the time of each call
+    public Calculator stack(final String name) throws RemoteException {
+        if (name == null || name.isEmpty()) {
+            throw new RemoteException("stack name must not be empty");
+        }
+        Object proxy = Proxy.newProxyInstance(Calculator.class.getClassLoader(), new Class<?>[]{Calculator.class}, new InvocationHandler() {
+            public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    if (method.getName().equals("equals")) return self == args[0];
+                    if (method.getName().equals("hashCode")) return System.identityHashCode(self);
+                    return "ClusterRouter stack " + name + " at " + where;
+                }
+                // a stale reference means the call never reached the stack, so one retry is safe
+                try {
+                    return call(name, method, args);
+                } catch (StaleNode stale) {
+                    // the ring has been updated; go to the owner now
+                }
+                try {
+                    return call(name, method, args);
+                } catch (StaleNode stale) {
+                    throw stale.failure;
+                }
+            }
+        });
+        return (Calculator) proxy;
+    }
+
+    public boolean removeStack(String name) throws RemoteException {
+        Node node = owner(name);
+        node.cache.remove(name);
+        return node.stacks.removeStack(name);
+    }
+
+    // id of the node that owns name now
+    public String ownerOf(String name) throws RemoteException {
+        return owner(name).id;
+    }
+
+    // ids of the nodes on the ring, sorted
+    public String[] nodes() {
+        Node[] nodes = ring.nodes;
+        String[] ids = new String[nodes.length];
+        for (int i = 0; i < nodes.length; i++) ids[i] = nodes[i].id;
+        return ids;
+    }
+
+    // Rebuild the ring from the registry; nodes whose stub did not change keep their cached stacks
+    public synchronized void refresh() throws RemoteException {
+        Map<String, Node> previous = new HashMap<String, Node>();
+        if (ring != null) {
+            for (Node n : ring.nodes) previous.put(n.id, n);
+        }
+        List<Node> live = new ArrayList<Node>();
+        Set<Remote> bound = new HashSet<Remote>();
+        for (String entry : registry.list()) {
+            if (!entry.startsWith(PREFIX)) continue;
+            Remote stub;
+            try {
+                stub = registry.lookup(entry);
+            } catch (NotBoundException e) {
+                continue;
+            }
+            if (!(stub instanceof CalculatorStacks)) continue;
+            bound.add(stub);
+            if (dead.contains(stub)) continue;
+            String id = entry.substring(PREFIX.length());
+            Node prev = previous.get(id);
+            live.add(prev != null && prev.stacks.equals(stub) ? prev : new Node(id, (CalculatorStacks) stub));
+        }
+        dead.retainAll(bound);
+        ring = new Ring(live, virtualNodes);
+    }
+
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private Object call(String name, Method method, Object[] args) throws Throwable {
+        Node node = owner(name);
+        Calculator stub;
+        try {
+            stub = node.stack(name);
+        } catch (RemoteException e) {
+            if (!StubCache.isStale(e)) throw e;
+            nodeDown(node);
+            throw new StaleNode(e);
+        }
+        try {
+            return method.invoke(stub, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (!(cause instanceof RemoteException) || !StubCache.isStale((RemoteException) cause)) {
+                throw cause;
+            }
+            node.cache.remove(name, stub);
+            // NoSuchObjectException: the stack was removed or swept on a live node; else the node is gone
+            if (!(cause instanceof NoSuchObjectException)) {
+                nodeDown(node);
+            }
+            throw new StaleNode((RemoteException) cause);
+        }
+    }
+
+    private Node owner(String name) throws RemoteException {
+        Node node = ring.owner(hash(name));
+        if (node == null) {
+            throw new RemoteException("no cluster nodes registered at " + where);
+        }
+        return node;
+    }
+
+    private void nodeDown(Node node) throws RemoteException {
+        dead.add(node.stacks);
+        refresh();
+    }
+
+    // 64-bit FNV-1a, then the murmur3 finalizer to spread it over the whole ring
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // One server process and the stubs of its stacks looked up so far
+    private static final class Node {
+        final String id;
+        final CalculatorStacks stacks;
+        final ConcurrentHashMap<String, Calculator> cache = new ConcurrentHashMap<String, Calculator>();
+
+        Node(String id, CalculatorStacks stacks) {
+            this.id = id;
+            this.stacks = stacks;
+        }
+
+        Calculator stack(String name) throws RemoteException {
+            Calculator stub = cache.get(name);
+            if (stub == null) {
+                stub = stacks.stack(name);
+                cache.put(name, stub);
+            }
+            return stub;
+        }
+    }
+
+    // One immutable generation of the ring: point hashes in order and the node at each
+    private static final class Ring {
+        final Node[] nodes;
+        final long[] points;
+        final Node[] owners;
+
+        Ring(List<Node> live, int virtualNodes) {
+            nodes = live.toArray(new Node[0]);
+            Arrays.sort(nodes, new Comparator<Node>() {
+                public int compare(Node a, Node b) {
+                    return a.id.compareTo(b.id);
+                }
+            });
+            TreeMap<Long, Node> byPoint = new TreeMap<Long, Node>();
+            for (Node n : nodes) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    // on a (very unlikely) collision the node first in id order keeps the point
+                    Long point = hash(n.id + "#" + v);
+                    if (!byPoint.containsKey(point)) byPoint.put(point, n);
+                }
+            }
+            points = new long[byPoint.size()];
+            owners = new Node[byPoint.size()];
+            int i = 0;
+            for (Map.Entry<Long, Node> e : byPoint.entrySet()) {
+                points[i] = e.getKey();
+                owners[i++] = e.getValue();
+            }
+        }
+
+        // first point at or after h, wrapping around; null on an empty ring
+        Node owner(long h) {
+            if (points.length == 0) return null;
+            int i = Arrays.binarySearch(points, h);
+            if (i < 0) i = -i - 1;
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+
+    // internal: the call failed on a stale reference and the ring has been updated
+    private static final class StaleNode extends Exception {
+        private static final long serialVersionUID = 1L;
+        final RemoteException failure;
+
+        StaleNode(RemoteException failure) {
+            super(null, null, false, false);
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Exported by the client and passed to delayPopAsync; the server calls back once the delay has passed
+public interface DelayPopCallback extends Remote {
+
+    // the value popped after the delay
+    void popped(int val) throws RemoteException;
+
+    // the pop failed (e.g. the stack was empty when the timer fired)
+    void failed(String reason) throws RemoteException;
+}
@@ -0,0 +1,42 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CompletableFuture;
+
+// Client-side helper for delayPopAsync: exports itself as the callback and completes a future
+// with the popped value. It unexports itself once the result has arrived.
+public class DelayPopFuture extends CompletableFuture<Integer> implements DelayPopCallback {
+
+    private DelayPopFuture() {
+    }
+
+    // Ask the server for a delayed pop without keeping a thread blocked on either side
+    public static DelayPopFuture request(Calculator cal, int millis) throws RemoteException {
+        DelayPopFuture future = new DelayPopFuture();
+        DelayPopCallback stub = (DelayPopCallback) UnicastRemoteObject.exportObject(future, 0);
+        try {
+            cal.delayPopAsync(millis, stub);
+        } catch (RemoteException e) {
+            future.unexport();
+            throw e;
+        }
+        return future;
+    }
+
+    public void popped(int val) {
+        complete(val);
+        unexport();
+    }
+
+    public void failed(String reason) {
+        completeExceptionally(new RemoteException(reason));
+        unexport();
+    }
+
+    private void unexport() {
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException ignored) {
+        }
+    }
+}
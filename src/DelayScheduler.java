@@ -0,0 +1,105 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared timer behind delayPopAsync: a pending delayed pop is one timer entry, not one sleeping RMI thread.
+// The timer thread only hands due pops to a small delivery pool, which does the pop (it may wait
+// for the calculator's fair lock) and the callback (a remote call), so one slow stack or client
+// does not hold up the other timers. At most maxPending pops wait for their timer or delivery;
+// more are refused with an OverloadedException.
+//
+// Delivery is at most once. Only a callback that failed before reaching the client (StubCache.isStale:
+// not exported, no connection) gets its value pushed back, on top of the stack. Any other failure
+// may have come after the client took the value (DelayPopFuture completes, then unexports itself),
+// so the value is logged and dropped rather than risk handing it out twice.
+public final class DelayScheduler {
+    private static final int DELIVERY_THREADS = 4;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(daemon("delay-pop-timer"));
+    private static final ExecutorService DELIVERY =
+            Executors.newFixedThreadPool(DELIVERY_THREADS, daemon("delay-pop-delivery"));
+
+    private static final AtomicInteger PENDING = new AtomicInteger();
+    private static volatile int maxPending = DEFAULT_MAX_PENDING;
+
+    private DelayScheduler() {
+    }
+
+    public static void setMaxPending(int max) {
+        if (max < 1) throw new IllegalArgumentException("maxPending must be >= 1, got " + max);
+        maxPending = max;
+    }
+
+    // After millis, pop from the calculator and report the result to the callback; refused at
+    // once while maxPending pops are still waiting
+    public static void schedule(final Calculator calculator, int millis, final DelayPopCallback callback) throws OverloadedException {
+        if (PENDING.incrementAndGet() > maxPending) {
+            PENDING.decrementAndGet();
+            throw new OverloadedException("too many delayed pops pending (max " + maxPending + ")");
+        }
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                DELIVERY.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            popAndDeliver(calculator, callback);
+                        } finally {
+                            PENDING.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }, Math.max(0, millis), TimeUnit.MILLISECONDS);
+    }
+
+    // number of delayed pops not delivered yet
+    public static int pending() {
+        return PENDING.get();
+    }
+
+    // On a delivery thread: pop, then report the value or the failure
+    private static void popAndDeliver(Calculator calculator, DelayPopCallback callback) {
+        int val;
+        try {
+            val = calculator.pop();
+        } catch (RemoteException e) {
+            try {
+                callback.failed(e.getMessage());
+            } catch (RemoteException gone) {
+                System.err.println("delayPopAsync callback failed: " + gone.getMessage());
+            }
+            return;
+        }
+        try {
+            callback.popped(val);
+        } catch (RemoteException e) {
+            if (!StubCache.isStale(e)) {
+                System.err.println("delayPopAsync callback failed after it was sent, value " + val + " dropped: " + e);
+                return;
+            }
+            // the call never reached the client: put the value back instead of dropping it
+            try {
+                calculator.pushValue(val);
+            } catch (RemoteException again) {
+                System.err.println("delayPopAsync callback failed and value " + val + " could not be pushed back: " + again.getMessage());
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
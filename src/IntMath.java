@@ -0,0 +1,133 @@
+import java.math.BigInteger;
+
+// gcd/lcm helpers shared by the stack and both Calculator implementations
+public final class IntMath {
+    public static final int INIT_GCD = 0;  // gcd(0, x) = |x|
+    public static final int INIT_LCM = 1;  // lcm(1, x) = x
+
+    // pushOperation codes (Operators); min..lcm come from the stack checkpoints, sum..avg stream
+    public static final int OP_MIN = 0;
+    public static final int OP_MAX = 1;
+    public static final int OP_GCD = 2;
+    public static final int OP_LCM = 3;
+    public static final int OP_SUM = 4;
+    public static final int OP_PRODUCT = 5;
+    public static final int OP_AVG = 6;
+    // order statistics (Selection); percentile and kth take an argument
+    public static final int OP_MEDIAN = 7;
+    public static final int OP_PERCENTILE = 8;
+    public static final int OP_KTH = 9;
+
+    // lcmExact() once the lcm no longer fits in a long; it stays there (only a 0 brings it back)
+    public static final long LCM_OVERFLOW = -1;
+
+    // widest exact result (lcm, sum, product) in bits, 8 KB; a fold past it is refused before the
+    // stack changes, as each BigInteger step costs time in the width and a product grows with every value
+    public static final int DEFAULT_MAX_WIDE_BITS = 1 << 16;
+
+    private static volatile int maxWideBits = DEFAULT_MAX_WIDE_BITS;
+
+    private IntMath() {
+    }
+
+    // set once at startup (-Dcalculator.wide.maxBits)
+    public static void setMaxWideBits(int bits) {
+        if (bits < 64) {
+            throw new IllegalArgumentException("max wide bits must be >= 64, got " + bits);
+        }
+        maxWideBits = bits;
+    }
+
+    public static int maxWideBits() {
+        return maxWideBits;
+    }
+
+    // v, or IllegalArgumentException once it is wider than maxWideBits (callers report it like a bad kth)
+    public static BigInteger checkWide(BigInteger v) {
+        int max = maxWideBits;
+        if (v.bitLength() > max) {
+            throw new IllegalArgumentException("result wider than " + max + " bits, refused");
+        }
+        return v;
+    }
+
+    public static int gcd(int a, int b) {
+        if (a < 0) a = -a;
+        if (b < 0) b = -b;
+        if (a == 0) return b;
+        if (b == 0) return a;
+
+        while (b != 0) {
+            int temporary = a % b;
+            a = b;
+            b = temporary;
+        }
+        return a;
+    }
+
+    // gcd of two non-negative longs
+    public static long gcd(long a, long b) {
+        while (b != 0) {
+            long temporary = a % b;
+            a = b;
+            b = temporary;
+        }
+        return a;
+    }
+
+    // |lcm(l, v)| where l is a previous lcmExact result: exact in a long, or LCM_OVERFLOW.
+    // Stays on int division while both sides fit in 31 bits, which is the common case.
+    public static long lcmExact(long l, int v) {
+        if (v == 0 || l == 0) {
+            return 0;
+        }
+        if (l == LCM_OVERFLOW) {
+            return LCM_OVERFLOW;
+        }
+        long b = Math.abs((long) v);
+        long g = ((l | b) >>> 31) == 0 ? gcd((int) l, (int) b) : gcd(l, b);
+        long q = l / g;
+        long product = q * b;
+        if (Math.multiplyHigh(q, b) != 0 || product < 0) {
+            return LCM_OVERFLOW;
+        }
+        return product;
+    }
+
+    // lcm of two lcmExact results, for combining folds of separate ranges
+    public static long lcmExact(long a, long b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        if (a == LCM_OVERFLOW || b == LCM_OVERFLOW) {
+            return LCM_OVERFLOW;
+        }
+        long q = a / gcd(a, b);
+        long product = q * b;
+        if (Math.multiplyHigh(q, b) != 0 || product < 0) {
+            return LCM_OVERFLOW;
+        }
+        return product;
+    }
+
+    // |lcm(l, v)| for the folds that spilled out of a long, up to maxWideBits
+    public static BigInteger lcm(BigInteger l, int v) {
+        if (v == 0 || l.signum() == 0) {
+            return BigInteger.ZERO;
+        }
+        BigInteger b = BigInteger.valueOf(v).abs();
+        return checkWide(l.divide(l.gcd(b)).multiply(b));
+    }
+
+    public static BigInteger lcm(BigInteger a, BigInteger b) {
+        if (a.signum() == 0 || b.signum() == 0) {
+            return BigInteger.ZERO;
+        }
+        return checkWide(a.divide(a.gcd(b)).multiply(b).abs());
+    }
+
+    // true if the value can be pushed as a plain int
+    public static boolean fitsInt(long v) {
+        return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,411 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+// A growable/shrinkable stack of primitive ints backed by an int[].
+// No boxing and no internal locking: callers guard it with their own lock.
+//
+// It also keeps min/max/gcd/lcm checkpoints every BLOCK values: checkpoint k folds
+// values[0 .. k*BLOCK). Reducing the whole stack is then one checkpoint plus at most
+// BLOCK-1 values, so pushOperation is O(1) no matter how deep the stack is, and pop
+// never has to undo anything because checkpoints above the top are simply ignored.
+//
+// Reductions are exact: gcd and lcm are widened (lcm checkpoints are longs, LCM_OVERFLOW once
+// they no longer fit) and a result beyond int is kept as a wide value. A wide value can only
+// be the bottom one, since it only comes from collapsing the whole stack; values[0] then holds
+// a placeholder, and reductions over such a stack fold values[1 ..] by hand.
+//
+// median/percentile/kth have no checkpoints: they select on a scratch copy of the values (the
+// stack order must survive), kept between calls so repeated selections do not allocate.
+public class IntStack {
+    private static final int MIN_CAPACITY = 16;   // never shrink below this
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK = 1 << BLOCK_SHIFT;   // values per checkpoint
+
+    // reduce() result that only reduceBig() can give
+    public static final long BIG = Long.MIN_VALUE;
+
+    // a selection scratch buffer larger than this is dropped after use instead of kept
+    private static final int SCRATCH_KEEP = 1 << 20;
+
+    private int[] values;
+    private int size;
+
+    // checkpoints, index k covers values[0 .. k*BLOCK)
+    private int[] minAt;
+    private int[] maxAt;
+    private int[] gcdAt;
+    private long[] lcmAt;
+
+    // the bottom value when it does not fit in an int (values[0] is then a placeholder)
+    private BigInteger wide;
+
+    // reused copy of the values for median/percentile/kth, which reorder it
+    private int[] scratch;
+
+    public IntStack() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntStack(int initialCapacity) {
+        values = new int[Math.max(MIN_CAPACITY, initialCapacity)];
+        minAt = new int[checkpointSlots(values.length)];
+        maxAt = new int[minAt.length];
+        gcdAt = new int[minAt.length];
+        lcmAt = new long[minAt.length];
+        minAt[0] = Integer.MAX_VALUE;
+        maxAt[0] = Integer.MIN_VALUE;
+        gcdAt[0] = IntMath.INIT_GCD;
+        lcmAt[0] = IntMath.INIT_LCM;
+    }
+
+    // Push a value, doubling the backing array when it is full
+    public void push(int val) {
+        if (size == values.length) {
+            resize(grow(values.length));
+        }
+        values[size++] = val;
+        if ((size & (BLOCK - 1)) == 0) {
+            checkpoint(size >>> BLOCK_SHIFT);
+        }
+    }
+
+    // Push every value in order, so vals[vals.length - 1] ends up on top
+    public void pushAll(int[] vals) {
+        int needed = size + vals.length;
+        if (needed < 0) throw new OutOfMemoryError("IntStack is full");
+        if (needed > values.length) {
+            int capacity = values.length;
+            while (capacity < needed) capacity = grow(capacity);
+            resize(capacity);
+        }
+        System.arraycopy(vals, 0, values, size, vals.length);
+        int from = (size >>> BLOCK_SHIFT) + 1;
+        size = needed;
+        int to = size >>> BLOCK_SHIFT;
+        if (to >= from && ParallelFold.parallel((to - from + 1) << BLOCK_SHIFT)) {
+            // fold the new blocks on their own in parallel, then chain them onto the checkpoints
+            ParallelFold.blocks(values, from, to, BLOCK_SHIFT, minAt, maxAt, gcdAt, lcmAt);
+            for (int k = from; k <= to; k++) {
+                chain(k);
+            }
+        } else {
+            for (int k = from; k <= to; k++) {
+                checkpoint(k);
+            }
+        }
+    }
+
+    // Pop the top value; callers must check isEmpty() first
+    public int pop() {
+        if (size == 0) {
+            throw new IllegalStateException("pop on empty IntStack");
+        }
+        int v = values[--size];
+        if (size == 0) wide = null;
+        shrink();
+        return v;
+    }
+
+    // Pop the top n values; result[0] is the old top, same order as n calls to pop()
+    public int[] popN(int n) {
+        if (n < 0 || n > size) {
+            throw new IllegalStateException("popN(" + n + ") on IntStack of size " + size);
+        }
+        int[] out = new int[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = values[size - 1 - i];
+        }
+        size -= n;
+        if (size == 0) wide = null;
+        shrink();
+        return out;
+    }
+
+    // Return the top value without removing it
+    public int peek() {
+        if (size == 0) {
+            throw new IllegalStateException("peek on empty IntStack");
+        }
+        return values[size - 1];
+    }
+
+    // Copy of the values, bottom first
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Drop every value and release the backing array
+    public void clear() {
+        size = 0;
+        wide = null;
+        if (values.length > MIN_CAPACITY) {
+            resize(MIN_CAPACITY);
+        }
+    }
+
+    // min of every value on the stack (Integer.MAX_VALUE if empty)
+    public int min() {
+        int k = size >>> BLOCK_SHIFT;
+        int m = minAt[k];
+        for (int i = k << BLOCK_SHIFT; i < size; i++) {
+            if (values[i] < m) m = values[i];
+        }
+        return m;
+    }
+
+    // max of every value on the stack (Integer.MIN_VALUE if empty)
+    public int max() {
+        int k = size >>> BLOCK_SHIFT;
+        int m = maxAt[k];
+        for (int i = k << BLOCK_SHIFT; i < size; i++) {
+            if (values[i] > m) m = values[i];
+        }
+        return m;
+    }
+
+    // gcd folded over every value on the stack, not yet made non-negative
+    public int gcd() {
+        int k = size >>> BLOCK_SHIFT;
+        int g = gcdAt[k];
+        for (int i = k << BLOCK_SHIFT; i < size; i++) {
+            g = IntMath.gcd(g, values[i]);
+        }
+        return g;
+    }
+
+    // |lcm| of every value on the stack, or IntMath.LCM_OVERFLOW if it does not fit in a long
+    public long lcm() {
+        int k = size >>> BLOCK_SHIFT;
+        long l = lcmAt[k];
+        for (int i = k << BLOCK_SHIFT; i < size; i++) {
+            l = IntMath.lcmExact(l, values[i]);
+        }
+        return l;
+    }
+
+    public long reduce(int op) {
+        return reduce(op, 0);
+    }
+
+    // The exact result of op (a registered opcode, see Operators) over the whole non-empty stack,
+    // arg being the percentile or k where op takes one: min/max as they are, gcd/lcm non-negative.
+    // BIG when the result needs reduceBig(op, arg): an lcm or streamed fold beyond a long, or a
+    // stack with a wide bottom value. A kth beyond the size throws IllegalArgumentException.
+    public long reduce(int op, int arg) {
+        if (wide != null) {
+            return BIG;
+        }
+        if (Selection.isSelection(op)) {
+            return select(op, arg);
+        }
+        Reducer r = Operators.reducer(op);
+        if (r != null) {
+            return r.fold(values, 0, size);
+        }
+        if (op == IntMath.OP_MIN) return min();
+        if (op == IntMath.OP_MAX) return max();
+        if (op == IntMath.OP_GCD) return Math.abs((long) gcd());
+        long l = lcm();
+        return l == IntMath.LCM_OVERFLOW ? BIG : l;
+    }
+
+    public BigInteger reduceBig(int op) {
+        return reduceBig(op, 0);
+    }
+
+    // The slow path of reduce(op, arg), in BigInteger
+    public BigInteger reduceBig(int op, int arg) {
+        if (Selection.isSelection(op)) {
+            return wide == null ? BigInteger.valueOf(select(op, arg)) : selectWide(op, arg);
+        }
+        Reducer r = Operators.reducer(op);
+        if (r != null) {
+            return wide == null ? r.foldBig(null, values, 0, size) : r.foldBig(wide, values, 1, size);
+        }
+        if (wide == null) {
+            if (op != IntMath.OP_LCM) {
+                return BigInteger.valueOf(reduce(op, arg));
+            }
+            // start from the last checkpoint that still fits in a long; without zeros on the stack
+            // (they would make the lcm 0) overflow is sticky, so the checkpoints can be bisected
+            int lo = 0, hi = size >>> BLOCK_SHIFT;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (lcmAt[mid] == IntMath.LCM_OVERFLOW) hi = mid - 1;
+                else lo = mid;
+            }
+            return ParallelFold.lcm(BigInteger.valueOf(lcmAt[lo]), values, lo << BLOCK_SHIFT, size);
+        }
+
+        // wide bottom: it is larger than any int, so it is the max and only the min of itself
+        if (op == IntMath.OP_MAX || op == IntMath.OP_MIN && size == 1) {
+            return wide;
+        }
+        if (op == IntMath.OP_MIN) {
+            return BigInteger.valueOf(ParallelFold.fold(IntMath.OP_MIN, values, 1, size));
+        }
+        if (op == IntMath.OP_GCD) {
+            int g = ParallelFold.fold(IntMath.OP_GCD, values, 1, size);
+            return wide.gcd(BigInteger.valueOf(g).abs());
+        }
+        return ParallelFold.lcm(wide, values, 1, size);
+    }
+
+    // median/percentile/kth over int values only: introselect on the scratch copy, O(n)
+    private long select(int op, int arg) {
+        int low = Selection.lowRank(op, arg, size);
+        int high = Selection.highRank(op, arg, size);
+        int[] a = copyToScratch(0);
+        long result = Selection.select(a, size, low);
+        if (high != low) {
+            // rounded towards zero, like avg
+            result = (result + Selection.next(a, size, low)) / 2;
+        }
+        releaseScratch();
+        return result;
+    }
+
+    // The same with a wide bottom value, which lies beyond every int: above them all when
+    // positive (a wide lcm always is), below them all when negative (a wide sum or product)
+    private BigInteger selectWide(int op, int arg) {
+        int low = Selection.lowRank(op, arg, size);
+        int high = Selection.highRank(op, arg, size);
+        int ints = size - 1;
+        int first = wide.signum() > 0 ? 0 : 1;   // rank of the smallest int
+        int[] a = copyToScratch(1);
+        BigInteger result = atRank(a, ints, low - first);
+        if (high != low) {
+            result = result.add(atRank(a, ints, high - first)).divide(BigInteger.valueOf(2));
+        }
+        releaseScratch();
+        return result;
+    }
+
+    // rank r among the ints, or the wide value when r falls outside them
+    private BigInteger atRank(int[] a, int ints, int r) {
+        return (r < 0 || r >= ints) ? wide : BigInteger.valueOf(Selection.select(a, ints, r));
+    }
+
+    // values[from .. size) copied to the start of the scratch buffer
+    private int[] copyToScratch(int from) {
+        if (scratch == null || scratch.length < size) {
+            scratch = new int[Math.max(MIN_CAPACITY, size)];
+        }
+        System.arraycopy(values, from, scratch, 0, size - from);
+        return scratch;
+    }
+
+    private void releaseScratch() {
+        if (scratch.length > SCRATCH_KEEP) {
+            scratch = null;
+        }
+    }
+
+    // Replace the whole stack by one value; beyond int it becomes the wide bottom
+    public void collapse(BigInteger result) {
+        clear();
+        if (result.bitLength() < 32) {
+            push(result.intValue());
+        } else {
+            push(0);
+            wide = result;
+        }
+    }
+
+    // The bottom value when it does not fit in an int, else null
+    public BigInteger wideBottom() {
+        return wide;
+    }
+
+    // true if the top value does not fit in an int (so pop() cannot return it)
+    public boolean topIsWide() {
+        return wide != null && size == 1;
+    }
+
+    // Pop the top value whatever its width; callers must check isEmpty() first
+    public BigInteger popWide() {
+        if (topIsWide()) {
+            BigInteger w = wide;
+            pop();
+            return w;
+        }
+        return BigInteger.valueOf(pop());
+    }
+
+    // Replace the stack by a copy taken with toArray() and wideBottom()
+    public void restore(int[] bottomFirst, BigInteger wideBottom) {
+        clear();
+        pushAll(bottomFirst);
+        if (wideBottom != null && size > 0) {
+            wide = wideBottom;
+        }
+    }
+
+    // Fold block k-1 onto checkpoint k-1 to get checkpoint k
+    private void checkpoint(int k) {
+        int min = minAt[k - 1], max = maxAt[k - 1], g = gcdAt[k - 1];
+        long l = lcmAt[k - 1];
+        for (int i = (k - 1) << BLOCK_SHIFT, end = k << BLOCK_SHIFT; i < end; i++) {
+            int v = values[i];
+            if (v < min) min = v;
+            if (v > max) max = v;
+            g = IntMath.gcd(g, v);
+            l = IntMath.lcmExact(l, v);
+        }
+        minAt[k] = min;
+        maxAt[k] = max;
+        gcdAt[k] = g;
+        lcmAt[k] = l;
+    }
+
+    // Slot k holds block k-1 folded on its own; fold checkpoint k-1 into it
+    private void chain(int k) {
+        minAt[k] = Math.min(minAt[k - 1], minAt[k]);
+        maxAt[k] = Math.max(maxAt[k - 1], maxAt[k]);
+        gcdAt[k] = IntMath.gcd(gcdAt[k - 1], gcdAt[k]);
+        lcmAt[k] = IntMath.lcmExact(lcmAt[k - 1], lcmAt[k]);
+    }
+
+    // Halve the array while it is only a quarter full, so one big burst does not pin memory forever
+    private void shrink() {
+        int capacity = values.length;
+        while (capacity > MIN_CAPACITY && size <= capacity / 4) {
+            capacity = Math.max(MIN_CAPACITY, capacity / 2);
+        }
+        if (capacity != values.length) {
+            resize(capacity);
+        }
+    }
+
+    // Move values and checkpoints to arrays of the given capacity
+    private void resize(int capacity) {
+        values = Arrays.copyOf(values, capacity);
+        int slots = checkpointSlots(capacity);
+        minAt = Arrays.copyOf(minAt, slots);
+        maxAt = Arrays.copyOf(maxAt, slots);
+        gcdAt = Arrays.copyOf(gcdAt, slots);
+        lcmAt = Arrays.copyOf(lcmAt, slots);
+    }
+
+    private static int checkpointSlots(int capacity) {
+        return (capacity >>> BLOCK_SHIFT) + 1;
+    }
+
+    private static int grow(int capacity) {
+        int next = capacity << 1;
+        if (next < 0) {
+            // close to the max array length
+            if (capacity == Integer.MAX_VALUE - 8) throw new OutOfMemoryError("IntStack is full");
+            next = Integer.MAX_VALUE - 8;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram in nanoseconds with log-linear buckets:
+// 8 buckets per power of two, so any percentile is within 12.5% of the true value.
+// Recording is one index computation and one atomic increment.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;          // buckets per power of two
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        return total;
+    }
+
+    // Upper bound (ns) of the bucket holding the p-th fraction of samples, 0 if there are none
+    public long percentile(double p) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    // Largest recorded value, to bucket precision
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) return upperBound(i);
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    }
+
+    // values below SUB map to themselves, then SUB buckets per power of two
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) - SUB);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) return index;
+        int e = index / SUB + SUB_BITS - 1;
+        long sub = index % SUB + SUB;
+        long upper = ((sub + 1) << (e - SUB_BITS)) - 1;
+        return (upper < 0) ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator and soak harness against a running CalculatorServer. Clients connect through
+// CalculatorConnector (so rmi://, nio:// and unix: URLs all work) and run a weighted mix of
+// push / pop / pushOperation / delayPop, either closed-loop (next call as soon as the last one
+// returns) or open-loop at a target total rate. In open loop latency is measured from when the
+// call was due, not when it was sent, so a server that falls behind shows up in the percentiles
+// instead of quietly lowering the offered load. Every report interval and at the end it prints
+// throughput and p50/p90/p99/p99.9/max per operation, and appends the same rows to a CSV file.
+//
+// usage: java -Dload.clients=32 -Dload.rate=20000 -Dload.duration=60 -cp out LoadGenerator
+//   load.url        Calculator URL (default: the RMI URL of load.mode); for cluster, host:port of
+//                   the cluster registry (default localhost:<calculator.registry.port>)
+//   load.mode       shared | private | sessions | cluster: each client on the shared stack, a private
+//                   one, a private one kept off-heap (CalculatorSessions), or the named stack
+//                   "load-<client>" on whichever cluster node owns it (shared)
+//   load.clients    concurrent clients (8)
+//   load.rate       target calls/s over all clients, 0 = closed loop (0)
+//   load.duration   measured seconds (30), after load.warmup seconds (5) that are not recorded
+//   load.mix        weights, e.g. push:50,pop:45,operation:4,delayPop:1 (the default)
+//   load.delayMs    delayPop delay (10)
+//   load.report     seconds between interval reports, 0 = only the final one (10)
+//   load.csv        CSV file to append to ("" = console only)
+public class LoadGenerator {
+    static final int PUSH = 0;
+    static final int POP = 1;
+    static final int OPERATION = 2;
+    static final int DELAY_POP = 3;
+    static final String[] NAMES = {"push", "pop", "operation", "delayPop"};
+    private static final String[] OPERATORS = {"min", "max", "gcd", "lcm"};
+
+    static final String MODE = System.getProperty("load.mode", "shared");
+    static final String URL = System.getProperty("load.url",
+            MODE.equals("private") ? CalculatorServer.PRIVATE_URL
+                    : MODE.equals("sessions") ? CalculatorServer.SESSIONS_URL
+                    : MODE.equals("cluster") ? "localhost:" + CalculatorServer.REGISTRY_PORT : CalculatorServer.URL);
+    static final int CLIENTS = Integer.getInteger("load.clients", 8);
+    static final int RATE = Integer.getInteger("load.rate", 0);
+    static final int DURATION_S = Integer.getInteger("load.duration", 30);
+    static final int WARMUP_S = Integer.getInteger("load.warmup", 5);
+    static final String MIX = System.getProperty("load.mix", "push:50,pop:45,operation:4,delayPop:1");
+    static final int DELAY_MS = Integer.getInteger("load.delayMs", 10);
+    static final int REPORT_S = Integer.getInteger("load.report", 10);
+    static final String CSV = System.getProperty("load.csv", "");
+
+    // per operation: the whole run and the current report interval
+    private final LatencyHistogram[] total = new LatencyHistogram[NAMES.length];
+    private final LatencyHistogram[] interval = new LatencyHistogram[NAMES.length];
+    private final LongAdder[] errors = new LongAdder[NAMES.length];
+    private final LongAdder[] intervalErrors = new LongAdder[NAMES.length];
+    private final int[] cumulativeWeights;
+    private volatile boolean recording;
+    private volatile boolean stopping;
+
+    LoadGenerator(int[] weights) {
+        cumulativeWeights = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0) throw new IllegalArgumentException("load.mix needs a positive weight: " + MIX);
+        for (int i = 0; i < NAMES.length; i++) {
+            total[i] = new LatencyHistogram();
+            interval[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+            intervalErrors[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!MODE.equals("shared") && !MODE.equals("private") && !MODE.equals("sessions") && !MODE.equals("cluster")) {
+            throw new IllegalArgumentException("load.mode must be shared, private, sessions or cluster, got " + MODE);
+        }
+        LoadGenerator load = new LoadGenerator(parseMix(MIX));
+        System.out.println("url=" + URL + " mode=" + MODE + " clients=" + CLIENTS
+                + " rate=" + (RATE == 0 ? "closed-loop" : RATE + "/s") + " mix=" + MIX
+                + " warmup=" + WARMUP_S + "s duration=" + DURATION_S + "s");
+        load.run();
+        System.exit(0);
+    }
+
+    // "push:50,pop:45,..." into weights indexed like NAMES
+    static int[] parseMix(String mix) {
+        int[] weights = new int[NAMES.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int op = -1;
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equalsIgnoreCase(kv[0].trim())) op = i;
+            }
+            if (op < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("bad load.mix entry '" + part + "' (use push|pop|operation|delayPop:weight)");
+            }
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        return weights;
+    }
+
+    private void run() throws Exception {
+        final Calculator[] cals = new Calculator[CLIENTS];
+        ClusterRouter router = MODE.equals("cluster") ? ClusterRouter.connect(URL) : null;
+        if (router != null) {
+            System.out.println("cluster nodes: " + String.join(", ", router.nodes()));
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            cals[i] = (router != null) ? router.stack("load-" + i) : CalculatorConnector.connect(URL);
+        }
+
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        // each open-loop client offers its share of the rate
+        final long periodNanos = RATE == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) * CLIENTS / RATE;
+        final long start = System.nanoTime();
+        for (int i = 0; i < CLIENTS; i++) {
+            final int id = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client(cals[id], new Random(id), start + periodNanos * id / CLIENTS, periodNanos);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-client-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_S));
+        resetInterval();
+        recording = true;
+        long measured = System.nanoTime();
+        long end = measured + TimeUnit.SECONDS.toNanos(DURATION_S);
+        long lastReport = measured;
+        PrintWriter csv = openCsv();
+        while (true) {
+            long now = System.nanoTime();
+            long next = REPORT_S > 0 ? Math.min(end, lastReport + TimeUnit.SECONDS.toNanos(REPORT_S)) : end;
+            if (next > now) {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(next - now) + 1);
+                continue;
+            }
+            if (REPORT_S > 0) {
+                report("interval", interval, intervalErrors, System.nanoTime() - lastReport, csv);
+                resetInterval();
+                lastReport = System.nanoTime();
+            }
+            if (lastReport >= end || REPORT_S == 0) {
+                break;
+            }
+        }
+        recording = false;
+        stopping = true;
+        report("total", total, errors, System.nanoTime() - measured, csv);
+        if (csv != null) csv.close();
+
+        done.await(DELAY_MS + 5000, TimeUnit.MILLISECONDS);
+        for (Calculator cal : cals) {
+            if (cal instanceof Closeable) ((Closeable) cal).close();
+        }
+        if (router != null) router.close();
+    }
+
+    // One client: pick an operation from the mix, call it, record. Pops are only issued while
+    // this client has values of its own on the stack, so an empty stack is rare (in shared mode
+    // other clients can still take them, and those show up as errors). Values cycle through 1..16
+    // so an lcm stays within an int (lcm(1..16) = 720720) and pop never meets a wide value.
+    private void client(Calculator cal, Random rnd, long firstDue, long periodNanos) {
+        long due = firstDue;
+        int depth = 0;
+        int next = 0;
+        while (!stopping) {
+            if (periodNanos > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+            int op = pick(rnd);
+            if (op != PUSH && depth == 0) op = PUSH;
+            long begin = periodNanos > 0 ? due : System.nanoTime();
+            boolean ok = true;
+            try {
+                if (op == PUSH) {
+                    cal.pushValue(1 + next++ % 16);
+                    depth++;
+                } else if (op == POP) {
+                    cal.pop();
+                    depth--;
+                } else if (op == OPERATION) {
+                    cal.pushOperation(OPERATORS[rnd.nextInt(OPERATORS.length)]);
+                    depth = 1;
+                } else {
+                    cal.delayPop(DELAY_MS);
+                    depth--;
+                }
+            } catch (Exception e) {
+                ok = false;
+                depth = 0;
+            }
+            long latency = System.nanoTime() - begin;
+            if (recording) {
+                total[op].record(latency);
+                interval[op].record(latency);
+                if (!ok) {
+                    errors[op].increment();
+                    intervalErrors[op].increment();
+                }
+            }
+            due += periodNanos;
+        }
+    }
+
+    private int pick(Random rnd) {
+        int r = rnd.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) return i;
+        }
+        return PUSH;
+    }
+
+    private void resetInterval() {
+        for (int i = 0; i < NAMES.length; i++) {
+            interval[i].reset();
+            intervalErrors[i].reset();
+        }
+    }
+
+    private void report(String phase, LatencyHistogram[] hist, LongAdder[] errs, long nanos, PrintWriter csv) {
+        double seconds = nanos / 1e9;
+        long all = 0;
+        long at = System.currentTimeMillis();
+        System.out.printf("%n[%s] %.1f s%n", phase, seconds);
+        System.out.printf("%-10s %10s %8s %12s %10s %10s %10s %10s %10s%n",
+                "op", "calls", "errors", "calls/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (int i = 0; i < NAMES.length; i++) {
+            long n = hist[i].count();
+            all += n;
+            if (n == 0) continue;
+            double rate = n / seconds;
+            System.out.printf("%-10s %10d %8d %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n", NAMES[i], n, errs[i].sum(), rate,
+                    micros(hist[i].percentile(0.50)), micros(hist[i].percentile(0.90)), micros(hist[i].percentile(0.99)),
+                    micros(hist[i].percentile(0.999)), micros(hist[i].max()));
+            if (csv != null) {
+                csv.printf("%d,%s,%s,%d,%d,%s,%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n", at, URL, MODE,
+                        CLIENTS, RATE, phase, NAMES[i], n, errs[i].sum(), rate,
+                        micros(hist[i].percentile(0.50)), micros(hist[i].percentile(0.90)), micros(hist[i].percentile(0.99)),
+                        micros(hist[i].percentile(0.999)), micros(hist[i].max()));
+            }
+        }
+        System.out.printf("%-10s %10d %8s %12.0f%n", "all", all, "", all / seconds);
+        if (csv != null) csv.flush();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    // append, with a header when the file is new
+    private static PrintWriter openCsv() throws IOException {
+        if (CSV.isEmpty()) {
+            return null;
+        }
+        boolean fresh = !new File(CSV).exists();
+        PrintWriter out = new PrintWriter(new FileWriter(CSV, true));
+        if (fresh) {
+            out.println("epoch_ms,url,mode,clients,target_rate,phase,op,calls,errors,calls_per_s,p50_us,p90_us,p99_us,p999_us,max_us");
+        }
+        return out;
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+
+// Calculator over the NIO BinaryProtocol instead of RMI. Code written against the Calculator
+// interface works unchanged; transport failures surface as RemoteException like with a stub.
+// One blocking channel per client, one request in flight at a time. An I/O error can leave a
+// request or response half sent, so it closes the channel and every later call fails.
+public class NioCalculatorClient implements Calculator {
+    private final SocketChannel ch;
+    private ByteBuffer buf = ByteBuffer.allocate(256);
+
+    private NioCalculatorClient(SocketAddress address, byte attach) throws RemoteException {
+        try {
+            ch = SocketChannel.open(address);
+            if (address instanceof InetSocketAddress) {
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+        } catch (IOException e) {
+            throw new RemoteException("cannot connect to " + address, e);
+        }
+        call(begin(attach, 0));
+    }
+
+    // Connect to the shared stack
+    public static NioCalculatorClient connectShared(SocketAddress address) throws RemoteException {
+        return new NioCalculatorClient(address, BinaryProtocol.ATTACH_SHARED);
+    }
+
+    // Connect to a stack of this connection's own; it lives until close()
+    public static NioCalculatorClient connectPrivate(SocketAddress address) throws RemoteException {
+        return new NioCalculatorClient(address, BinaryProtocol.ATTACH_PRIVATE);
+    }
+
+    public synchronized void pushValue(int val) throws RemoteException {
+        call(begin(BinaryProtocol.PUSH_VALUE, 4).putInt(val));
+    }
+
+    public synchronized void pushValues(int[] vals) throws RemoteException {
+        if (vals == null) throw new RemoteException("pushValues called with null");
+        ByteBuffer b = begin(BinaryProtocol.PUSH_VALUES, 4 + 4 * vals.length);
+        BinaryProtocol.putInts(b, vals);
+        call(b);
+    }
+
+    public synchronized void pushOperation(String operator) throws RemoteException {
+        String op = (operator == null) ? "" : operator;
+        ByteBuffer b = begin(BinaryProtocol.PUSH_OPERATION, BinaryProtocol.stringSize(op));
+        BinaryProtocol.putString(b, op);
+        call(b);
+    }
+
+    public synchronized void pushOperation(int opcode) throws RemoteException {
+        pushOperation(opcode, 0);
+    }
+
+    public synchronized void pushOperation(int opcode, int arg) throws RemoteException {
+        call(begin(BinaryProtocol.PUSH_OPCODE, 8).putInt(opcode).putInt(arg));
+    }
+
+    public synchronized int pop() throws RemoteException {
+        return call(begin(BinaryProtocol.POP, 0)).getInt();
+    }
+
+    public synchronized int[] popN(int n) throws RemoteException {
+        return BinaryProtocol.getInts(call(begin(BinaryProtocol.POP_N, 4).putInt(n)));
+    }
+
+    public synchronized int[] drain() throws RemoteException {
+        return BinaryProtocol.getInts(call(begin(BinaryProtocol.DRAIN, 0)));
+    }
+
+    public synchronized BigInteger popWide() throws RemoteException {
+        return BinaryProtocol.getBig(call(begin(BinaryProtocol.POP_WIDE, 0)));
+    }
+
+    // blocks this connection until the server answers, like the RMI call
+    public synchronized Integer popOrWait(long timeoutMs) throws RemoteException {
+        return maybe(call(begin(BinaryProtocol.POP_OR_WAIT, 8).putLong(timeoutMs)));
+    }
+
+    public synchronized Integer tryPop() throws RemoteException {
+        return maybe(call(begin(BinaryProtocol.TRY_POP, 0)));
+    }
+
+    public synchronized Integer peek() throws RemoteException {
+        return maybe(call(begin(BinaryProtocol.PEEK, 0)));
+    }
+
+    public synchronized int size() throws RemoteException {
+        return call(begin(BinaryProtocol.SIZE, 0)).getInt();
+    }
+
+    // a present flag, then the value
+    private static Integer maybe(ByteBuffer r) {
+        boolean present = r.get() != 0;
+        int v = r.getInt();
+        return present ? Integer.valueOf(v) : null;
+    }
+
+    public synchronized boolean isEmpty() throws RemoteException {
+        return call(begin(BinaryProtocol.IS_EMPTY, 0)).get() != 0;
+    }
+
+    public synchronized int delayPop(int millis) throws RemoteException {
+        return call(begin(BinaryProtocol.DELAY_POP, 4).putInt(millis)).getInt();
+    }
+
+    // The delay runs on this side's shared timer, which then does an ordinary pop
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException {
+        if (callback == null) throw new RemoteException("delayPopAsync called without a callback");
+        DelayScheduler.schedule(this, millis, callback);
+    }
+
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    // Start a request frame with room for payload bytes
+    private ByteBuffer begin(byte op, int payload) {
+        int size = 4 + 1 + payload;
+        if (buf.capacity() < size) buf = ByteBuffer.allocate(size);
+        buf.clear();
+        buf.putInt(1 + payload);
+        buf.put(op);
+        return buf;
+    }
+
+    // Send the frame and return the OK payload, or throw the server's error
+    private ByteBuffer call(ByteBuffer request) throws RemoteException {
+        if (!ch.isOpen()) throw new RemoteException("NIO calculator connection is closed");
+        try {
+            request.flip();
+            while (request.hasRemaining()) ch.write(request);
+
+            buf.clear().limit(4);
+            readFully(buf);
+            int len = buf.getInt(0);
+            if (len < 1 || len > BinaryProtocol.MAX_FRAME) throw new IOException("bad frame length " + len);
+            if (buf.capacity() < len) buf = ByteBuffer.allocate(len);
+            buf.clear().limit(len);
+            readFully(buf);
+            buf.flip();
+
+            byte status = buf.get();
+            if (status == BinaryProtocol.ERROR) {
+                throw new RemoteException(BinaryProtocol.getString(buf));
+            }
+            if (status == BinaryProtocol.OVERLOADED) {
+                throw new OverloadedException(BinaryProtocol.getString(buf));
+            }
+            return buf;
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+            throw new RemoteException("NIO calculator call failed, connection closed", e);
+        }
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b) < 0) throw new IOException("connection closed by server");
+        }
+    }
+}
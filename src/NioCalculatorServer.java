@@ -0,0 +1,555 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Second front end next to RMI: the BinaryProtocol over one non-blocking selector loop.
+// A connection attaches either to the shared Calculator it was given or to a private
+// CalculatorPerClient of its own, so the semantics match the two RMI bindings.
+//
+// Requests that cannot wait are answered on the selector thread itself: everything on a private
+// stack (only its own connection takes its monitor), the lock-free reads of the shared stack and
+// the whole lock-free engine. A request that can wait hands it and the frames behind it to a
+// bounded pool in one batch: the shared stack's fair lock or durable write to the workers, a
+// popOrWait with a timeout to the waiters, so waiting consumers never take the threads the
+// pushes that wake them need. While a batch runs the connection is busy: its reads stop
+// (OP_READ is cleared), so a client cannot pile up more input meanwhile, and later requests keep
+// their order. When every thread of a pool is busy and its queue is full, the request is answered
+// OVERLOADED instead of queueing without bound. delayPop keeps the connection busy until the DelayScheduler answers
+// it, so no thread sleeps.
+// A connection buffers at most maxBuffered bytes of input; a longer frame is answered with an
+// error and its bytes are dropped as they arrive instead of being buffered.
+public class NioCalculatorServer implements Runnable {
+    public static final int DEFAULT_PORT = 1100;
+    // 1M ints in one pushValues
+    public static final int DEFAULT_MAX_BUFFERED = 4 << 20;
+    public static final int DEFAULT_WORKERS = 16;
+    // batches waiting for a worker, at most one per connection
+    private static final int MAX_QUEUED_BATCHES = 1024;
+    private static final int READ_BUFFER = 16 * 1024;
+
+    private final Calculator shared;
+    // false for the lock-free engine, whose calls never wait except in popOrWait
+    private final boolean sharedLocks;
+    private final int maxBuffered;
+    // run the batches that can wait: for a lock or a durable write, and for a push (popOrWait)
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor waiters;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    public NioCalculatorServer(Calculator shared, SocketAddress address) throws IOException {
+        this(shared, address, DEFAULT_MAX_BUFFERED);
+    }
+
+    public NioCalculatorServer(Calculator shared, SocketAddress address, int maxBuffered) throws IOException {
+        this(shared, address, maxBuffered, DEFAULT_WORKERS);
+    }
+
+    public NioCalculatorServer(Calculator shared, SocketAddress address, int maxBuffered, int workers) throws IOException {
+        if (maxBuffered < READ_BUFFER) {
+            throw new IllegalArgumentException("maxBuffered must be >= " + READ_BUFFER + " bytes, got " + maxBuffered);
+        }
+        if (workers < 1) throw new IllegalArgumentException("workers must be >= 1, got " + workers);
+        this.shared = shared;
+        this.sharedLocks = !(shared instanceof CalculatorLockFree);
+        this.maxBuffered = maxBuffered;
+        this.workers = newPool(workers, "nio-worker-");
+        this.waiters = newPool(workers, "nio-waiter-");
+        this.selector = Selector.open();
+        if (address instanceof UnixDomainSocketAddress) {
+            // co-located clients: no TCP/IP stack at all; a stale socket file from an earlier run blocks bind
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            this.server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public NioCalculatorServer(Calculator shared, int port) throws IOException {
+        this(shared, new InetSocketAddress(port));
+    }
+
+    // Start the selector loop on a daemon thread
+    public Thread start() {
+        Thread t = new Thread(this, "nio-calculator");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        else {
+                            Connection c = (Connection) key.attachment();
+                            if (key.isReadable()) c.read();
+                            if (key.isValid() && key.isWritable()) c.flush();
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("NIO calculator server stopped: " + e);
+        } finally {
+            workers.shutdown();
+            waiters.shutdown();
+            for (SelectionKey key : selector.keys()) close(key);
+            try {
+                SocketAddress local = server.getLocalAddress();
+                selector.close();
+                server.close();
+                if (local instanceof UnixDomainSocketAddress) {
+                    Files.deleteIfExists(((UnixDomainSocketAddress) local).getPath());
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        if (ch.getRemoteAddress() instanceof InetSocketAddress) {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, ch));
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        Object c = key.attachment();
+        if (c instanceof Connection) ((Connection) c).release();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Run on the selector thread at its next wake-up
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private final class Connection {
+        private final SelectionKey key;
+        private final SocketChannel ch;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private Calculator target;
+        private boolean ownsTarget;
+        // a batch or a delayPop is running; in belongs to the worker meanwhile
+        private boolean busy;
+        // bytes still to drop of a frame over maxBuffered
+        private int skip;
+        // this connection's rate limit (Backpressure), null while off
+        private final Backpressure.Bucket bucket = Backpressure.newBucket();
+
+        Connection(SelectionKey key, SocketChannel ch) {
+            this.key = key;
+            this.ch = ch;
+        }
+
+        void read() throws IOException {
+            if (busy) return;
+            int n = ch.read(in);
+            if (n < 0) throw new IOException("closed by peer");
+            process();
+        }
+
+        // Answer the complete frames in the buffer here, until one that can wait: that one and the
+        // rest go to a worker, unless one is already busy with them
+        void process() throws IOException {
+            in.flip();
+            while (!busy) {
+                if (skip > 0) {
+                    int k = Math.min(skip, in.remaining());
+                    in.position(in.position() + k);
+                    skip -= k;
+                    if (skip > 0) break;
+                }
+                if (in.remaining() < 4) break;
+                int len = in.getInt(in.position());
+                if (len < 1 || len > BinaryProtocol.MAX_FRAME) throw new IOException("bad frame length " + len);
+                if (len > maxBuffered - 4) {
+                    in.getInt();
+                    skip = len;
+                    respond(error("request of " + len + " bytes is over the " + maxBuffered + "-byte limit per connection"));
+                    continue;
+                }
+                if (in.remaining() < 4 + len) {
+                    if (in.capacity() < 4 + len) {
+                        in.compact();
+                        in = grow(in, 4 + len);
+                        in.flip();
+                    }
+                    break;
+                }
+                byte op = in.get(in.position() + 4);
+                if (op == BinaryProtocol.DELAY_POP && target != null && len >= 5) {
+                    in.getInt();
+                    in.get();
+                    busy = true;
+                    try {
+                        DelayScheduler.schedule(target, in.getInt(), new Resume());
+                    } catch (OverloadedException e) {
+                        busy = false;
+                        respond(overloaded(e.getMessage()));
+                        continue;
+                    }
+                    break;
+                }
+                ThreadPoolExecutor pool = poolFor(op, len);
+                if (pool == null) {
+                    in.getInt();
+                    ByteBuffer frame = in.slice();
+                    frame.limit(len);
+                    in.position(in.position() + len);
+                    respond(handle(frame));
+                    continue;
+                }
+                busy = true;
+                final ThreadPoolExecutor batchPool = pool;
+                try {
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            runBatch(batchPool);
+                        }
+                    });
+                } catch (RejectedExecutionException full) {
+                    busy = false;
+                    in.position(in.position() + 4 + len);
+                    respond(overloaded("all " + pool.getMaximumPoolSize() + " NIO " + (pool == waiters ? "waiters" : "workers") + " are busy, try again"));
+                }
+            }
+            if (!busy) in.compact();
+            flush();
+        }
+
+        // The pool for the len-byte request at the buffer's position: waiters if it may wait for
+        // a push, workers if it may wait for a lock or a durable write, null if it cannot wait
+        private ThreadPoolExecutor poolFor(byte op, int len) {
+            if (target == null) return null;
+            switch (op) {
+                case BinaryProtocol.POP_OR_WAIT:
+                    return len >= 9 && in.getLong(in.position() + 5) > 0 ? waiters : null;
+                case BinaryProtocol.PEEK:
+                case BinaryProtocol.SIZE:
+                case BinaryProtocol.IS_EMPTY:
+                    // read without the lock (CalculatorImplementation's optimistic reads)
+                    return null;
+                default:
+                    return !ownsTarget && sharedLocks ? workers : null;
+            }
+        }
+
+        // On a thread of pool: answer the complete frames in the buffer, up to a delayPop or one
+        // that needs the other pool
+        private void runBatch(ThreadPoolExecutor pool) {
+            final ArrayDeque<ByteBuffer> responses = new ArrayDeque<ByteBuffer>();
+            int delay = -1;
+            while (delay < 0 && in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                // a bad length is left for process() on the selector thread, which closes the connection
+                if (len < 1 || len > maxBuffered - 4 || in.remaining() < 4 + len) break;
+                if (!responses.isEmpty()) {
+                    ThreadPoolExecutor next = poolFor(in.get(in.position() + 4), len);
+                    if (next != null && next != pool) break;
+                }
+                in.getInt();
+                int end = in.position() + len;
+                ByteBuffer frame = in.slice();
+                frame.limit(len);
+                in.position(end);
+                if (frame.get(0) == BinaryProtocol.DELAY_POP && target != null && len >= 5) {
+                    frame.get();
+                    delay = frame.getInt();
+                } else {
+                    ByteBuffer r = handle(frame);
+                    r.flip();
+                    responses.add(r);
+                }
+            }
+            final int delayMillis = delay;
+            post(new Runnable() {
+                public void run() {
+                    if (!key.isValid()) return;
+                    out.addAll(responses);
+                    if (delayMillis >= 0) {
+                        try {
+                            DelayScheduler.schedule(target, delayMillis, new Resume());
+                        } catch (OverloadedException e) {
+                            respond(overloaded(e.getMessage()));
+                            carryOn();
+                            return;
+                        }
+                        try {
+                            flush();
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    } else {
+                        carryOn();
+                    }
+                }
+            });
+        }
+
+        private ByteBuffer handle(ByteBuffer frame) {
+            byte op = frame.get();
+            Backpressure.enter(bucket);
+            try {
+                if (target == null) {
+                    attach(op);
+                    return ok(0);
+                }
+                switch (op) {
+                    case BinaryProtocol.PUSH_VALUE:
+                        target.pushValue(frame.getInt());
+                        return ok(0);
+                    case BinaryProtocol.PUSH_VALUES:
+                        target.pushValues(BinaryProtocol.getInts(frame));
+                        return ok(0);
+                    case BinaryProtocol.PUSH_OPERATION:
+                        target.pushOperation(BinaryProtocol.getString(frame));
+                        return ok(0);
+                    case BinaryProtocol.PUSH_OPCODE:
+                        target.pushOperation(frame.getInt(), frame.getInt());
+                        return ok(0);
+                    case BinaryProtocol.POP:
+                        return okInt(target.pop());
+                    case BinaryProtocol.POP_N:
+                        return okInts(target.popN(frame.getInt()));
+                    case BinaryProtocol.DRAIN:
+                        return okInts(target.drain());
+                    case BinaryProtocol.POP_WIDE: {
+                        BigInteger v = target.popWide();
+                        ByteBuffer r = ok(BinaryProtocol.bigSize(v));
+                        BinaryProtocol.putBig(r, v);
+                        return r;
+                    }
+                    case BinaryProtocol.IS_EMPTY: {
+                        ByteBuffer r = ok(1);
+                        r.put((byte) (target.isEmpty() ? 1 : 0));
+                        return r;
+                    }
+                    case BinaryProtocol.POP_OR_WAIT:
+                        // blocks a waiter thread for this connection only, as an RMI thread would block
+                        return okMaybe(target.popOrWait(frame.getLong()));
+                    case BinaryProtocol.TRY_POP:
+                        return okMaybe(target.tryPop());
+                    case BinaryProtocol.PEEK:
+                        return okMaybe(target.peek());
+                    case BinaryProtocol.SIZE:
+                        return okInt(target.size());
+                    default:
+                        return error("unknown opcode " + op);
+                }
+            } catch (OverloadedException e) {
+                return overloaded(e.getMessage());
+            } catch (RemoteException e) {
+                return error(e.getMessage());
+            } catch (RuntimeException e) {
+                return error(String.valueOf(e));
+            } finally {
+                Backpressure.exit(bucket);
+            }
+        }
+
+        private void attach(byte op) throws RemoteException {
+            if (op == BinaryProtocol.ATTACH_SHARED) {
+                target = shared;
+            } else if (op == BinaryProtocol.ATTACH_PRIVATE) {
+                CalculatorPerClient calc = new CalculatorPerClient();
+                // only reachable through this connection, so it does not need to stay exported for RMI
+                UnicastRemoteObject.unexportObject(calc, true);
+                target = calc;
+                ownsTarget = true;
+            } else {
+                throw new RemoteException("first request must attach to the shared or a private stack");
+            }
+        }
+
+        void respond(ByteBuffer frame) {
+            frame.flip();
+            out.add(frame);
+        }
+
+        // Reads only while no batch runs, so a busy connection buffers nothing more
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer b = out.peek();
+                ch.write(b);
+                if (b.hasRemaining()) break;
+                out.poll();
+            }
+            int ops = (busy ? 0 : SelectionKey.OP_READ) | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (key.isValid() && key.interestOps() != ops) key.interestOps(ops);
+        }
+
+        void release() {
+            if (ownsTarget && !busy) target = null;
+        }
+
+        // On the selector thread once the batch or delayPop is answered: take the buffer back
+        // and go on with what arrived before the connection got busy
+        private void carryOn() {
+            busy = false;
+            in.compact();
+            try {
+                process();
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        // delayPop result coming back from the scheduler, finished on the selector thread
+        private final class Resume implements DelayPopCallback {
+            public void popped(final int val) {
+                resume(okInt(val));
+            }
+
+            public void failed(String reason) {
+                resume(error(reason));
+            }
+
+            private void resume(final ByteBuffer response) {
+                post(new Runnable() {
+                    public void run() {
+                        if (!key.isValid()) return;
+                        respond(response);
+                        carryOn();
+                    }
+                });
+            }
+        }
+    }
+
+    // Response frame with room for payload bytes; the length is filled in up front
+    private static ByteBuffer ok(int payload) {
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + payload);
+        b.putInt(1 + payload);
+        b.put(BinaryProtocol.OK);
+        return b;
+    }
+
+    private static ByteBuffer okInt(int v) {
+        ByteBuffer b = ok(4);
+        b.putInt(v);
+        return b;
+    }
+
+    // popOrWait / tryPop / peek answer: a present flag, then the value (0 when absent)
+    private static ByteBuffer okMaybe(Integer v) {
+        ByteBuffer b = ok(5);
+        b.put((byte) (v == null ? 0 : 1));
+        b.putInt(v == null ? 0 : v);
+        return b;
+    }
+
+    private static ByteBuffer okInts(int[] vals) {
+        ByteBuffer b = ok(4 + 4 * vals.length);
+        BinaryProtocol.putInts(b, vals);
+        return b;
+    }
+
+    private static ByteBuffer error(String message) {
+        return failure(BinaryProtocol.ERROR, message);
+    }
+
+    private static ByteBuffer overloaded(String message) {
+        return failure(BinaryProtocol.OVERLOADED, message);
+    }
+
+    private static ByteBuffer failure(byte status, String message) {
+        String m = (message == null) ? "error" : message;
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + BinaryProtocol.stringSize(m));
+        b.putInt(1 + BinaryProtocol.stringSize(m));
+        b.put(status);
+        BinaryProtocol.putString(b, m);
+        return b;
+    }
+
+    // threads threads at most, MAX_QUEUED_BATCHES waiting for one, then RejectedExecutionException
+    private static ThreadPoolExecutor newPool(int threads, final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_BATCHES), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, prefix + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    // Standalone NIO front end with its own shared stack: java NioCalculatorServer [port | unix-socket-path]
+    public static void main(String[] args) throws Exception {
+        String where = (args.length > 0) ? args[0] : String.valueOf(DEFAULT_PORT);
+        SocketAddress address = where.matches("\\d+")
+                ? new InetSocketAddress(Integer.parseInt(where))
+                : UnixDomainSocketAddress.of(where);
+        NioCalculatorServer nio = new NioCalculatorServer(new CalculatorImplementation(), address);
+        System.out.println("NIO calculator listening on " + nio.getLocalAddress());
+        nio.run();
+    }
+}
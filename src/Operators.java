@@ -0,0 +1,206 @@
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Registry of pushOperation operators, shared by every Calculator implementation. An operator's
+// opcode is its index in a table that is replaced whole on registration and never changed in
+// place, so pushOperation(int) dispatches with one array load and pushOperation(String) with
+// one hash lookup on the name exactly as sent; only a name that misses (" MAX", "Gcd") is
+// trimmed and lower-cased.
+//
+// min/max/gcd/lcm (IntMath.OP_*) are reduced from IntStack's checkpoints and have no Reducer.
+// median/percentile/kth select on a copy of the values (Selection), O(n); percentile and kth
+// take an argument, sent as "percentile:99.9" / "kth:3" or as pushOperation(opcode, arg).
+// sum/product/avg, and anything registered at startup (-Dcalculator.operators, see
+// registerAll), stream over the values, so they cost O(n) in the stack size. Opcodes are
+// assigned in registration order: a client that sends custom opcodes must register the same
+// operators in the same order, or send names.
+public final class Operators {
+    public static final int UNKNOWN = -1;
+
+    private static volatile Table table;
+
+    static {
+        Table t = new Table(new String[0], new Reducer[0]);
+        // in IntMath.OP_* order
+        t = t.with("min", null);
+        t = t.with("max", null);
+        t = t.with("gcd", null);
+        t = t.with("lcm", null);
+        t = t.with("sum", new Reducer.Sum());
+        t = t.with("product", new Reducer.Product());
+        t = t.with("avg", new Reducer.Avg());
+        t = t.with("median", null);
+        t = t.with("percentile", null);
+        t = t.with("kth", null);
+        table = t;
+    }
+
+    private Operators() {
+    }
+
+    // opcode of the operator name, or UNKNOWN
+    public static int code(String operator) {
+        if (operator == null) {
+            return UNKNOWN;
+        }
+        Table t = table;
+        Integer code = t.codes.get(operator);
+        if (code == null) {
+            String name = operator.trim().toLowerCase(Locale.ROOT);
+            int colon = name.indexOf(':');
+            code = t.codes.get(colon < 0 ? name : name.substring(0, colon).trim());
+            if (code != null && colon >= 0 && !takesArgument(code)) {
+                code = null;
+            }
+        }
+        return code == null ? UNKNOWN : code;
+    }
+
+    // true for percentile and kth, which need an argument
+    public static boolean takesArgument(int opcode) {
+        return opcode == IntMath.OP_PERCENTILE || opcode == IntMath.OP_KTH;
+    }
+
+    // The argument of a resolved operator name: thousandths of a percent for "percentile:P"
+    // (Selection.PERCENTILE_SCALE), k for "kth:K", 0 for operators without one
+    public static int argument(int opcode, String operator) throws RemoteException {
+        if (!takesArgument(opcode)) {
+            return 0;
+        }
+        int colon = operator.indexOf(':');
+        String text = colon < 0 ? "" : operator.substring(colon + 1).trim();
+        int arg;
+        try {
+            if (opcode == IntMath.OP_PERCENTILE) {
+                // range-checked before the cast, so a huge P cannot wrap into 1..MAX_PERCENTILE
+                long scaled = Math.round(Double.parseDouble(text) * Selection.PERCENTILE_SCALE);
+                if (scaled < 1 || scaled > Selection.MAX_PERCENTILE) {
+                    throw new RemoteException("bad argument '" + text + "' for " + name(opcode) + " (above 0, at most " + Selection.MAX_PERCENTILE / Selection.PERCENTILE_SCALE + ")");
+                }
+                arg = (int) scaled;
+            } else {
+                arg = Integer.parseInt(text);
+            }
+        } catch (NumberFormatException e) {
+            throw new RemoteException(name(opcode) + " needs an argument, e.g. " + name(opcode)
+                    + (opcode == IntMath.OP_PERCENTILE ? ":99.9" : ":3") + ", got '" + operator + "'");
+        }
+        return check(opcode, arg);
+    }
+
+    // opcode of the operator name, for pushOperation(String)
+    public static int resolve(String operator) throws RemoteException {
+        int code = code(operator);
+        if (code == UNKNOWN) {
+            throw new RemoteException("Unknown operator: " + operator + " (use " + names() + ")");
+        }
+        return code;
+    }
+
+    // opcode itself if it is registered and needs no argument, for pushOperation(int)
+    public static int check(int opcode) throws RemoteException {
+        if (opcode < 0 || opcode >= table.names.length) {
+            throw new RemoteException("Unknown opcode: " + opcode + " (use 0.." + (table.names.length - 1) + ": " + names() + ")");
+        }
+        if (takesArgument(opcode)) {
+            throw new RemoteException(name(opcode) + " needs an argument, use pushOperation(opcode, arg)");
+        }
+        return opcode;
+    }
+
+    // arg itself if it suits the opcode, for pushOperation(int, int): 1..100000 thousandths of a
+    // percent for percentile, k >= 1 for kth (checked against the size when applied), else ignored
+    public static int check(int opcode, int arg) throws RemoteException {
+        if (!takesArgument(opcode)) {
+            check(opcode);
+            return 0;
+        }
+        if (opcode == IntMath.OP_PERCENTILE ? arg < 1 || arg > Selection.MAX_PERCENTILE : arg < 1) {
+            throw new RemoteException("bad argument " + arg + " for " + name(opcode)
+                    + (opcode == IntMath.OP_PERCENTILE ? " (thousandths of a percent, 1.." + Selection.MAX_PERCENTILE + ")" : " (k >= 1)"));
+        }
+        return arg;
+    }
+
+    // the streaming reducer of a registered opcode, null for the checkpointed min/max/gcd/lcm
+    public static Reducer reducer(int opcode) {
+        return table.reducers[opcode];
+    }
+
+    public static String name(int opcode) {
+        return table.names[opcode];
+    }
+
+    public static int count() {
+        return table.names.length;
+    }
+
+    // "min|max|gcd|lcm|..."
+    public static String names() {
+        return String.join("|", table.names);
+    }
+
+    // Add an operator and return its opcode; meant for startup, before clients connect
+    public static synchronized int register(String name, Reducer reducer) {
+        if (reducer == null) {
+            throw new IllegalArgumentException("operator " + name + " needs a Reducer");
+        }
+        String key = (name == null) ? "" : name.trim().toLowerCase(Locale.ROOT);
+        if (key.isEmpty() || key.matches(".*[\\s:].*")) {
+            throw new IllegalArgumentException("bad operator name '" + name + "'");
+        }
+        if (table.codes.containsKey(key)) {
+            throw new IllegalArgumentException("operator " + key + " is already registered");
+        }
+        table = table.with(key, reducer);
+        return table.names.length - 1;
+    }
+
+    // Register "name=ClassName,..." where each class is a Reducer with a no-arg constructor
+    public static void registerAll(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            String[] kv = entry.split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("bad operator entry '" + entry + "' (use name=ClassName)");
+            }
+            Reducer reducer;
+            try {
+                reducer = (Reducer) Class.forName(kv[1].trim()).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException("cannot create Reducer " + kv[1].trim() + " for operator " + kv[0].trim(), e);
+            }
+            int code = register(kv[0], reducer);
+            System.out.println("Operator " + name(code) + " registered as opcode " + code);
+        }
+    }
+
+    // One immutable generation of the registry
+    private static final class Table {
+        final String[] names;
+        final Reducer[] reducers;
+        final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+        Table(String[] names, Reducer[] reducers) {
+            this.names = names;
+            this.reducers = reducers;
+            for (int i = 0; i < names.length; i++) {
+                codes.put(names[i], i);
+            }
+        }
+
+        Table with(String name, Reducer reducer) {
+            int n = names.length;
+            String[] moreNames = Arrays.copyOf(names, n + 1);
+            Reducer[] moreReducers = Arrays.copyOf(reducers, n + 1);
+            moreNames[n] = name;
+            moreReducers[n] = reducer;
+            return new Table(moreNames, moreReducers);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.rmi.RemoteException;
+
+// Thrown at once, instead of waiting, when a call is over a Backpressure limit. It has no stack
+// trace: filling one in is most of the cost of an exception, and a server shedding load should
+// spend next to nothing per refusal. The client may back off and retry. Over RMI it arrives
+// wrapped in a ServerException, so test with isOverload().
+public class OverloadedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public OverloadedException(String message) {
+        super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    // true if t or one of its causes is an OverloadedException
+    public static boolean isOverload(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof OverloadedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
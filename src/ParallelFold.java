@@ -0,0 +1,205 @@
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// min/max/gcd/lcm folds over a slice of IntStack's backing array. All four are associative, so
+// once a slice holds at least threshold() values it is split across the common ForkJoinPool and
+// the halves are combined; below that, or when the common pool has a single thread, the fold
+// runs on the caller's thread as before. The threshold is set once at startup
+// (-Dcalculator.parallel.threshold, see ParallelFoldBenchmark for the crossover).
+public final class ParallelFold {
+    public static final int DEFAULT_THRESHOLD = 1 << 18;
+
+    // no task folds fewer values than this by itself
+    private static final int MIN_GRAIN = 1 << 14;
+
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+
+    private ParallelFold() {
+    }
+
+    // values from which folds go parallel; 0 turns the parallel path off
+    public static void setThreshold(int values) {
+        if (values < 0) {
+            throw new IllegalArgumentException("parallel threshold must be >= 0, got " + values);
+        }
+        threshold = values;
+    }
+
+    public static int threshold() {
+        return threshold;
+    }
+
+    // true if a fold over n values should be split
+    public static boolean parallel(int n) {
+        int t = threshold;
+        return t > 0 && n >= t && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    // op (IntMath.OP_MIN, OP_MAX or OP_GCD) over values[from .. to); gcd not yet made non-negative
+    public static int fold(int op, int[] values, int from, int to) {
+        if (parallel(to - from)) {
+            return ForkJoinPool.commonPool().invoke(new IntFold(op, values, from, to, grain(to - from)));
+        }
+        return foldRange(op, values, from, to);
+    }
+
+    // |lcm| of start and values[from .. to)
+    public static BigInteger lcm(BigInteger start, int[] values, int from, int to) {
+        if (parallel(to - from)) {
+            BigInteger rest = ForkJoinPool.commonPool().invoke(new LcmFold(values, from, to, grain(to - from)));
+            return IntMath.lcm(start, rest);
+        }
+        return lcmRange(start, values, from, to);
+    }
+
+    // Fold each block b in [fromBlock, toBlock] on its own: values[(b-1) << shift .. b << shift)
+    // goes into slot b of the arrays. IntStack then chains the slots onto its checkpoints.
+    public static void blocks(int[] values, int fromBlock, int toBlock, int shift,
+                              int[] minAt, int[] maxAt, int[] gcdAt, long[] lcmAt) {
+        int n = (toBlock - fromBlock + 1) << shift;
+        int grainBlocks = Math.max(1, grain(n) >>> shift);
+        ForkJoinPool.commonPool().invoke(new BlockFold(values, fromBlock, toBlock + 1, shift, grainBlocks,
+                minAt, maxAt, gcdAt, lcmAt));
+    }
+
+    private static int grain(int n) {
+        return Math.max(MIN_GRAIN, n / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    private static int foldRange(int op, int[] values, int from, int to) {
+        int r = op == IntMath.OP_MIN ? Integer.MAX_VALUE : op == IntMath.OP_MAX ? Integer.MIN_VALUE : IntMath.INIT_GCD;
+        for (int i = from; i < to; i++) {
+            r = combine(op, r, values[i]);
+        }
+        return r;
+    }
+
+    private static int combine(int op, int a, int b) {
+        if (op == IntMath.OP_MIN) return Math.min(a, b);
+        if (op == IntMath.OP_MAX) return Math.max(a, b);
+        return IntMath.gcd(a, b);
+    }
+
+    // the long fast path until the lcm leaves a long, BigInteger after that
+    static BigInteger lcmRange(BigInteger start, int[] values, int from, int to) {
+        BigInteger big = start;
+        int i = from;
+        if (start.bitLength() < 63) {
+            long l = start.longValue();
+            for (; i < to; i++) {
+                long next = IntMath.lcmExact(l, values[i]);
+                if (next == IntMath.LCM_OVERFLOW) break;
+                l = next;
+            }
+            big = BigInteger.valueOf(l);
+        }
+        for (; i < to; i++) {
+            big = IntMath.lcm(big, values[i]);
+        }
+        return big;
+    }
+
+    private static final class IntFold extends RecursiveTask<Integer> {
+        private final int op;
+        private final int[] values;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        IntFold(int op, int[] values, int from, int to, int grain) {
+            this.op = op;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        protected Integer compute() {
+            if (to - from <= grain) {
+                return foldRange(op, values, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            IntFold low = new IntFold(op, values, from, mid, grain);
+            low.fork();
+            int high = new IntFold(op, values, mid, to, grain).compute();
+            return combine(op, low.join(), high);
+        }
+    }
+
+    private static final class LcmFold extends RecursiveTask<BigInteger> {
+        private final int[] values;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        LcmFold(int[] values, int from, int to, int grain) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        protected BigInteger compute() {
+            if (to - from <= grain) {
+                return lcmRange(BigInteger.ONE, values, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            LcmFold low = new LcmFold(values, from, mid, grain);
+            low.fork();
+            BigInteger high = new LcmFold(values, mid, to, grain).compute();
+            return IntMath.lcm(low.join(), high);
+        }
+    }
+
+    // blocks [from, to), each folded into its own slot
+    private static final class BlockFold extends RecursiveAction {
+        private final int[] values;
+        private final int from;
+        private final int to;
+        private final int shift;
+        private final int grainBlocks;
+        private final int[] minAt;
+        private final int[] maxAt;
+        private final int[] gcdAt;
+        private final long[] lcmAt;
+
+        BlockFold(int[] values, int from, int to, int shift, int grainBlocks,
+                  int[] minAt, int[] maxAt, int[] gcdAt, long[] lcmAt) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.shift = shift;
+            this.grainBlocks = grainBlocks;
+            this.minAt = minAt;
+            this.maxAt = maxAt;
+            this.gcdAt = gcdAt;
+            this.lcmAt = lcmAt;
+        }
+
+        protected void compute() {
+            if (to - from <= grainBlocks) {
+                for (int b = from; b < to; b++) {
+                    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, g = IntMath.INIT_GCD;
+                    long l = IntMath.INIT_LCM;
+                    for (int i = (b - 1) << shift, end = b << shift; i < end; i++) {
+                        int v = values[i];
+                        if (v < min) min = v;
+                        if (v > max) max = v;
+                        g = IntMath.gcd(g, v);
+                        l = IntMath.lcmExact(l, v);
+                    }
+                    minAt[b] = min;
+                    maxAt[b] = max;
+                    gcdAt[b] = g;
+                    lcmAt[b] = l;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BlockFold(values, from, mid, shift, grainBlocks, minAt, maxAt, gcdAt, lcmAt),
+                    new BlockFold(values, mid, to, shift, grainBlocks, minAt, maxAt, gcdAt, lcmAt));
+        }
+    }
+}
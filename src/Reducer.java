@@ -0,0 +1,106 @@
+import java.math.BigInteger;
+
+// A pushOperation operator that streams over the stack values, registered with
+// Operators.register. The values arrive in no particular order (bottom first from IntStack,
+// top first from TreiberStack), so the operation must be commutative and associative.
+//
+// The fold runs in a long while it can: step() returns OVERFLOW once the accumulator no longer
+// fits, and the fold is redone exactly with stepBig(). finish() turns the accumulator and the
+// number of values into the result, e.g. avg divides by the count. foldBig refuses an accumulator
+// wider than IntMath.maxWideBits with an IllegalArgumentException, so a long product stops early.
+public abstract class Reducer {
+    // step() result when the accumulator does not fit in a long (the same value as IntStack.BIG)
+    public static final long OVERFLOW = Long.MIN_VALUE;
+
+    public abstract long identity();
+
+    // acc combined with v, or OVERFLOW
+    public abstract long step(long acc, int v);
+
+    public abstract BigInteger stepBig(BigInteger acc, BigInteger v);
+
+    public long finish(long acc, int count) {
+        return acc;
+    }
+
+    public BigInteger finish(BigInteger acc, int count) {
+        return acc;
+    }
+
+    // values[from .. to) folded and finished, or OVERFLOW when only foldBig can give the result
+    public final long fold(int[] values, int from, int to) {
+        long acc = identity();
+        for (int i = from; i < to; i++) {
+            acc = step(acc, values[i]);
+            if (acc == OVERFLOW) {
+                return OVERFLOW;
+            }
+        }
+        return finish(acc, to - from);
+    }
+
+    // The exact result over values[from .. to) and wide (a value beyond int, or null)
+    public final BigInteger foldBig(BigInteger wide, int[] values, int from, int to) {
+        long acc = identity();
+        int i = from;
+        for (; i < to; i++) {
+            long next = step(acc, values[i]);
+            if (next == OVERFLOW) break;
+            acc = next;
+        }
+        BigInteger big = BigInteger.valueOf(acc);
+        for (; i < to; i++) {
+            big = IntMath.checkWide(stepBig(big, BigInteger.valueOf(values[i])));
+        }
+        int count = to - from;
+        if (wide != null) {
+            big = IntMath.checkWide(stepBig(big, wide));
+            count++;
+        }
+        return finish(big, count);
+    }
+
+    // sum of the values
+    static class Sum extends Reducer {
+        public long identity() {
+            return 0;
+        }
+
+        public long step(long acc, int v) {
+            long r = acc + v;
+            // overflow only if both signs agree and the result's differs
+            return ((acc ^ r) & (v ^ r)) < 0 || r == OVERFLOW ? OVERFLOW : r;
+        }
+
+        public BigInteger stepBig(BigInteger acc, BigInteger v) {
+            return acc.add(v);
+        }
+    }
+
+    // product of the values; a 0 anywhere makes it 0
+    static final class Product extends Reducer {
+        public long identity() {
+            return 1;
+        }
+
+        public long step(long acc, int v) {
+            long r = acc * v;
+            return Math.multiplyHigh(acc, v) != (r >> 63) || r == OVERFLOW ? OVERFLOW : r;
+        }
+
+        public BigInteger stepBig(BigInteger acc, BigInteger v) {
+            return acc.multiply(v);
+        }
+    }
+
+    // sum / count, rounded towards zero like int division
+    static final class Avg extends Sum {
+        public long finish(long acc, int count) {
+            return acc / count;
+        }
+
+        public BigInteger finish(BigInteger acc, int count) {
+            return acc.divide(BigInteger.valueOf(count));
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Primary side of hot-standby replication, installed as the StackJournal of the shared
+// CalculatorImplementation. Every mutation is framed in lock order and queued to each replica;
+// a sender thread per replica writes the frames, so the stack lock never waits on the network.
+// A replica that connects gets a snapshot first (taken under the stack lock), then the stream;
+// one whose queue overflows is dropped and resyncs with a new snapshot when it reconnects.
+// Replication is asynchronous: the optional next journal (a WriteAheadLog) alone decides durability.
+public class ReplicationPrimary extends UnicastRemoteObject implements StackJournal, CalculatorReplication {
+    // frames: int length | byte type | long seq | payload, length counting type, seq and payload
+    static final byte SNAPSHOT = 1;    // int[] values, bottom first | BigInteger wide bottom (0 when none)
+    static final byte PUSH = 2;        // int
+    static final byte PUSH_ALL = 3;    // int[]
+    static final byte POP = 4;         // int count
+    static final byte COLLAPSE = 5;    // int result
+    static final byte HEARTBEAT = 6;   // long primary currentTimeMillis
+    static final byte ACK = 7;         // replica to primary: long echoed heartbeat millis; seq = last applied
+    static final byte COLLAPSE_WIDE = 8; // BigInteger result
+
+    static final long HEARTBEAT_MS = 100;
+    public static final int DEFAULT_QUEUE_FRAMES = 1 << 16;
+
+    private final int listenPort;
+    private final StackJournal next;
+    private final int queueFrames;
+    private final List<Link> links = new CopyOnWriteArrayList<Link>();
+
+    // written under the stack lock, read by the heartbeat and status calls
+    private volatile long seq;
+    private volatile CalculatorImplementation source;
+    private ServerSocket server;
+    private ScheduledExecutorService heartbeats;
+
+    // listen for replicas on 127.0.0.1:listenPort once started; next may be null
+    public ReplicationPrimary(int listenPort, StackJournal next, int queueFrames, int port,
+                              RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+        super(port, csf, ssf);
+        this.listenPort = listenPort;
+        this.next = next;
+        this.queueFrames = queueFrames;
+    }
+
+    // Start accepting replicas for this stack; source must journal through this object
+    public synchronized void start(CalculatorImplementation source) throws IOException {
+        if (server != null) {
+            return;
+        }
+        this.source = source;
+        server = new ServerSocket(listenPort, 50, InetAddress.getLoopbackAddress());
+        daemon("replication-accept", new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        });
+        heartbeats = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "replication-heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        heartbeats.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                heartbeat();
+            }
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public int getListenPort() {
+        return server == null ? listenPort : server.getLocalPort();
+    }
+
+    public long pushed(int val) throws IOException {
+        long durable = next == null ? 0 : next.pushed(val);
+        return ship(frame(PUSH, ++seq, val, null), durable);
+    }
+
+    public long pushedAll(int[] vals) throws IOException {
+        long durable = next == null ? 0 : next.pushedAll(vals);
+        return ship(frame(PUSH_ALL, ++seq, 0, vals), durable);
+    }
+
+    public long popped(int count) throws IOException {
+        long durable = next == null ? 0 : next.popped(count);
+        return ship(frame(POP, ++seq, count, null), durable);
+    }
+
+    public long collapsed(int result) throws IOException {
+        long durable = next == null ? 0 : next.collapsed(result);
+        return ship(frame(COLLAPSE, ++seq, result, null), durable);
+    }
+
+    public long collapsedWide(BigInteger result) throws IOException {
+        long durable = next == null ? 0 : next.collapsedWide(result);
+        return ship(wideFrame(COLLAPSE_WIDE, ++seq, null, result), durable);
+    }
+
+    public boolean checkpointDue() {
+        return next != null && next.checkpointDue();
+    }
+
+    // Also the point where replicas that connected since the last call get their snapshot
+    public long checkpoint(int[] bottomFirst, BigInteger wideBottom) throws IOException {
+        long durable = next == null ? 0 : next.checkpoint(bottomFirst, wideBottom);
+        byte[] snapshot = null;
+        for (Link link : links) {
+            if (!link.live) {
+                if (snapshot == null) {
+                    snapshot = wideFrame(SNAPSHOT, seq, bottomFirst, wideBottom == null ? BigInteger.ZERO : wideBottom);
+                }
+                link.offer(snapshot);
+                link.live = true;
+            }
+        }
+        return durable;
+    }
+
+    public void awaitDurable(long seq) throws IOException {
+        if (next != null) {
+            next.awaitDurable(seq);
+        }
+    }
+
+    public String role() {
+        return "primary";
+    }
+
+    public long sequence() {
+        return seq;
+    }
+
+    public long lagRecords() {
+        long lag = 0;
+        for (Link link : links) {
+            if (link.live) lag = Math.max(lag, seq - link.acked);
+        }
+        return lag;
+    }
+
+    public long lagMillis() {
+        long lag = 0;
+        for (Link link : links) {
+            if (link.live) lag = Math.max(lag, link.roundTripMillis);
+        }
+        return lag;
+    }
+
+    public int replicas() {
+        return links.size();
+    }
+
+    public void promote() {
+        // already writable
+    }
+
+    // Queue the frame to every replica that has its snapshot; no encoding cost without replicas.
+    // Returns the sequence to wait for: the next journal's, or this one's when there is none.
+    private long ship(byte[] frame, long durable) {
+        for (Link link : links) {
+            if (link.live) link.offer(frame);
+        }
+        return next == null ? seq : durable;
+    }
+
+    private byte[] frame(byte type, long seq, int arg, int[] vals) {
+        if (links.isEmpty()) {
+            return null;
+        }
+        int payload = vals == null ? 4 : 4 + 4 * vals.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 8 + payload);
+        buf.putInt(1 + 8 + payload).put(type).putLong(seq);
+        if (vals == null) {
+            buf.putInt(arg);
+        } else {
+            BinaryProtocol.putInts(buf, vals);
+        }
+        return buf.array();
+    }
+
+    // vals (if any) followed by a BigInteger
+    private byte[] wideFrame(byte type, long seq, int[] vals, BigInteger big) {
+        if (links.isEmpty()) {
+            return null;
+        }
+        int payload = (vals == null ? 0 : 4 + 4 * vals.length) + BinaryProtocol.bigSize(big);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 8 + payload);
+        buf.putInt(1 + 8 + payload).put(type).putLong(seq);
+        if (vals != null) {
+            BinaryProtocol.putInts(buf, vals);
+        }
+        BinaryProtocol.putBig(buf, big);
+        return buf.array();
+    }
+
+    private void heartbeat() {
+        if (links.isEmpty()) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 8 + 8);
+        buf.putInt(1 + 8 + 8).put(HEARTBEAT).putLong(seq).putLong(System.currentTimeMillis());
+        byte[] frame = buf.array();
+        for (Link link : links) {
+            if (link.live) link.offer(frame);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            Link link = null;
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                link = new Link(socket);
+                links.add(link);
+                // the snapshot is queued by checkpoint(), under the stack lock
+                source.checkpoint();
+                System.out.println("Replica connected from " + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (link != null) {
+                    link.close();
+                }
+                if (!server.isClosed()) {
+                    System.err.println("Replication accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable body) {
+        Thread t = new Thread(body, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // One replica connection: a bounded frame queue with a sender thread, and a reader for acks
+    private final class Link {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueFrames);
+        private final Thread sender;
+        // set under the stack lock once the snapshot is queued
+        volatile boolean live;
+        volatile long acked;
+        volatile long roundTripMillis;
+        private volatile boolean closed;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            sender = daemon("replication-send", new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+            daemon("replication-ack", new Runnable() {
+                public void run() {
+                    readAcks(in);
+                }
+            });
+        }
+
+        // never blocks the stack lock: a replica that cannot keep up is dropped instead
+        void offer(byte[] frame) {
+            if (!closed && !queue.offer(frame)) {
+                System.err.println("Replica " + socket.getRemoteSocketAddress() + " fell " + queueFrames + " frames behind, dropping it");
+                close();
+            }
+        }
+
+        private void send() {
+            try {
+                while (!closed) {
+                    out.write(queue.take());
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // replica gone
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                close();
+            }
+        }
+
+        private void readAcks(DataInputStream in) {
+            try {
+                while (!closed) {
+                    int length = in.readInt();
+                    byte type = in.readByte();
+                    long applied = in.readLong();
+                    long echoed = in.readLong();
+                    if (length != 17 || type != ACK) {
+                        throw new IOException("bad replication ack");
+                    }
+                    acked = applied;
+                    roundTripMillis = System.currentTimeMillis() - echoed;
+                }
+            } catch (IOException e) {
+                // replica gone
+            } finally {
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            links.remove(this);
+            if (sender != null) {
+                sender.interrupt();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            System.out.println("Replica " + socket.getRemoteSocketAddress() + " disconnected");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+
+// Standby side of hot-standby replication. Follows a ReplicationPrimary at host:port and applies
+// its snapshot and mutation stream to a read-only CalculatorImplementation, reconnecting (and
+// resyncing from a fresh snapshot) whenever the stream breaks. promote() stops following and
+// makes the stack writable; if a ReplicationPrimary was given, it starts serving replicas of its own.
+public class ReplicationReplica extends UnicastRemoteObject implements CalculatorReplication {
+    static final long RETRY_MS = 500;
+
+    private final String host;
+    private final int port;
+    private final CalculatorImplementation calc;
+    private final ReplicationPrimary afterPromotion;
+    private Thread follower;
+
+    private volatile boolean promoted;
+    private volatile Socket socket;
+    private volatile long applied;
+    private volatile long primarySeq;
+    private volatile long lagMillis;
+
+    // primary is "host:port"; afterPromotion (may be null) must be calc's journal
+    public ReplicationReplica(String primary, CalculatorImplementation calc, ReplicationPrimary afterPromotion,
+                              int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+        super(port, csf, ssf);
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("replication primary must be host:port, got " + primary);
+        }
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.calc = calc;
+        this.afterPromotion = afterPromotion;
+    }
+
+    // Put the stack on standby and start following the primary
+    public synchronized void start() {
+        calc.standby();
+        follower = new Thread(new Runnable() {
+            public void run() {
+                follow();
+            }
+        }, "replication-follow");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    public String role() {
+        return promoted ? "promoted" : "replica";
+    }
+
+    public long sequence() {
+        return applied;
+    }
+
+    public long lagRecords() {
+        return promoted ? 0 : Math.max(0, primarySeq - applied);
+    }
+
+    public long lagMillis() {
+        return promoted ? 0 : lagMillis;
+    }
+
+    public int replicas() throws RemoteException {
+        if (promoted) {
+            return afterPromotion == null ? 0 : afterPromotion.replicas();
+        }
+        return socket != null ? 1 : 0;
+    }
+
+    // Stop following, wait until the last frame in flight is applied, then accept writes
+    public synchronized void promote() throws RemoteException {
+        if (promoted) {
+            return;
+        }
+        promoted = true;
+        closeSocket();
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("promote interrupted", e);
+        }
+        calc.promote();
+        System.out.println("Promoted to primary at sequence " + applied);
+        if (afterPromotion != null) {
+            try {
+                afterPromotion.start(calc);
+                // a durable journal behind it starts from the replicated state
+                calc.checkpoint();
+            } catch (IOException e) {
+                throw new RemoteException("promoted, but could not start serving replicas", e);
+            }
+        }
+    }
+
+    private void follow() {
+        boolean reported = false;
+        while (!promoted) {
+            try {
+                Socket s = new Socket(host, port);
+                s.setTcpNoDelay(true);
+                socket = s;
+                if (promoted) {
+                    break;
+                }
+                System.out.println("Following primary " + host + ":" + port);
+                reported = false;
+                stream(s);
+            } catch (IOException e) {
+                if (!promoted && !reported) {
+                    System.err.println("Replication stream from " + host + ":" + port + " unavailable: " + e);
+                    reported = true;
+                }
+            } finally {
+                closeSocket();
+            }
+            if (!promoted) {
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Apply frames until the stream breaks or we are promoted
+    private void stream(Socket s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        boolean synced = false;
+        while (!promoted) {
+            int length = in.readInt();
+            if (length < 9 || length > BinaryProtocol.MAX_FRAME) {
+                throw new IOException("bad replication frame length " + length);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            ByteBuffer buf = ByteBuffer.wrap(body);
+            byte type = buf.get();
+            long seq = buf.getLong();
+
+            if (type == ReplicationPrimary.HEARTBEAT) {
+                primarySeq = Math.max(seq, applied);
+                long sent = buf.getLong();
+                lagMillis = Math.max(0, System.currentTimeMillis() - sent);
+                out.writeInt(17);
+                out.writeByte(ReplicationPrimary.ACK);
+                out.writeLong(applied);
+                out.writeLong(sent);
+                out.flush();
+                continue;
+            }
+            if (type == ReplicationPrimary.SNAPSHOT) {
+                int[] values = BinaryProtocol.getInts(buf);
+                BigInteger wide = BinaryProtocol.getBig(buf);
+                calc.loadReplicated(values, wide.signum() == 0 ? null : wide);
+                synced = true;
+            } else if (!synced) {
+                throw new IOException("replication stream did not start with a snapshot");
+            } else if (type == ReplicationPrimary.PUSH) {
+                calc.applyReplicated(false, 0, new int[]{buf.getInt()});
+            } else if (type == ReplicationPrimary.PUSH_ALL) {
+                calc.applyReplicated(false, 0, BinaryProtocol.getInts(buf));
+            } else if (type == ReplicationPrimary.POP) {
+                calc.applyReplicated(false, buf.getInt(), null);
+            } else if (type == ReplicationPrimary.COLLAPSE) {
+                calc.applyReplicated(true, 0, new int[]{buf.getInt()});
+            } else if (type == ReplicationPrimary.COLLAPSE_WIDE) {
+                calc.loadReplicated(new int[]{0}, BinaryProtocol.getBig(buf));
+            } else {
+                throw new IOException("unknown replication frame " + type);
+            }
+            applied = seq;
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        socket = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
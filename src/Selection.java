@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+// Order statistics for the median / percentile / kth operators: the rank each one asks for,
+// and the value at a rank found by introselect. That is quickselect in place with a
+// median-of-three pivot and three-way partitioning (so runs of equal values finish at once),
+// which is O(n) expected; if the range has not shrunk enough after about 2*log2(n) rounds the
+// input is adversarial, and the remaining range is sorted instead, bounding it at O(n log n).
+// Nothing is allocated: callers pass a scratch copy of the values, which gets reordered.
+public final class Selection {
+    // percentile arguments are in thousandths of a percent: 99900 is p99.9
+    public static final int PERCENTILE_SCALE = 1000;
+    public static final int MAX_PERCENTILE = 100 * PERCENTILE_SCALE;
+
+    // ranges this small are finished by insertion sort
+    private static final int INSERTION = 16;
+
+    private Selection() {
+    }
+
+    public static boolean isSelection(int op) {
+        return op == IntMath.OP_MEDIAN || op == IntMath.OP_PERCENTILE || op == IntMath.OP_KTH;
+    }
+
+    // 0-based rank of the (lower) value op asks for among n values: the lower middle for the
+    // median, the nearest rank for a percentile (the smallest value with at least p% of the
+    // values at or below it), k-1 for kth
+    public static int lowRank(int op, int arg, int n) {
+        if (op == IntMath.OP_MEDIAN) {
+            return (n - 1) >>> 1;
+        }
+        if (op == IntMath.OP_PERCENTILE) {
+            long rank = ((long) arg * n + MAX_PERCENTILE - 1) / MAX_PERCENTILE;
+            return (int) Math.max(0, rank - 1);
+        }
+        if (arg > n) {
+            throw new IllegalArgumentException("kth:" + arg + " on a stack of " + n + " values");
+        }
+        return arg - 1;
+    }
+
+    // rank of the upper value; only an even-sized median has two, which are averaged
+    public static int highRank(int op, int arg, int n) {
+        return op == IntMath.OP_MEDIAN ? n >>> 1 : lowRank(op, arg, n);
+    }
+
+    // The k-th smallest (0-based) of a[0 .. n); reorders a so that a[k] holds it
+    public static int select(int[] a, int n, int k) {
+        if (k < 0 || k >= n) {
+            throw new IllegalArgumentException("rank " + k + " out of 0.." + (n - 1));
+        }
+        int lo = 0, hi = n - 1;
+        int rounds = 2 * (32 - Integer.numberOfLeadingZeros(n));
+        while (hi - lo >= INSERTION) {
+            if (rounds-- == 0) {
+                Arrays.sort(a, lo, hi + 1);
+                return a[k];
+            }
+            int pivot = median(a[lo], a[(lo + hi) >>> 1], a[hi]);
+            // a[lo .. lt) < pivot, a[lt .. i) == pivot, a(gt .. hi] > pivot
+            int lt = lo, i = lo, gt = hi;
+            while (i <= gt) {
+                int v = a[i];
+                if (v < pivot) {
+                    a[i++] = a[lt];
+                    a[lt++] = v;
+                } else if (v > pivot) {
+                    a[i] = a[gt];
+                    a[gt--] = v;
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) hi = lt - 1;
+            else if (k > gt) lo = gt + 1;
+            else return pivot;
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            int v = a[i];
+            int j = i - 1;
+            while (j >= lo && a[j] > v) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = v;
+        }
+        return a[k];
+    }
+
+    // After select(a, n, k): the (k+1)-th smallest, the minimum of what lies above k
+    public static int next(int[] a, int n, int k) {
+        int m = a[k + 1];
+        for (int i = k + 2; i < n; i++) {
+            if (a[i] < m) m = a[i];
+        }
+        return m;
+    }
+
+    private static int median(int a, int b, int c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+}
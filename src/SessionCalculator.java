@@ -0,0 +1,106 @@
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+
+// One session of CalculatorSessions as a Calculator: each call goes to the shared multiplexing
+// object with this session's id and key. It is sent to the client by value, so a session costs
+// the client two longs next to the one stub, and the server no exported object of its own.
+public class SessionCalculator implements Calculator, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final CalculatorSessions sessions;
+    private final long id;
+    private final long key;
+
+    public SessionCalculator(CalculatorSessions sessions, long id, long key) {
+        this.sessions = sessions;
+        this.id = id;
+        this.key = key;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public void pushValue(int val) throws RemoteException {
+        sessions.pushValue(id, key, val);
+    }
+
+    public void pushValues(int[] vals) throws RemoteException {
+        sessions.pushValues(id, key, vals);
+    }
+
+    public void pushOperation(String operator) throws RemoteException {
+        sessions.pushOperation(id, key, operator);
+    }
+
+    public void pushOperation(int opcode) throws RemoteException {
+        sessions.pushOperation(id, key, opcode);
+    }
+
+    public void pushOperation(int opcode, int arg) throws RemoteException {
+        sessions.pushOperation(id, key, opcode, arg);
+    }
+
+    public int pop() throws RemoteException {
+        return sessions.pop(id, key);
+    }
+
+    public int[] popN(int n) throws RemoteException {
+        return sessions.popN(id, key, n);
+    }
+
+    public int[] drain() throws RemoteException {
+        return sessions.drain(id, key);
+    }
+
+    public boolean isEmpty() throws RemoteException {
+        return sessions.isEmpty(id, key);
+    }
+
+    public BigInteger popWide() throws RemoteException {
+        return sessions.popWide(id, key);
+    }
+
+    public Integer popOrWait(long timeoutMs) throws RemoteException {
+        return sessions.popOrWait(id, key, timeoutMs);
+    }
+
+    public Integer tryPop() throws RemoteException {
+        return sessions.tryPop(id, key);
+    }
+
+    public Integer peek() throws RemoteException {
+        return sessions.peek(id, key);
+    }
+
+    public int size() throws RemoteException {
+        return sessions.size(id, key);
+    }
+
+    // The delay is waited out on this side, so no server thread sleeps for it
+    public int delayPop(int millis) throws RemoteException {
+        try {
+            Thread.sleep(Math.max(0, millis));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("delayPop is interrupted", ie);
+        }
+        return pop();
+    }
+
+    // The delay runs on this side's shared timer, which then does an ordinary pop
+    public void delayPopAsync(int millis, DelayPopCallback callback) throws RemoteException {
+        if (callback == null) throw new RemoteException("delayPopAsync called without a callback");
+        DelayScheduler.schedule(this, millis, callback);
+    }
+
+    // end the session now instead of when its lease runs out
+    public boolean close() throws RemoteException {
+        return sessions.close(id, key);
+    }
+}
@@ -0,0 +1,189 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps track of the per-client stacks handed out by CalculatorPrivateImpl.openSession() and
+// connect(). A stack lives as long as it is used at least once per lease; a sweeper unexports
+// idle ones explicitly instead of waiting for distributed GC. Sessions and connect() stacks are
+// capped apart, so clients connecting in a loop cannot use up the sessions. Session ids are 128
+// random bits, so one client cannot reconnect to or close another's stack by guessing its id.
+public class SessionManager {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long leaseNanos;
+    private final int maxSessions;
+    private final int maxConnections;
+    private final int port;
+    private final RMIClientSocketFactory csf;
+    private final RMIServerSocketFactory ssf;
+
+    private final Map<String, CalculatorPerClient> sessions = new ConcurrentHashMap<String, CalculatorPerClient>();
+    private final AtomicInteger live = new AtomicInteger();
+    // connect() stacks: no id, so they cannot be reconnected to, only leased
+    private final Set<CalculatorPerClient> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger liveConnections = new AtomicInteger();
+    private final AtomicLong evicted = new AtomicLong();
+    private final ScheduledExecutorService sweeper;
+
+    public SessionManager(long leaseMillis, int maxSessions) {
+        this(leaseMillis, maxSessions, maxSessions, 0, null, null);
+    }
+
+    // stacks are exported on the given port through the given socket factories (null = RMI defaults)
+    public SessionManager(long leaseMillis, int maxSessions, int maxConnections, int port,
+                          RMIClientSocketFactory csf, RMIServerSocketFactory ssf) {
+        if (leaseMillis <= 0) throw new IllegalArgumentException("lease must be positive: " + leaseMillis);
+        if (maxSessions <= 0) throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        if (maxConnections <= 0) throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.maxSessions = maxSessions;
+        this.maxConnections = maxConnections;
+        this.port = port;
+        this.csf = csf;
+        this.ssf = ssf;
+
+        // sweep a few times per lease, so an idle session lives at most ~1.25 leases
+        long period = Math.max(1, leaseMillis / 4);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "session-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Create and export a new per-client stack, unless the cap is reached
+    public CalculatorSession open() throws RemoteException {
+        CalculatorPerClient calc = export(live, maxSessions, "sessions");
+        String id = newId();
+        while (sessions.putIfAbsent(id, calc) != null) {
+            id = newId();
+        }
+        return new CalculatorSession(id, calc);
+    }
+
+    // A leased stack without an id, for connect(); capped by maxConnections, not maxSessions
+    public Calculator connect() throws RemoteException {
+        CalculatorPerClient calc = export(liveConnections, maxConnections, "connections");
+        connections.add(calc);
+        return calc;
+    }
+
+    // Hand back the still-exported stack of an earlier session and renew its lease
+    public Calculator reconnect(String id) throws RemoteException {
+        CalculatorPerClient calc = id == null ? null : sessions.get(id);
+        if (calc == null) {
+            throw new RemoteException("session is unknown or has expired");
+        }
+        calc.touch();
+        return calc;
+    }
+
+    // Drop a session now; returns false if it was already gone
+    public boolean close(String id) {
+        CalculatorPerClient calc = id == null ? null : sessions.remove(id);
+        if (calc == null) return false;
+        release(calc, live);
+        return true;
+    }
+
+    // openSession() sessions that are exported
+    public int liveSessions() {
+        return live.get();
+    }
+
+    // connect() stacks that are exported
+    public int liveConnections() {
+        return liveConnections.get();
+    }
+
+    // sessions and connect() stacks removed because their lease ran out
+    public long evictedSessions() {
+        return evicted.get();
+    }
+
+    // Unexport every stack whose last call is older than the lease
+    void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, CalculatorPerClient>> it = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CalculatorPerClient> e = it.next();
+            CalculatorPerClient calc = e.getValue();
+            if (now - calc.lastUsedNanos() > leaseNanos && sessions.remove(e.getKey(), calc)) {
+                release(calc, live);
+                evicted.incrementAndGet();
+            }
+        }
+        for (CalculatorPerClient calc : connections) {
+            if (now - calc.lastUsedNanos() > leaseNanos && connections.remove(calc)) {
+                release(calc, liveConnections);
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        for (String id : sessions.keySet()) {
+            close(id);
+        }
+        for (CalculatorPerClient calc : connections) {
+            if (connections.remove(calc)) release(calc, liveConnections);
+        }
+    }
+
+    // reserve a place under cap in count, then export a new stack
+    private CalculatorPerClient export(AtomicInteger count, int cap, String what) throws RemoteException {
+        if (count.incrementAndGet() > cap) {
+            count.decrementAndGet();
+            throw new RemoteException("too many live " + what + " (max " + cap + ")");
+        }
+        try {
+            return new CalculatorPerClient(port, csf, ssf);
+        } catch (RemoteException e) {
+            count.decrementAndGet();
+            throw e;
+        }
+    }
+
+    // 128 bits from SecureRandom as 32 hex digits
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        char[] out = new char[32];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 15];
+            out[2 * i + 1] = HEX[bytes[i] & 15];
+        }
+        return new String(out);
+    }
+
+    private void release(CalculatorPerClient calc, AtomicInteger count) {
+        count.decrementAndGet();
+        try {
+            UnicastRemoteObject.unexportObject(calc, true);
+        } catch (NoSuchObjectException ignored) {
+            // already unexported
+        }
+    }
+}
@@ -0,0 +1,361 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Off-heap storage for very many small int stacks, used by CalculatorSessionsImpl. Values live in
+// direct ByteBuffer slabs outside the Java heap, in blocks of 4, 8, 16, ... ints. A stack moves
+// to the next block size when it fills its block and back down once it is under a quarter full;
+// freed blocks go on a free list per size (linked through the blocks themselves), so slabs are
+// reused and never returned. The header of a stack (block address, size, block size, generation,
+// last use, key) is one entry in primitive arrays kept in pages of PAGE stacks, so the garbage
+// collector sees a few arrays instead of objects per stack: 4 bytes per value plus about 32
+// bytes per stack.
+//
+// A stack is addressed by id = generation << 32 | slot. Its slot's generation is odd while it is
+// open and is bumped on close, so an id used after close, or after the slot was reused, is
+// refused instead of reaching someone else's values. Slots and generations are easy to guess, so
+// each open also draws a random 64-bit key, and callers from outside must name the stack by id
+// and key (isOpen(id, key)). Callers hold lock(id) around every call on a stack; allocation is
+// synchronized on the store.
+public class SlabStore {
+    public static final int DEFAULT_SLAB_BYTES = 4 << 20;
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE = 1 << PAGE_SHIFT;
+    private static final int MIN_BLOCK = 4;          // ints in the smallest block
+    private static final long NONE = -1;
+    private static final int STRIPES = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int slabInts;
+    private final int maxStacks;
+    private final int classes;
+    private final AtomicReferenceArray<Page> pages;
+    private final Object[] stripes = new Object[STRIPES];
+    private final long epoch = System.nanoTime();
+
+    // guarded by this
+    private volatile IntBuffer[] slabs = new IntBuffer[0];
+    private final long[] freeHead;
+    private int bumpSlab = -1;
+    private int bumpOffset;
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
+    private int nextSlot;
+    private int open;
+
+    public SlabStore(int slabBytes, int maxStacks) {
+        if (slabBytes < MIN_BLOCK * 4 || Integer.bitCount(slabBytes) != 1) {
+            throw new IllegalArgumentException("slab size must be a power of two >= 16 bytes, got " + slabBytes);
+        }
+        if (maxStacks <= 0) throw new IllegalArgumentException("maxStacks must be positive: " + maxStacks);
+        this.slabInts = slabBytes / 4;
+        this.maxStacks = maxStacks;
+        this.classes = Integer.numberOfTrailingZeros(slabInts / MIN_BLOCK) + 1;
+        this.freeHead = new long[classes];
+        Arrays.fill(freeHead, NONE);
+        this.pages = new AtomicReferenceArray<Page>((maxStacks + PAGE - 1) >>> PAGE_SHIFT);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }
+
+    // the monitor to hold around calls on the stack id
+    public Object lock(long id) {
+        return stripes[(int) id & (STRIPES - 1)];
+    }
+
+    // most values one stack can hold: one block the size of a slab
+    public int maxValues() {
+        return slabInts;
+    }
+
+    // Open a new empty stack and return its id, or -1 if maxStacks stacks are open; key(id) is its key
+    public long open() {
+        int slot;
+        synchronized (this) {
+            if (open == maxStacks) return -1;
+            open++;
+            if (freeSlotCount > 0) {
+                slot = freeSlots[--freeSlotCount];
+            } else {
+                slot = nextSlot++;
+                if (pages.get(slot >>> PAGE_SHIFT) == null) pages.set(slot >>> PAGE_SHIFT, new Page());
+            }
+        }
+        Page p = pages.get(slot >>> PAGE_SHIFT);
+        int i = slot & (PAGE - 1);
+        long key = RANDOM.nextLong();
+        synchronized (stripes[slot & (STRIPES - 1)]) {
+            p.generation[i]++;
+            p.key[i] = key;
+            p.block[i] = NONE;
+            p.size[i] = 0;
+            p.sizeClass[i] = 0;
+            p.lastUsed[i] = now();
+            return ((long) p.generation[i] << 32) | slot;
+        }
+    }
+
+    // Close the stack and free its values; false if id is not open. Caller holds lock(id)
+    public boolean close(long id) {
+        if (!isOpen(id)) return false;
+        Page p = page(id);
+        int i = index(id);
+        if (p.block[i] != NONE) free(p.block[i], p.sizeClass[i]);
+        p.block[i] = NONE;
+        p.size[i] = 0;
+        p.key[i] = 0;
+        p.generation[i]++;
+        synchronized (this) {
+            open--;
+            if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+            freeSlots[freeSlotCount++] = (int) id;
+        }
+        return true;
+    }
+
+    // the random key drawn when the stack was opened; caller holds lock(id) on an open id
+    public long key(long id) {
+        return page(id).key[index(id)];
+    }
+
+    // id is open and key is the one it was opened with
+    public boolean isOpen(long id, long key) {
+        return isOpen(id) && page(id).key[index(id)] == key;
+    }
+
+    public boolean isOpen(long id) {
+        int slot = (int) id;
+        if (slot < 0 || (slot >>> PAGE_SHIFT) >= pages.length()) return false;
+        Page p = pages.get(slot >>> PAGE_SHIFT);
+        int gen = (int) (id >>> 32);
+        return p != null && (gen & 1) == 1 && p.generation[slot & (PAGE - 1)] == gen;
+    }
+
+    public int size(long id) {
+        return page(id).size[index(id)];
+    }
+
+    // mark the stack as used now, for idle()
+    public void touch(long id) {
+        page(id).lastUsed[index(id)] = now();
+    }
+
+    public void push(long id, int v) {
+        Page p = page(id);
+        int i = index(id);
+        int n = p.size[i];
+        reserve(p, i, n + 1);
+        slab(p.block[i]).put(offset(p.block[i]) + n, v);
+        p.size[i] = n + 1;
+    }
+
+    // push every value in order, vals[vals.length - 1] ends up on top
+    public void pushAll(long id, int[] vals) {
+        if (vals.length == 0) return;
+        Page p = page(id);
+        int i = index(id);
+        int n = p.size[i];
+        reserve(p, i, n + vals.length);
+        slab(p.block[i]).put(offset(p.block[i]) + n, vals);
+        p.size[i] = n + vals.length;
+    }
+
+    // callers check size() first
+    public int peek(long id) {
+        Page p = page(id);
+        int i = index(id);
+        return slab(p.block[i]).get(offset(p.block[i]) + p.size[i] - 1);
+    }
+
+    // pop the top n values, result[0] is the old top; callers check size() first
+    public int[] popN(long id, int n) {
+        Page p = page(id);
+        int i = index(id);
+        int size = p.size[i];
+        int[] out = new int[n];
+        if (n > 0) {
+            IntBuffer slab = slab(p.block[i]);
+            int top = offset(p.block[i]) + size - 1;
+            for (int k = 0; k < n; k++) out[k] = slab.get(top - k);
+            p.size[i] = size - n;
+            shrink(p, i);
+        }
+        return out;
+    }
+
+    public int pop(long id) {
+        Page p = page(id);
+        int i = index(id);
+        int v = slab(p.block[i]).get(offset(p.block[i]) + p.size[i] - 1);
+        p.size[i]--;
+        shrink(p, i);
+        return v;
+    }
+
+    // copy of the values, bottom first
+    public int[] toArray(long id) {
+        Page p = page(id);
+        int i = index(id);
+        int[] out = new int[p.size[i]];
+        if (out.length > 0) slab(p.block[i]).get(offset(p.block[i]), out);
+        return out;
+    }
+
+    // drop every value, keeping the smallest block
+    public void clear(long id) {
+        Page p = page(id);
+        int i = index(id);
+        p.size[i] = 0;
+        shrink(p, i);
+    }
+
+    // Close the open stacks unused for at least idleNanos and return their ids
+    public long[] closeIdle(long idleNanos) {
+        int limit;
+        synchronized (this) {
+            limit = nextSlot;
+        }
+        int idleMs = (int) Math.min(Integer.MAX_VALUE, idleNanos / 1000000L);
+        int now = now();
+        long[] out = new long[16];
+        int count = 0;
+        for (int slot = 0; slot < limit; slot++) {
+            Page p = pages.get(slot >>> PAGE_SHIFT);
+            int i = slot & (PAGE - 1);
+            synchronized (stripes[slot & (STRIPES - 1)]) {
+                long id = ((long) p.generation[i] << 32) | slot;
+                if (isOpen(id) && now - p.lastUsed[i] >= idleMs) {
+                    close(id);
+                    if (count == out.length) out = Arrays.copyOf(out, count * 2);
+                    out[count++] = id;
+                }
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    public synchronized int openStacks() {
+        return open;
+    }
+
+    // direct memory taken by slabs
+    public long offHeapBytes() {
+        return (long) slabs.length * slabInts * 4;
+    }
+
+    // Make room for n values, moving to a bigger block if needed
+    private void reserve(Page p, int i, int n) {
+        if (n > slabInts) {
+            throw new IllegalStateException("an off-heap stack holds at most " + slabInts + " values");
+        }
+        long block = p.block[i];
+        if (block != NONE && n <= MIN_BLOCK << p.sizeClass[i]) return;
+        move(p, i, classFor(n));
+    }
+
+    // Move to the block size for twice the values once the stack is under a quarter of its block
+    private void shrink(Page p, int i) {
+        int c = p.sizeClass[i];
+        if (c > 0 && p.size[i] < (MIN_BLOCK << c) / 4) {
+            move(p, i, classFor(Math.max(1, p.size[i] * 2)));
+        }
+    }
+
+    private void move(Page p, int i, int c) {
+        long to = allocate(c);
+        long from = p.block[i];
+        int n = p.size[i];
+        if (from != NONE) {
+            if (n > 0) {
+                int[] tmp = new int[n];
+                slab(from).get(offset(from), tmp);
+                slab(to).put(offset(to), tmp);
+            }
+            free(from, p.sizeClass[i]);
+        }
+        p.block[i] = to;
+        p.sizeClass[i] = (byte) c;
+    }
+
+    private static int classFor(int n) {
+        int c = 0;
+        while ((MIN_BLOCK << c) < n) c++;
+        return c;
+    }
+
+    private synchronized long allocate(int c) {
+        long block = freeHead[c];
+        if (block != NONE) {
+            IntBuffer slab = slab(block);
+            int off = offset(block);
+            freeHead[c] = ((long) slab.get(off) << 32) | (slab.get(off + 1) & 0xffffffffL);
+            return block;
+        }
+        int ints = MIN_BLOCK << c;
+        if (bumpSlab < 0 || bumpOffset + ints > slabInts) {
+            // hand the rest of the current slab to the free lists, largest blocks first
+            if (bumpSlab >= 0) {
+                for (int k = classes - 1; k >= 0; k--) {
+                    while (bumpOffset + (MIN_BLOCK << k) <= slabInts) {
+                        free(address(bumpSlab, bumpOffset), k);
+                        bumpOffset += MIN_BLOCK << k;
+                    }
+                }
+            }
+            IntBuffer[] more = Arrays.copyOf(slabs, slabs.length + 1);
+            more[slabs.length] = ByteBuffer.allocateDirect(slabInts * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            slabs = more;
+            bumpSlab = slabs.length - 1;
+            bumpOffset = 0;
+        }
+        block = address(bumpSlab, bumpOffset);
+        bumpOffset += ints;
+        return block;
+    }
+
+    private synchronized void free(long block, int c) {
+        IntBuffer slab = slab(block);
+        int off = offset(block);
+        slab.put(off, (int) (freeHead[c] >>> 32));
+        slab.put(off + 1, (int) freeHead[c]);
+        freeHead[c] = block;
+    }
+
+    private IntBuffer slab(long block) {
+        return slabs[(int) (block >>> 32)];
+    }
+
+    private static int offset(long block) {
+        return (int) block;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private Page page(long id) {
+        return pages.get((int) id >>> PAGE_SHIFT);
+    }
+
+    private static int index(long id) {
+        return (int) id & (PAGE - 1);
+    }
+
+    // milliseconds since the store was made; wraps after 24 days, differences stay right
+    private int now() {
+        return (int) ((System.nanoTime() - epoch) / 1000000L);
+    }
+
+    // headers of PAGE stacks
+    private static final class Page {
+        final int[] generation = new int[PAGE];
+        final long[] block = new long[PAGE];
+        final int[] size = new int[PAGE];
+        final byte[] sizeClass = new byte[PAGE];
+        final int[] lastUsed = new int[PAGE];
+        final long[] key = new long[PAGE];
+    }
+}
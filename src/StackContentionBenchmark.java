@@ -0,0 +1,86 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-process contention benchmark: the fair-lock shared stack (CalculatorImplementation) vs the
+// lock-free Treiber stack (CalculatorLockFree), at 1..64 threads doing push/pop pairs with an
+// occasional pushOperation. Calls go straight to the objects, so RMI transport is not measured.
+//
+// usage: java -cp out StackContentionBenchmark [secondsPerRun]
+public class StackContentionBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int OPERATION_EVERY = 1000;  // one pushOperation per this many push/pop pairs
+    private static final int WARMUP_SECONDS = 1;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+
+        System.out.println("cpus=" + Runtime.getRuntime().availableProcessors() + " secondsPerRun=" + seconds);
+        System.out.printf("%-8s %10s %16s%n", "threads", "engine", "ops/s");
+
+        for (int threads : THREADS) {
+            report(threads, "locked", run(new CalculatorImplementation(), threads, seconds));
+            report(threads, "lockfree", run(new CalculatorLockFree(), threads, seconds));
+        }
+        System.exit(0);
+    }
+
+    private static void report(int threads, String engine, double opsPerSec) {
+        System.out.printf("%-8d %10s %16.0f%n", threads, engine, opsPerSec);
+    }
+
+    // ops/s over the measured window, after a warm-up run on the same object
+    private static double run(final Calculator cal, int threads, int seconds) throws Exception {
+        measure(cal, threads, WARMUP_SECONDS);
+        return measure(cal, threads, seconds);
+    }
+
+    private static double measure(final Calculator cal, int threads, int seconds) throws Exception {
+        final LongAdder ops = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        long done = 0;
+                        int v = id;
+                        while (System.nanoTime() < deadline[0]) {
+                            for (int k = 0; k < OPERATION_EVERY; k++) {
+                                cal.pushValue(v++);
+                                try {
+                                    cal.pop();
+                                } catch (java.rmi.RemoteException emptied) {
+                                    // another thread's pushOperation collapsed our value away
+                                }
+                            }
+                            cal.pushValue(v);
+                            try {
+                                cal.pushOperation("max");
+                            } catch (java.rmi.RemoteException emptied) {
+                                // other threads popped everything, including our value
+                            }
+                            done += 2L * OPERATION_EVERY + 2;
+                        }
+                        ops.add(done);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread t : workers) t.join();
+        long elapsed = System.nanoTime() - begin;
+
+        cal.drain();
+        return ops.sum() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.math.BigInteger;
+
+// Ordered record of the mutations of one shared stack, written by CalculatorImplementation
+// while it holds its lock and before the mutation is applied. Each call returns a sequence
+// number; once the lock is released the caller waits in awaitDurable(seq) until the journal
+// considers that mutation safe (for a log: on disk, for a replica stream: sent).
+public interface StackJournal {
+
+    long pushed(int val) throws IOException;
+
+    long pushedAll(int[] vals) throws IOException;
+
+    // count values were popped from the top
+    long popped(int count) throws IOException;
+
+    // the whole stack was replaced by this one value (pushOperation)
+    long collapsed(int result) throws IOException;
+
+    // the same with a result beyond int, which becomes the wide bottom value
+    long collapsedWide(BigInteger result) throws IOException;
+
+    // true when the journal wants checkpoint() to be called with the full stack
+    boolean checkpointDue();
+
+    // the full stack, bottom first, as of this point in the sequence; wideBottom (or null)
+    // replaces bottomFirst[0] when the bottom value does not fit in an int
+    long checkpoint(int[] bottomFirst, BigInteger wideBottom) throws IOException;
+
+    // block until everything up to seq is durable; called without the stack lock held
+    void awaitDurable(long seq) throws IOException;
+}
@@ -0,0 +1,153 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client-side cache of RMI stubs, one per registry URL, so a process pays the registry
+// round trip once instead of on every request path. A stub is only resolved again after a
+// call failed in a way that means the reference itself is stale (the object was unexported,
+// the server restarted, nothing listens at its endpoint any more); an application error
+// thrown by the server (ServerException) leaves the cached stub alone.
+//
+// get(url, type) hands out a proxy that does this by itself: on a stale reference it drops
+// the stub, looks the URL up again and retries the call once. The retried failures all mean
+// the call never reached the object, so retrying is safe even for pushValue or pop.
+public final class StubCache {
+
+    private static final ConcurrentMap<String, Remote> stubs = new ConcurrentHashMap<String, Remote>();
+    private static final AtomicLong lookups = new AtomicLong();
+
+    private StubCache() {
+    }
+
+    // The cached stub for url, looked up in the registry on first use
+    public static Remote lookup(String url) throws RemoteException {
+        Remote stub = stubs.get(url);
+        if (stub != null) {
+            return stub;
+        }
+        try {
+            lookups.incrementAndGet();
+            stub = Naming.lookup(url);
+        } catch (NotBoundException e) {
+            throw new RemoteException(url + " is not bound", e);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("bad RMI URL: " + url, e);
+        }
+        Remote raced = stubs.putIfAbsent(url, stub);
+        return raced != null ? raced : stub;
+    }
+
+    // Drop the stub for url, unless another thread has already replaced it
+    public static void invalidate(String url, Remote stale) {
+        stubs.remove(url, stale);
+    }
+
+    public static void clear() {
+        stubs.clear();
+    }
+
+    // Registry lookups done so far (cache misses)
+    public static long lookups() {
+        return lookups.get();
+    }
+
+    // true if e means the stub points at an object that is gone, rather than the call failing in it
+    public static boolean isStale(RemoteException e) {
+        return e instanceof NoSuchObjectException
+                || e instanceof ConnectException
+                || e instanceof ConnectIOException
+                || e instanceof UnknownHostException;
+    }
+
+    // A type proxy for url that resolves through the cache and re-resolves once on a stale reference
+    public static <T extends Remote> T get(final String url, Class<T> type) throws RemoteException {
+        lookup(url);
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    if (method.getName().equals("equals")) return self == args[0];
+                    if (method.getName().equals("hashCode")) return System.identityHashCode(self);
+                    return "StubCache proxy for " + url;
+                }
+                Remote stub = lookup(url);
+                try {
+                    return method.invoke(stub, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (!(cause instanceof RemoteException) || !isStale((RemoteException) cause)) {
+                        throw cause;
+                    }
+                    invalidate(url, stub);
+                }
+                try {
+                    return method.invoke(lookup(url), args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+        return type.cast(proxy);
+    }
+
+    // Resolve url and open connections calls in parallel, so the first real requests find a
+    // cached stub and pooled TCP connections; warmUp is any cheap, side-effect free call
+    public static <T extends Remote> void warm(String url, Class<T> type, int connections, final WarmUp<T> warmUp)
+            throws RemoteException {
+        final T stub = type.cast(lookup(url));
+        Thread[] threads = new Thread[connections];
+        final RemoteException[] failure = new RemoteException[1];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        warmUp.call(stub);
+                    } catch (RemoteException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }, "stub-warm-up");
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("warm-up interrupted", e);
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    // Warm up a shared Calculator with isEmpty()
+    public static void warm(String url, int connections) throws RemoteException {
+        warm(url, Calculator.class, connections, new WarmUp<Calculator>() {
+            public void call(Calculator stub) throws RemoteException {
+                stub.isEmpty();
+            }
+        });
+    }
+
+    public interface WarmUp<T> {
+        void call(T stub) throws RemoteException;
+    }
+}
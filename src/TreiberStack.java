@@ -0,0 +1,317 @@
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lock-free stack of ints (Treiber stack) with an elimination-backoff array.
+//
+// Nodes are immutable and each one carries the size and min/max/gcd/lcm of itself and
+// everything below it, so the whole stack is a persistent snapshot reachable from head.
+// Every mutation is one CAS on head:
+//   push/pushAll  - new node(s) on top of the current head
+//   pop/popN      - head moves down one/n nodes
+//   collapse      - head is replaced by a single node holding the reduction of the snapshot
+// Because the reduction is read from the snapshot that the CAS replaces, pushOperation is
+// atomic: if anything changed in between, the CAS fails and it is retried on the new snapshot.
+//
+// When a push or pop loses a CAS race it backs off into the elimination array: a pusher parks
+// its node in a random slot for a short spin, and a popper that finds a node there takes it.
+// The pair cancels out without touching head (push then pop, linearized at the exchange).
+//
+// Reductions are exact (the lcm per node is a long, IntMath.LCM_OVERFLOW once it no longer
+// fits). A result beyond int becomes a WideNode, which is always the bottom node; above one the
+// per-node aggregates are not usable, so collapse walks the snapshot instead.
+public class TreiberStack {
+    private static final int ELIMINATION_SLOTS = 8;
+    private static final int ELIMINATION_SPINS = 64;
+
+    // returned by pop() when the stack is empty; any int value fits in the low 32 bits
+    public static final long EMPTY = Long.MIN_VALUE;
+    // returned by pop() when the top value does not fit in an int (use popWide)
+    public static final long WIDE = Long.MIN_VALUE + 1;
+    // returned by popN()/drain() instead of taking a WideNode
+    public static final int[] REACHES_WIDE = new int[0];
+
+    static class Node {
+        final int value;
+        final Node next;
+        final int size;
+        final int min, max, gcd;
+        final long lcm;
+        // a WideNode is at the bottom
+        final boolean wideBelow;
+
+        Node(int value, Node next) {
+            this(value, next, false);
+        }
+
+        Node(int value, Node next, boolean wide) {
+            this.value = value;
+            this.next = next;
+            if (next == null) {
+                size = 1;
+                min = value;
+                max = value;
+                gcd = IntMath.gcd(IntMath.INIT_GCD, value);
+                lcm = IntMath.lcmExact(IntMath.INIT_LCM, value);
+                wideBelow = wide;
+            } else {
+                size = next.size + 1;
+                min = Math.min(next.min, value);
+                max = Math.max(next.max, value);
+                gcd = IntMath.gcd(next.gcd, value);
+                lcm = IntMath.lcmExact(next.lcm, value);
+                wideBelow = next.wideBelow;
+            }
+        }
+    }
+
+    // bottom node holding a collapse result beyond int; value is a placeholder
+    static final class WideNode extends Node {
+        final BigInteger wide;
+
+        WideNode(BigInteger wide) {
+            super(0, null, true);
+            this.wide = wide;
+        }
+    }
+
+    private final AtomicReference<Node> head = new AtomicReference<Node>();
+    private final AtomicReferenceArray<Node> elimination = new AtomicReferenceArray<Node>(ELIMINATION_SLOTS);
+
+    public void push(int val) {
+        Node node = null;
+        while (true) {
+            Node h = head.get();
+            // nodes are immutable, so rebuild when the head moved underneath us
+            if (node == null || node.next != h) node = new Node(val, h);
+            if (head.compareAndSet(h, node)) return;
+            if (offer(node)) return;
+        }
+    }
+
+    // Push all values with one CAS, vals[vals.length - 1] ends up on top
+    public void pushAll(int[] vals) {
+        if (vals.length == 0) return;
+        while (true) {
+            Node h = head.get();
+            Node top = h;
+            for (int v : vals) top = new Node(v, top);
+            if (head.compareAndSet(h, top)) return;
+            Thread.onSpinWait();
+        }
+    }
+
+    // Pop the top value, or return EMPTY if the stack is empty and WIDE if it does not fit in an int
+    public long pop() {
+        while (true) {
+            Node h = head.get();
+            if (h == null) return EMPTY;
+            if (h instanceof WideNode) return WIDE;
+            if (head.compareAndSet(h, h.next)) return h.value;
+            Node taken = take();
+            if (taken != null) return taken.value;
+        }
+    }
+
+    // Pop the top n values with one CAS; null if fewer than n are present, REACHES_WIDE if
+    // that would include a WideNode
+    public int[] popN(int n) {
+        while (true) {
+            Node h = head.get();
+            int size = (h == null) ? 0 : h.size;
+            if (size < n) return null;
+            if (n > 0 && n == size && h.wideBelow) return REACHES_WIDE;
+            int[] out = new int[n];
+            Node cur = h;
+            for (int i = 0; i < n; i++) {
+                out[i] = cur.value;
+                cur = cur.next;
+            }
+            if (head.compareAndSet(h, cur)) return out;
+            Thread.onSpinWait();
+        }
+    }
+
+    // Take the whole stack with one CAS, top first; REACHES_WIDE (and nothing taken) above a WideNode
+    public int[] drain() {
+        while (true) {
+            Node h = head.get();
+            if (h != null && h.wideBelow) return REACHES_WIDE;
+            if (head.compareAndSet(h, null)) {
+                int[] out = new int[(h == null) ? 0 : h.size];
+                for (int i = 0; h != null; i++, h = h.next) {
+                    out[i] = h.value;
+                }
+                return out;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Pop the top value whatever its width; null if the stack is empty
+    public BigInteger popWide() {
+        while (true) {
+            Node h = head.get();
+            if (h == null) return null;
+            if (head.compareAndSet(h, h.next)) {
+                return (h instanceof WideNode) ? ((WideNode) h).wide : BigInteger.valueOf(h.value);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean collapse(int op) {
+        return collapse(op, 0);
+    }
+
+    // Atomically replace the whole stack by its reduction (op is a registered opcode, see Operators,
+    // arg its percentile or k); false if the stack is empty
+    public boolean collapse(int op, int arg) {
+        while (true) {
+            Node h = head.get();
+            if (h == null) return false;
+            if (head.compareAndSet(h, reduce(h, op, arg))) return true;
+            Thread.onSpinWait();
+        }
+    }
+
+    // The single node holding op over the snapshot h: from h's aggregates when they are exact
+    private static Node reduce(Node h, int op, int arg) {
+        if (Selection.isSelection(op)) {
+            return select(h, op, arg);
+        }
+        Reducer r = Operators.reducer(op);
+        if (r != null) {
+            return stream(h, r);
+        }
+        if (!h.wideBelow) {
+            long result;
+            if (op == IntMath.OP_MIN) result = h.min;
+            else if (op == IntMath.OP_MAX) result = h.max;
+            else if (op == IntMath.OP_GCD) result = Math.abs((long) h.gcd);
+            else result = h.lcm;
+            if (op != IntMath.OP_LCM || result != IntMath.LCM_OVERFLOW) {
+                return IntMath.fitsInt(result) ? new Node((int) result, null) : new WideNode(BigInteger.valueOf(result));
+            }
+        }
+        BigInteger result = reduceBig(h, op);
+        return result.bitLength() < 32 ? new Node(result.intValue(), null) : new WideNode(result);
+    }
+
+    // A streaming operator over the snapshot h, top first
+    private static Node stream(Node h, Reducer r) {
+        int[] vals = new int[h.size];
+        int n = 0;
+        BigInteger wide = null;
+        for (Node x = h; x != null; x = x.next) {
+            if (x instanceof WideNode) wide = ((WideNode) x).wide;
+            else vals[n++] = x.value;
+        }
+        if (wide == null) {
+            long result = r.fold(vals, 0, n);
+            if (IntMath.fitsInt(result)) return new Node((int) result, null);
+            if (result != Reducer.OVERFLOW) return new WideNode(BigInteger.valueOf(result));
+        }
+        BigInteger result = r.foldBig(wide, vals, 0, n);
+        return result.bitLength() < 32 ? new Node(result.intValue(), null) : new WideNode(result);
+    }
+
+    // An order statistic over the snapshot h; a wide bottom is beyond every int, see IntStack
+    private static Node select(Node h, int op, int arg) {
+        int n = h.size;
+        int low = Selection.lowRank(op, arg, n);
+        int high = Selection.highRank(op, arg, n);
+        int[] vals = new int[n];
+        int ints = 0;
+        BigInteger wide = null;
+        for (Node x = h; x != null; x = x.next) {
+            if (x instanceof WideNode) wide = ((WideNode) x).wide;
+            else vals[ints++] = x.value;
+        }
+        int first = (wide == null || wide.signum() > 0) ? 0 : 1;
+        BigInteger result = atRank(vals, ints, low - first, wide);
+        if (high != low) {
+            result = result.add(atRank(vals, ints, high - first, wide)).divide(BigInteger.valueOf(2));
+        }
+        return result.bitLength() < 32 ? new Node(result.intValue(), null) : new WideNode(result);
+    }
+
+    private static BigInteger atRank(int[] vals, int ints, int r, BigInteger wide) {
+        return (r < 0 || r >= ints) ? wide : BigInteger.valueOf(Selection.select(vals, ints, r));
+    }
+
+    // Walk the snapshot: O(n), but without a lock nobody waits for it
+    private static BigInteger reduceBig(Node h, int op) {
+        BigInteger wide = null;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, gcd = IntMath.INIT_GCD;
+        long lcm = IntMath.INIT_LCM;
+        BigInteger bigLcm = null;
+        boolean any = false;
+        for (Node n = h; n != null; n = n.next) {
+            if (n instanceof WideNode) {
+                wide = ((WideNode) n).wide;
+                break;
+            }
+            any = true;
+            min = Math.min(min, n.value);
+            max = Math.max(max, n.value);
+            gcd = IntMath.gcd(gcd, n.value);
+            if (bigLcm != null) {
+                bigLcm = IntMath.lcm(bigLcm, n.value);
+            } else {
+                long next = IntMath.lcmExact(lcm, n.value);
+                if (next == IntMath.LCM_OVERFLOW) bigLcm = IntMath.lcm(BigInteger.valueOf(lcm), n.value);
+                else lcm = next;
+            }
+        }
+        if (bigLcm == null) bigLcm = BigInteger.valueOf(lcm);
+
+        // a wide bottom is larger than any int
+        if (op == IntMath.OP_MIN) return any ? BigInteger.valueOf(min) : wide;
+        if (op == IntMath.OP_MAX) return wide != null ? wide : BigInteger.valueOf(max);
+        if (op == IntMath.OP_GCD) {
+            BigInteger g = BigInteger.valueOf(gcd).abs();
+            return wide != null ? wide.gcd(g) : g;
+        }
+        if (wide == null) return bigLcm;
+        return bigLcm.signum() == 0 ? BigInteger.ZERO : IntMath.lcm(wide, bigLcm);
+    }
+
+    // The top value without popping it, or EMPTY / WIDE like pop()
+    public long peek() {
+        Node h = head.get();
+        if (h == null) return EMPTY;
+        if (h instanceof WideNode) return WIDE;
+        return h.value;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == null;
+    }
+
+    public int size() {
+        Node h = head.get();
+        return (h == null) ? 0 : h.size;
+    }
+
+    // Park the node in a random slot for a short spin; true if a popper took it
+    private boolean offer(Node node) {
+        int slot = ThreadLocalRandom.current().nextInt(ELIMINATION_SLOTS);
+        if (!elimination.compareAndSet(slot, null, node)) return false;
+        for (int i = 0; i < ELIMINATION_SPINS; i++) {
+            if (elimination.get(slot) != node) return true;
+            Thread.onSpinWait();
+        }
+        // nobody came: withdraw the offer, unless a popper took it at the last moment
+        return !elimination.compareAndSet(slot, node, null);
+    }
+
+    // Take a pusher's parked node from a random slot, or null if there is none
+    private Node take() {
+        int slot = ThreadLocalRandom.current().nextInt(ELIMINATION_SLOTS);
+        Node node = elimination.get(slot);
+        if (node != null && elimination.compareAndSet(slot, node, null)) return node;
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+
+// Socket factory for exporting the calculators over RMI with tuned TCP sockets:
+// TCP_NODELAY (no Nagle delay on the small request/response packets) and optional send/receive
+// buffer sizes. The client half is serialized into the stubs, so clients get the same settings
+// without any code of their own. With loopbackOnly the server only listens on 127.0.0.1,
+// for deployments where every client is co-located with the server.
+//
+// RMI needs equals/hashCode on the factories to share connections between stubs.
+public class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int BACKLOG = 128;
+
+    private final boolean tcpNoDelay;
+    private final int sendBuffer;       // bytes, 0 = OS default
+    private final int receiveBuffer;    // bytes, 0 = OS default
+    private final boolean loopbackOnly;
+
+    public TunedSocketFactory(boolean tcpNoDelay, int sendBuffer, int receiveBuffer, boolean loopbackOnly) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBuffer = Math.max(0, sendBuffer);
+        this.receiveBuffer = Math.max(0, receiveBuffer);
+        this.loopbackOnly = loopbackOnly;
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket s = new Socket();
+        configure(s);
+        s.connect(new InetSocketAddress(host, port));
+        return s;
+    }
+
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket ss = new ServerSocket() {
+            // accepted sockets inherit the tuning as well
+            public Socket accept() throws IOException {
+                Socket s = super.accept();
+                s.setTcpNoDelay(tcpNoDelay);
+                if (sendBuffer > 0) s.setSendBufferSize(sendBuffer);
+                return s;
+            }
+        };
+        // must be set before bind for windows above 64K to take effect
+        if (receiveBuffer > 0) ss.setReceiveBufferSize(receiveBuffer);
+        InetAddress bindAddr = loopbackOnly ? InetAddress.getLoopbackAddress() : null;
+        ss.bind(new InetSocketAddress(bindAddr, port), BACKLOG);
+        return ss;
+    }
+
+    private void configure(Socket s) throws IOException {
+        s.setTcpNoDelay(tcpNoDelay);
+        if (sendBuffer > 0) s.setSendBufferSize(sendBuffer);
+        if (receiveBuffer > 0) s.setReceiveBufferSize(receiveBuffer);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || o.getClass() != getClass()) return false;
+        TunedSocketFactory f = (TunedSocketFactory) o;
+        return tcpNoDelay == f.tcpNoDelay && sendBuffer == f.sendBuffer
+                && receiveBuffer == f.receiveBuffer && loopbackOnly == f.loopbackOnly;
+    }
+
+    public int hashCode() {
+        int h = tcpNoDelay ? 1 : 0;
+        h = 31 * h + sendBuffer;
+        h = 31 * h + receiveBuffer;
+        return 31 * h + (loopbackOnly ? 1 : 0);
+    }
+
+    public String toString() {
+        return "TunedSocketFactory[tcpNoDelay=" + tcpNoDelay + ", sendBuffer=" + sendBuffer
+                + ", receiveBuffer=" + receiveBuffer + ", loopbackOnly=" + loopbackOnly + "]";
+    }
+}
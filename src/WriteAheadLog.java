@@ -0,0 +1,606 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Memory-mapped write-ahead log for one shared stack (the StackJournal of a CalculatorImplementation).
+// The log is a run of generations: wal-<gen>.log is a fixed-size mapped segment of records and
+// snapshot-<gen>.bin is the whole stack as it stood when segment <gen> was opened.
+// Record: type byte | int argument | payload ints | CRC32C of the preceding bytes, where only pushAll
+// (argument values) and collapseWide (argument bytes of the result, padded to whole ints) have a payload.
+// Recovery loads the newest valid snapshot, replays every segment from its generation on and stops
+// at the first record that is zero or fails its checksum (the torn tail of the last segment). If it
+// replayed anything it writes the result as the snapshot of the new generation before the first
+// append, so a torn segment is never replayed again in front of records written after this start.
+public class WriteAheadLog implements StackJournal, Closeable {
+
+    // when a journaled mutation counts as durable
+    public enum FsyncPolicy {
+        PER_OP,   // msync of every record before the call returns
+        BATCHED,  // group commit: callers wait, one msync covers every record appended meanwhile
+        ASYNC     // callers never wait; the flusher msyncs every flush interval
+    }
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    private static final byte PUSH = 1;
+    private static final byte PUSH_ALL = 2;
+    private static final byte POP = 3;
+    private static final byte COLLAPSE = 4;
+    private static final byte COLLAPSE_WIDE = 5;
+
+    private static final int SNAPSHOT_MAGIC = 0x43534e50;
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final int segmentBytes;
+    private final long flushNanos;
+    private final long checkpointNanos;
+    // appends are serialized by the stack lock, so one checksum instance is enough
+    private final CRC32C crc = new CRC32C();
+    private final int[] recovered;
+    private BigInteger recoveredWide;
+
+    // current segment and sequence numbers; guarded by this because the flusher reads them
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long generation;
+    private int writePos;
+    private int syncedPos;
+    private long appended;
+    private long durable;
+    private IOException failure;
+
+    // only touched under the stack lock
+    private long lastCheckpointNanos = System.nanoTime();
+
+    private volatile boolean closed;
+    private final Thread flusher;
+    // snapshot files are written here, off the stack lock
+    private final ExecutorService snapshots = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "wal-snapshot");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // flushMillis: BATCHED - how long the flusher gathers records before an msync (0 = as soon as any are pending);
+    //              ASYNC - the msync interval. checkpointMillis: longest time between two snapshots.
+    public WriteAheadLog(Path dir, FsyncPolicy policy, int segmentBytes, long flushMillis, long checkpointMillis) throws IOException {
+        if (policy == FsyncPolicy.ASYNC && flushMillis <= 0) {
+            throw new IllegalArgumentException("ASYNC needs a flush interval > 0");
+        }
+        this.dir = dir;
+        this.policy = policy;
+        this.segmentBytes = segmentBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.checkpointNanos = TimeUnit.MILLISECONDS.toNanos(checkpointMillis);
+        Files.createDirectories(dir);
+        recovered = recover();
+        openSegment(segmentBytes);
+
+        if (policy == FsyncPolicy.PER_OP) {
+            flusher = null;
+        } else {
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop();
+                }
+            }, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // "perop" | "batched" | "async"
+    public static FsyncPolicy policy(String name) {
+        if (name.equals("perop")) return FsyncPolicy.PER_OP;
+        if (name.equals("batched")) return FsyncPolicy.BATCHED;
+        if (name.equals("async")) return FsyncPolicy.ASYNC;
+        throw new IllegalArgumentException("Unknown fsync policy: " + name + " (use perop|batched|async)");
+    }
+
+    // The stack rebuilt from disk, bottom first
+    public int[] recovered() {
+        return recovered.clone();
+    }
+
+    // The recovered bottom value if it does not fit in an int (it replaces recovered()[0]), else null
+    public BigInteger recoveredWide() {
+        return recoveredWide;
+    }
+
+    public long pushed(int val) throws IOException {
+        return append(PUSH, val, null);
+    }
+
+    public long pushedAll(int[] vals) throws IOException {
+        return append(PUSH_ALL, vals.length, vals);
+    }
+
+    public long popped(int count) throws IOException {
+        return append(POP, count, null);
+    }
+
+    public long collapsed(int result) throws IOException {
+        return append(COLLAPSE, result, null);
+    }
+
+    public long collapsedWide(BigInteger result) throws IOException {
+        byte[] bytes = result.toByteArray();
+        return append(COLLAPSE_WIDE, bytes.length, toWords(bytes));
+    }
+
+    // a snapshot is due when the segment is three quarters full or when the checkpoint interval has passed
+    public boolean checkpointDue() {
+        return writePos > segment.capacity() / 4 * 3
+                || System.nanoTime() - lastCheckpointNanos > checkpointNanos;
+    }
+
+    // Start a new segment whose snapshot is bottomFirst; the snapshot file is written in the
+    // background and, once it is on disk, the older segments and snapshots are deleted
+    public long checkpoint(final int[] bottomFirst, final BigInteger wideBottom) throws IOException {
+        final long gen;
+        long seq;
+        synchronized (this) {
+            roll(0);
+            gen = generation;
+            seq = appended;
+        }
+        lastCheckpointNanos = System.nanoTime();
+        snapshots.execute(new Runnable() {
+            public void run() {
+                try {
+                    writeSnapshot(gen, bottomFirst, wideBottom);
+                    deleteBefore(gen);
+                } catch (IOException e) {
+                    // the older generations stay on disk, so recovery still has everything
+                    System.err.println("WAL snapshot " + gen + " failed: " + e);
+                }
+            }
+        });
+        return seq;
+    }
+
+    public void awaitDurable(long seq) throws IOException {
+        if (policy != FsyncPolicy.BATCHED) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (this) {
+            while (durable < seq && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (durable < seq) {
+                throw failure != null ? failure : new IOException("write-ahead log closed");
+            }
+        }
+    }
+
+    // msync everything and release the segment; the files stay for the next start
+    public void close() throws IOException {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (writePos > syncedPos) {
+                segment.force(syncedPos, writePos - syncedPos);
+            }
+            durable = appended;
+            notifyAll();
+            channel.close();
+        }
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Write one record at the end of the segment; the caller holds the stack lock
+    private long append(byte type, int arg, int[] vals) throws IOException {
+        if (closed) {
+            throw new IOException("write-ahead log closed");
+        }
+        int length = 9 + (vals == null ? 0 : 4 * vals.length);
+        MappedByteBuffer seg;
+        int pos;
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (writePos + length > segment.capacity()) {
+                roll(length);
+            }
+            seg = segment;
+            pos = writePos;
+        }
+
+        seg.put(pos, type);
+        seg.putInt(pos + 1, arg);
+        if (vals != null) {
+            seg.slice(pos + 5, 4 * vals.length).asIntBuffer().put(vals);
+        }
+        int end = pos + length - 4;
+        crc.reset();
+        crc.update(seg.slice(pos, end - pos));
+        seg.putInt(end, (int) crc.getValue());
+
+        long seq;
+        synchronized (this) {
+            writePos = pos + length;
+            seq = ++appended;
+            if (policy == FsyncPolicy.PER_OP) {
+                force(seg, pos, length);
+                syncedPos = writePos;
+                durable = seq;
+            }
+        }
+        if (policy == FsyncPolicy.BATCHED) {
+            LockSupport.unpark(flusher);
+        }
+        return seq;
+    }
+
+    // msync the rest of the current segment and open the next generation; holds this
+    private void roll(int minBytes) throws IOException {
+        if (writePos > syncedPos) {
+            force(segment, syncedPos, writePos - syncedPos);
+        }
+        durable = appended;
+        notifyAll();
+        channel.close();
+        generation++;
+        openSegment(Math.max(segmentBytes, minBytes));
+    }
+
+    private void openSegment(int bytes) throws IOException {
+        channel = FileChannel.open(segmentFile(generation),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        writePos = 0;
+        syncedPos = 0;
+        syncDirectory();
+    }
+
+    private void force(MappedByteBuffer seg, int from, int length) throws IOException {
+        try {
+            seg.force(from, length);
+        } catch (UncheckedIOException e) {
+            failure = e.getCause();
+            throw failure;
+        }
+    }
+
+    // BATCHED: wake on every append, optionally gather for flushNanos, msync, release the waiters.
+    // ASYNC: msync whatever is pending every flushNanos.
+    private void flushLoop() {
+        while (!closed) {
+            if (policy == FsyncPolicy.ASYNC) {
+                sleep(flushNanos);
+            } else {
+                if (!pending()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (flushNanos > 0) {
+                    sleep(flushNanos);
+                }
+            }
+            flushPending();
+        }
+    }
+
+    private synchronized boolean pending() {
+        return appended > durable;
+    }
+
+    private void flushPending() {
+        MappedByteBuffer seg;
+        int from;
+        int to;
+        long target;
+        synchronized (this) {
+            seg = segment;
+            from = syncedPos;
+            to = writePos;
+            target = appended;
+        }
+        IOException error = null;
+        if (to > from) {
+            try {
+                seg.force(from, to - from);
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+            }
+        }
+        synchronized (this) {
+            if (error != null) {
+                failure = error;
+            } else {
+                // roll() may have moved on to a new segment meanwhile; it synced the old one itself
+                if (segment == seg && syncedPos < to) {
+                    syncedPos = to;
+                }
+                if (durable < target) {
+                    durable = target;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    // parkNanos may return early (unpark from append), so sleep to the deadline
+    private void sleep(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long left;
+        while (!closed && (left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, left);
+        }
+    }
+
+    // Load the newest valid snapshot and replay the segments from its generation on
+    private int[] recover() throws IOException {
+        List<Long> snapshotGens = generations("snapshot-", ".bin");
+        List<Long> segmentGens = generations("wal-", ".log");
+
+        IntStack stack = new IntStack();
+        long base = -1;
+        for (int i = snapshotGens.size() - 1; i >= 0 && base < 0; i--) {
+            base = readSnapshot(snapshotGens.get(i), stack) ? snapshotGens.get(i) : -1;
+        }
+
+        long last = base;
+        boolean torn = false;
+        boolean replayedAny = false;
+        for (long gen : segmentGens) {
+            if (gen < base) {
+                continue;
+            }
+            last = Math.max(last, gen);
+            if (!torn) {
+                int replayed = replay(segmentFile(gen), stack);
+                torn = replayed < 0;
+                replayedAny |= replayed != 0;
+            }
+        }
+
+        generation = last + 1;
+        if (replayedAny) {
+            // the recovered stack becomes the base of the new generation, synchronously: the
+            // segments it came from, torn tail included, are gone before anything is appended
+            writeSnapshot(generation, stack.toArray(), stack.wideBottom());
+            deleteBefore(generation);
+        } else {
+            deleteBefore(Math.max(base, 0));
+        }
+        recoveredWide = stack.wideBottom();
+        return stack.toArray();
+    }
+
+    // Apply the records of one segment; returns how many were applied, negated if the segment
+    // ended in a torn record (so later segments, if any, cannot be trusted)
+    private static int replay(Path file, IntStack stack) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32C check = new CRC32C();
+            int count = 0;
+            int pos = 0;
+            while (pos + 9 <= seg.capacity()) {
+                byte type = seg.get(pos);
+                if (type == 0) {
+                    return count;
+                }
+                int arg = seg.getInt(pos + 1);
+                long length = 9 + 4L * payloadInts(type, arg);
+                if (type < 0 || type > COLLAPSE_WIDE || arg < 0 && type != PUSH && type != COLLAPSE
+                        || arg == 0 && type == COLLAPSE_WIDE || pos + length > seg.capacity()) {
+                    return -count - 1;
+                }
+                int end = pos + (int) length - 4;
+                check.reset();
+                check.update(seg.slice(pos, end - pos));
+                if (seg.getInt(end) != (int) check.getValue()) {
+                    return -count - 1;
+                }
+
+                if (type == PUSH) {
+                    stack.push(arg);
+                } else if (type == PUSH_ALL) {
+                    int[] vals = new int[arg];
+                    seg.slice(pos + 5, 4 * arg).asIntBuffer().get(vals);
+                    stack.pushAll(vals);
+                } else if (type == POP) {
+                    stack.popN(Math.min(arg, stack.size()));
+                } else if (type == COLLAPSE_WIDE) {
+                    int[] words = new int[payloadInts(type, arg)];
+                    seg.slice(pos + 5, 4 * words.length).asIntBuffer().get(words);
+                    stack.collapse(new BigInteger(fromWords(words, arg)));
+                } else {
+                    stack.clear();
+                    stack.push(arg);
+                }
+                count++;
+                pos += (int) length;
+            }
+            return count;
+        }
+    }
+
+    // magic | generation | count | values | wide byte count | wide bottom bytes | CRC32C,
+    // written to a temp file and renamed into place
+    private void writeSnapshot(long gen, int[] values, BigInteger wideBottom) throws IOException {
+        Path tmp = dir.resolve("snapshot-" + gen + ".tmp");
+        CRC32C check = new CRC32C();
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+            buf.putInt(SNAPSHOT_MAGIC).putLong(gen).putInt(values.length);
+            for (int v : values) {
+                if (buf.remaining() < 4) {
+                    writeChecked(ch, buf, check);
+                }
+                buf.putInt(v);
+            }
+            writeChecked(ch, buf, check);
+            byte[] wide = wideBottom == null ? new byte[0] : wideBottom.toByteArray();
+            ByteBuffer tail = ByteBuffer.allocate(4 + wide.length);
+            tail.putInt(wide.length).put(wide);
+            writeChecked(ch, tail, check);
+            buf.putInt((int) check.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, snapshotFile(gen), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private static void writeChecked(FileChannel ch, ByteBuffer buf, CRC32C check) throws IOException {
+        buf.flip();
+        check.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Restore stack from the snapshot; false if the file is missing, short or fails its checksum
+    private boolean readSnapshot(long gen, IntStack stack) throws IOException {
+        byte[] bytes = Files.readAllBytes(snapshotFile(gen));
+        if (bytes.length < 24) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int count = buf.getInt(12);
+        if (buf.getInt(0) != SNAPSHOT_MAGIC || buf.getLong(4) != gen || count < 0 || 16 + 4L * count + 8 > bytes.length) {
+            return false;
+        }
+        int wideLength = buf.getInt(16 + 4 * count);
+        if (wideLength < 0 || 16 + 4L * count + 8 + wideLength != bytes.length) {
+            return false;
+        }
+        CRC32C check = new CRC32C();
+        check.update(bytes, 0, bytes.length - 4);
+        if (buf.getInt(bytes.length - 4) != (int) check.getValue()) {
+            return false;
+        }
+        int[] values = new int[count];
+        buf.position(16);
+        buf.asIntBuffer().get(values);
+        BigInteger wide = null;
+        if (wideLength > 0) {
+            byte[] wideBytes = new byte[wideLength];
+            buf.position(16 + 4 * count + 4);
+            buf.get(wideBytes);
+            wide = new BigInteger(wideBytes);
+        }
+        stack.restore(values, wide);
+        return true;
+    }
+
+    // ints following the argument of a record
+    private static int payloadInts(byte type, int arg) {
+        if (type == PUSH_ALL) return arg;
+        if (type == COLLAPSE_WIDE) return (arg + 3) / 4;
+        return 0;
+    }
+
+    // bytes packed big-endian into ints, the last one zero-padded
+    private static int[] toWords(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocate((bytes.length + 3) / 4 * 4);
+        buf.put(bytes).rewind();
+        int[] words = new int[buf.capacity() / 4];
+        buf.asIntBuffer().get(words);
+        return words;
+    }
+
+    private static byte[] fromWords(int[] words, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(4 * words.length);
+        buf.asIntBuffer().put(words);
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // segments and snapshots older than gen, plus any half-written snapshot
+    private void deleteBefore(long gen) throws IOException {
+        for (long g : generations("wal-", ".log")) {
+            if (g < gen) Files.deleteIfExists(segmentFile(g));
+        }
+        for (long g : generations("snapshot-", ".bin")) {
+            if (g < gen) Files.deleteIfExists(snapshotFile(g));
+        }
+        for (long g : generations("snapshot-", ".tmp")) {
+            if (g < gen) Files.deleteIfExists(dir.resolve("snapshot-" + g + ".tmp"));
+        }
+    }
+
+    // generation numbers of the files prefix<gen>suffix in dir, ascending
+    private List<Long> generations(String prefix, String suffix) throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                try {
+                    gens.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    private Path segmentFile(long gen) {
+        return dir.resolve("wal-" + gen + ".log");
+    }
+
+    private Path snapshotFile(long gen) {
+        return dir.resolve("snapshot-" + gen + ".bin");
+    }
+
+    // make created/renamed files survive a crash; not every platform can open a directory
+    private void syncDirectory() {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+}
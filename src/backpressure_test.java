@@ -0,0 +1,297 @@
+import java.math.BigInteger;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.CountDownLatch;
+
+// In-process test of the Backpressure limits: a registry of its own on port 2499 with the
+// shared and a per-client implementation bound in it, so calls arrive over RMI as from a
+// client. Each case sets the limits it needs with Backpressure.configure. No server needed.
+public class backpressure_test {
+    private static final int REGISTRY_PORT = 2499;
+
+    public static void main(String[] args) throws Exception {
+        Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+        CalculatorImplementation sharedImpl = new CalculatorImplementation();
+        registry.rebind("Calculator", sharedImpl);
+        registry.rebind("CalculatorPrivate", new CalculatorPrivateImpl(CalculatorPrivateImpl.DEFAULT_LEASE_MS,
+                CalculatorPrivateImpl.DEFAULT_MAX_SESSIONS, 0, null, null, sharedImpl));
+        registry.rebind("CalculatorPerClient", new CalculatorPerClient());
+        registry.rebind("CalculatorSessions", new CalculatorSessionsImpl());
+        Calculator shared = (Calculator) registry.lookup("Calculator");
+        Calculator own = (Calculator) registry.lookup("CalculatorPerClient");
+
+        int passed = 0, failed = 0;
+
+        try {
+            testMaxDepth(shared, own);
+            passed++;
+        } catch (Throwable t) {
+            fail("max depth", t);
+            failed++;
+        }
+
+        try {
+            testRateLimit(shared);
+            passed++;
+        } catch (Throwable t) {
+            fail("rate limit", t);
+            failed++;
+        }
+
+        try {
+            testLockQueue();
+            passed++;
+        } catch (Throwable t) {
+            fail("lock queue", t);
+            failed++;
+        }
+
+        try {
+            testDelayedPopCap();
+            passed++;
+        } catch (Throwable t) {
+            fail("delayed pop cap", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // true if the call was refused as overload, false if it went through
+    private static boolean refused(Runnable call) {
+        try {
+            call.run();
+            return false;
+        } catch (RuntimeException e) {
+            if (OverloadedException.isOverload(e.getCause())) return true;
+            throw e;
+        }
+    }
+
+    private static Runnable push(final Calculator cal, final int... vals) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    cal.pushValues(vals);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    // Case 1: pushes past maxDepth are refused on both stacks, nothing of them is applied, and
+    // pushOperation (which shrinks the stack) still works
+    private static void testMaxDepth(Calculator shared, Calculator own) throws Exception {
+        Backpressure.configure(4, 0, 0, 0);
+        long before = CalculatorMetrics.SHARED.rejectedCount(CalculatorMetrics.REJECTED_DEPTH);
+
+        shared.pushValues(new int[]{1, 2, 3});
+        assertTrue(refused(push(shared, 4, 5)), "a batch that does not fit is refused");
+        assertTrue(shared.size() == 3, "a refused batch is not applied");
+        assertTrue(!refused(push(shared, 4)), "filling up to the limit is allowed");
+        assertTrue(refused(push(shared, 5)), "one past the limit is refused");
+        shared.pushOperation("sum");
+        assertTrue(shared.pop() == 10, "pushOperation on a full stack");
+        assertTrue(CalculatorMetrics.SHARED.rejectedCount(CalculatorMetrics.REJECTED_DEPTH) == before + 2, "rejections counted");
+
+        own.pushValues(new int[]{1, 2, 3, 4});
+        assertTrue(refused(push(own, 5)), "per-client stacks have the same limit");
+        own.drain();
+
+        System.out.println("[PASS] max depth");
+    }
+
+    // Case 2: a burst goes through, the calls after it are refused quickly, and the bucket
+    // refills; a client with its own stack, session or shared view has a bucket of its own, and
+    // refilled buckets are dropped
+    private static void testRateLimit(Calculator shared) throws Exception {
+        Backpressure.configure(0, 20, 5, 0);
+        Calculator fresh = (Calculator) LocateRegistry.getRegistry(REGISTRY_PORT).lookup("Calculator");
+        CalculatorPerClient ownStack = new CalculatorPerClient();
+
+        int ok = 0, rejected = 0;
+        long slowest = 0;
+        for (int i = 0; i < 20; i++) {
+            long t0 = System.nanoTime();
+            if (refused(push(fresh, i))) {
+                rejected++;
+                slowest = Math.max(slowest, System.nanoTime() - t0);
+            } else {
+                ok++;
+            }
+        }
+        assertTrue(ok >= 5 && ok < 10, "about the burst goes through, got " + ok);
+        assertTrue(rejected > 0, "the rest is refused");
+        assertTrue(slowest < 1_000_000_000L, "refusals do not wait");
+        assertTrue(CalculatorMetrics.SHARED.rejectedCount(CalculatorMetrics.REJECTED_RATE) >= rejected, "rejections counted");
+
+        // a per-client stack charges its own bucket, not the host's
+        Calculator own = (Calculator) java.rmi.server.UnicastRemoteObject.toStub(ownStack);
+        assertTrue(!refused(push(own, 1)), "another client's bucket is full");
+
+        // so does a view of the shared stack, and it has a limit of its own
+        CalculatorPrivate factory = (CalculatorPrivate) LocateRegistry.getRegistry(REGISTRY_PORT).lookup("CalculatorPrivate");
+        Calculator view = factory.connectShared();
+        assertTrue(!refused(push(view, 1)), "a shared view on the same host is not refused");
+        boolean viewRefused = false;
+        for (int i = 0; i < 20 && !viewRefused; i++) viewRefused = refused(push(view, i));
+        assertTrue(viewRefused, "the view is rate limited too");
+
+        // two sessions from the same host and connection each have a bucket
+        CalculatorSessions sessions = (CalculatorSessions) LocateRegistry.getRegistry(REGISTRY_PORT).lookup("CalculatorSessions");
+        Thread.sleep(300);
+        SessionCalculator a = sessions.open();
+        SessionCalculator b = sessions.open();
+        boolean aRefused = false;
+        for (int i = 0; i < 20 && !aRefused; i++) aRefused = refused(push(a, i));
+        assertTrue(aRefused, "one session over its rate");
+        assertTrue(!refused(push(b, 1)), "another session on the same host is not");
+
+        Thread.sleep(300);
+        assertTrue(!refused(push(fresh, 99)), "the bucket refills");
+        int kept = Backpressure.clientBuckets();
+        Thread.sleep(1200);
+        push(fresh, 100).run();
+        assertTrue(Backpressure.clientBuckets() < kept, "refilled buckets are dropped, " + kept + " -> " + Backpressure.clientBuckets());
+        a.close();
+        b.close();
+        Backpressure.configure(0, 0, 0, 0);
+        shared.drain();
+
+        System.out.println("[PASS] rate limit");
+    }
+
+    // Case 3: while a writer holds the lock and maxLockQueue callers wait for it, the next call
+    // fails at once instead of queueing; another stack's queue is its own
+    private static void testLockQueue() throws Exception {
+        Backpressure.configure(0, 0, 0, 1);
+        final GateJournal gate = new GateJournal();
+        final CalculatorImplementation cal = new CalculatorImplementation(0, null, null, null, null, gate);
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cal.pushValue(1);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+        Thread queued = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cal.pushValue(2);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+        holder.start();
+        gate.entered.await();
+        queued.start();
+        // parked in the lock's queue
+        while (queued.getState() != Thread.State.WAITING) Thread.sleep(1);
+
+        boolean rejected = false;
+        try {
+            cal.pushValue(3);
+        } catch (OverloadedException expected) {
+            rejected = true;
+        }
+        CalculatorImplementation other = new CalculatorImplementation();
+        other.pushValue(4);
+        gate.open.countDown();
+        holder.join(5000);
+        queued.join(5000);
+        assertTrue(rejected, "a call past the lock queue limit is refused");
+        assertTrue(other.pop() == 4, "another stack is not refused");
+        assertTrue(cal.size() == 2, "the queued calls still complete");
+        Backpressure.configure(0, 0, 0, 0);
+
+        System.out.println("[PASS] lock queue");
+    }
+
+    // Case 4: past maxPending delayed pops waiting, delayPopAsync is refused at once; the ones
+    // taken are still delivered and free their places
+    private static void testDelayedPopCap() throws Exception {
+        DelayScheduler.setMaxPending(3);
+        CalculatorPerClient cal = new CalculatorPerClient();
+        cal.pushValues(new int[]{1, 2, 3, 4});
+        final CountDownLatch delivered = new CountDownLatch(3);
+        DelayPopCallback count = new DelayPopCallback() {
+            public void popped(int val) {
+                delivered.countDown();
+            }
+
+            public void failed(String reason) {
+            }
+        };
+        for (int i = 0; i < 3; i++) cal.delayPopAsync(200, count);
+        boolean refused = false;
+        try {
+            cal.delayPopAsync(200, count);
+        } catch (OverloadedException expected) {
+            refused = true;
+        }
+        assertTrue(refused && DelayScheduler.pending() == 3, "the fourth delayed pop is refused");
+        assertTrue(delivered.await(5, java.util.concurrent.TimeUnit.SECONDS), "the others are delivered");
+        while (DelayScheduler.pending() > 0) Thread.sleep(1);
+        cal.delayPopAsync(0, count);
+        DelayScheduler.setMaxPending(DelayScheduler.DEFAULT_MAX_PENDING);
+
+        System.out.println("[PASS] delayed pop cap");
+    }
+
+    // A journal whose first push holds the stack lock until the test opens the gate
+    private static final class GateJournal implements StackJournal {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        public long pushed(int val) {
+            entered.countDown();
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }
+
+        public long pushedAll(int[] vals) {
+            return 0;
+        }
+
+        public long popped(int count) {
+            return 0;
+        }
+
+        public long collapsed(int result) {
+            return 0;
+        }
+
+        public long collapsedWide(BigInteger result) {
+            return 0;
+        }
+
+        public boolean checkpointDue() {
+            return false;
+        }
+
+        public long checkpoint(int[] bottomFirst, BigInteger wideBottom) {
+            return 0;
+        }
+
+        public void awaitDurable(long seq) {
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Multi-process test of cluster mode: a cluster registry in this process on port 2400 and
+// CalculatorServer nodes on registry ports 2401.. that join it. Checks that a ClusterRouter
+// spreads named stacks over the nodes, and that a node leaving or joining only moves the
+// names it owned or takes over. Needs no server running.
+public class cluster_test {
+    private static final int CLUSTER_REGISTRY = 2400;
+    private static final int NAMES = 300;
+    private static final long START_MS = 10000;
+
+    private static final List<Process> servers = new ArrayList<Process>();
+
+    public static void main(String[] args) throws Exception {
+        LocateRegistry.createRegistry(CLUSTER_REGISTRY);
+        int passed = 0, failed = 0;
+        ClusterRouter router = null;
+
+        try {
+            startNode("node-a", 2401);
+            startNode("node-b", 2402);
+            Process c = startNode("node-c", 2403);
+            router = ClusterRouter.connect("localhost:" + CLUSTER_REGISTRY);
+            awaitNodes(router, "node-a", "node-b", "node-c");
+            Map<String, String> owners = new HashMap<String, String>();
+
+            try {
+                testSpread(router, owners);
+                passed++;
+            } catch (Throwable t) {
+                fail("spread over nodes", t);
+                failed++;
+            }
+
+            try {
+                testNodeLeaves(router, owners, c);
+                passed++;
+            } catch (Throwable t) {
+                fail("node leaves", t);
+                failed++;
+            }
+
+            try {
+                testNodeJoins(router, owners);
+                passed++;
+            } catch (Throwable t) {
+                fail("node joins", t);
+                failed++;
+            }
+        } finally {
+            if (router != null) router.close();
+            for (Process p : servers) p.destroyForcibly();
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // java -cp <ours> CalculatorServer as a cluster node on its own registry, NIO off
+    private static Process startNode(String node, int registryPort) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-Dcalculator.registry.port=" + registryPort);
+        cmd.add("-Dcalculator.nio.port=0");
+        cmd.add("-Dcalculator.cluster.registry=localhost:" + CLUSTER_REGISTRY);
+        cmd.add("-Dcalculator.cluster.node=" + node);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("CalculatorServer");
+        File log = File.createTempFile("cluster_test-" + node, ".log");
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+        servers.add(p);
+        System.out.println(node + " server output: " + log);
+        return p;
+    }
+
+    // Refresh until the ring holds exactly these nodes
+    private static void awaitNodes(ClusterRouter router, String... nodes) throws Exception {
+        long deadline = System.currentTimeMillis() + START_MS;
+        while (true) {
+            router.refresh();
+            if (Arrays.equals(router.nodes(), nodes)) return;
+            assertTrue(System.currentTimeMillis() < deadline, "nodes " + Arrays.toString(router.nodes()));
+            Thread.sleep(200);
+        }
+    }
+
+    private static String name(int i) {
+        return "stack-" + i;
+    }
+
+    // Case 1: every node owns a fair share of the names, and each stack lives on its owner
+    private static void testSpread(ClusterRouter router, Map<String, String> owners) throws Exception {
+        Map<String, Integer> perNode = new HashMap<String, Integer>();
+        for (int i = 0; i < NAMES; i++) {
+            router.stack(name(i)).pushValue(i);
+            String owner = router.ownerOf(name(i));
+            owners.put(name(i), owner);
+            perNode.put(owner, perNode.containsKey(owner) ? perNode.get(owner) + 1 : 1);
+        }
+        for (String node : router.nodes()) {
+            int n = perNode.containsKey(node) ? perNode.get(node) : 0;
+            assertTrue(n > NAMES / 6 && n < NAMES / 2, node + " owns " + n + " of " + NAMES + " names");
+        }
+
+        CalculatorStacks a = (CalculatorStacks) LocateRegistry.getRegistry(2401).lookup(CalculatorServer.STACKS_BIND_NAME);
+        for (String s : a.stackNames()) {
+            assertTrue("node-a".equals(owners.get(s)), s + " lives on node-a but is owned by " + owners.get(s));
+        }
+        assertTrue(a.stackNames().length == perNode.get("node-a"), "node-a holds exactly its own stacks");
+
+        System.out.println("[PASS] spread over nodes " + perNode);
+    }
+
+    // Case 2: kill node-c without it leaving; calls to its names re-route to the others, and
+    // no other name moves
+    private static void testNodeLeaves(ClusterRouter router, Map<String, String> owners, Process c) throws Exception {
+        c.destroyForcibly().waitFor();
+        for (int i = 0; i < NAMES; i++) {
+            Calculator stack = router.stack(name(i));
+            if (owners.get(name(i)).equals("node-c")) {
+                // the values went with the node; the stack starts over on its new owner
+                assertTrue(stack.peek() == null, name(i) + " is empty on its new owner");
+                stack.pushValue(i);
+                String now = router.ownerOf(name(i));
+                assertTrue(!now.equals("node-c"), name(i) + " still routed to node-c");
+                owners.put(name(i), now);
+            } else {
+                assertTrue(stack.peek() == i, name(i) + " kept its value");
+                assertTrue(router.ownerOf(name(i)).equals(owners.get(name(i))), name(i) + " moved");
+            }
+        }
+        assertTrue(Arrays.equals(router.nodes(), new String[]{"node-a", "node-b"}), "nodes " + Arrays.toString(router.nodes()));
+
+        System.out.println("[PASS] node leaves");
+    }
+
+    // Case 3: a new node takes over about a third of the names, all from the others, none between them
+    private static void testNodeJoins(ClusterRouter router, Map<String, String> owners) throws Exception {
+        startNode("node-d", 2404);
+        awaitNodes(router, "node-a", "node-b", "node-d");
+        int moved = 0;
+        for (int i = 0; i < NAMES; i++) {
+            String now = router.ownerOf(name(i));
+            if (!now.equals(owners.get(name(i)))) {
+                assertTrue(now.equals("node-d"), name(i) + " moved from " + owners.get(name(i)) + " to " + now);
+                moved++;
+            }
+        }
+        assertTrue(moved > NAMES / 6 && moved < NAMES / 2, moved + " of " + NAMES + " names moved to node-d");
+
+        for (int i = 0; i < NAMES; i++) {
+            router.stack(name(i)).pushValue(-i);
+        }
+        CalculatorStacks d = (CalculatorStacks) LocateRegistry.getRegistry(2404).lookup(CalculatorServer.STACKS_BIND_NAME);
+        assertTrue(d.stackNames().length == moved, "node-d holds the names that moved to it");
+
+        System.out.println("[PASS] node joins (" + moved + " of " + NAMES + " names moved)");
+    }
+}
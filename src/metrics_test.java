@@ -0,0 +1,252 @@
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// In-process test of CalculatorMetrics as read over the platform MBeanServer, the way jconsole
+// sees it. No server needed.
+public class metrics_test {
+    public static void main(String[] args) throws Exception {
+        CalculatorMetrics.registerAll();
+
+        int passed = 0, failed = 0;
+
+        try {
+            testStackMetrics();
+            passed++;
+        } catch (Throwable t) {
+            fail("per-stack metrics", t);
+            failed++;
+        }
+
+        try {
+            testHistogram();
+            passed++;
+        } catch (Throwable t) {
+            fail("latency histogram", t);
+            failed++;
+        }
+
+        try {
+            testMBeanContract();
+            passed++;
+        } catch (Throwable t) {
+            fail("MBean contract", t);
+            failed++;
+        }
+
+        try {
+            testLockQueueSample();
+            passed++;
+        } catch (Throwable t) {
+            fail("lock queue sample", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    private static long count(ObjectName name, String attribute) throws Exception {
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, attribute);
+    }
+
+    // Case 1: each named stack records into an MBean of its own, apart from the shared stack and
+    // from each other, and gone with the name
+    private static void testStackMetrics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName shared = CalculatorMetrics.SHARED.objectName();
+        ObjectName a = new ObjectName("calculator:type=StackMetrics,name=" + ObjectName.quote("a"));
+        ObjectName b = new ObjectName("calculator:type=StackMetrics,name=" + ObjectName.quote("b,odd=\"name\""));
+        long sharedBefore = count(shared, "pushValue.count");
+
+        CalculatorStacksImpl stacks = new CalculatorStacksImpl(200, 10, 0, null, null);
+        Calculator first = stacks.stack("a");
+        Calculator second = stacks.stack("b,odd=\"name\"");
+        for (int i = 0; i < 5; i++) first.pushValue(i);
+        for (int i = 0; i < 3; i++) second.pushValue(i);
+        assertTrue(count(a, "pushValue.count") == 5 && count(b, "pushValue.count") == 3, "each stack counts its own calls");
+        assertTrue(count(shared, "pushValue.count") == sharedBefore, "the shared stack's metrics are untouched");
+        assertTrue(count(a, "lockWait.count") == 5, "lock waits of the stack");
+
+        first.drain();
+        Thread.sleep(400);
+        assertTrue(!server.isRegistered(a), "a swept stack's MBean is gone");
+        stacks.stack("a").pushValue(1);
+        assertTrue(count(a, "pushValue.count") == 1, "a new stack a starts with an MBean of its own");
+
+        assertTrue(stacks.removeStack("b,odd=\"name\"") && !server.isRegistered(b), "a removed stack's MBean is gone");
+
+        System.out.println("[PASS] per-stack metrics");
+    }
+
+    // Case 2: percentiles and max come back within one bucket (12.5%) above the true value,
+    // never below it, and reset empties the histogram
+    private static void testHistogram() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        assertTrue(h.count() == 0 && h.percentile(0.99) == 0 && h.max() == 0, "empty histogram");
+
+        for (int us = 1; us <= 1000; us++) h.record(us * 1000L);
+        assertTrue(h.count() == 1000, "count");
+        double[] ps = {0.5, 0.9, 0.99, 0.999, 1.0};
+        for (double p : ps) {
+            long exact = (long) Math.ceil(p * 1000) * 1000L;
+            long got = h.percentile(p);
+            assertTrue(got >= exact && got <= exact * 1.125, "p" + p + " = " + got + " ns for " + exact);
+        }
+        assertTrue(h.max() >= 1000000L && h.max() <= 1125000L, "max " + h.max());
+        h.record(-5);
+        assertTrue(h.percentile(0.0001) == 0, "a negative time counts as 0");
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long v = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.index(v));
+            assertTrue(upper >= v && BigInteger.valueOf(upper).compareTo(BigInteger.valueOf(v).multiply(BigInteger.valueOf(9)).shiftRight(3).add(BigInteger.ONE)) <= 0,
+                    "bucket of " + v + " ends at " + upper);
+        }
+
+        h.reset();
+        assertTrue(h.count() == 0 && h.max() == 0, "reset");
+
+        System.out.println("[PASS] latency histogram");
+    }
+
+    // Case 3: every attribute in the MBeanInfo can be read, an unknown one is not found, reset
+    // clears the counts, and an unknown operation is a ReflectionException around NoSuchMethodException
+    private static void testMBeanContract() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = CalculatorMetrics.PER_CLIENT.objectName();
+        CalculatorPerClient cal = new CalculatorPerClient();
+        cal.pushValue(1);
+        cal.pop();
+        assertTrue(count(name, "pop.count") >= 1, "pop counted");
+        assertTrue(((Double) server.getAttribute(name, "pop.maxUs")) > 0, "pop max in microseconds");
+
+        for (MBeanAttributeInfo a : server.getMBeanInfo(name).getAttributes()) {
+            assertTrue(server.getAttribute(name, a.getName()) != null, a.getName() + " readable");
+        }
+        boolean notFound = false;
+        try {
+            server.getAttribute(name, "pop.p42Us");
+        } catch (AttributeNotFoundException expected) {
+            notFound = true;
+        }
+        assertTrue(notFound, "unknown attribute");
+
+        server.invoke(name, "reset", null, null);
+        assertTrue(count(name, "pop.count") == 0 && count(name, "rejected.rate") == 0, "reset clears the counts");
+
+        ReflectionException unknown = null;
+        try {
+            server.invoke(name, "shutdown", null, null);
+        } catch (ReflectionException expected) {
+            unknown = expected;
+        }
+        assertTrue(unknown != null && unknown.getCause() instanceof NoSuchMethodException
+                && "shutdown".equals(unknown.getCause().getMessage()), "unknown operation: " + unknown);
+        UnicastRemoteObject.unexportObject(cal, true);
+
+        System.out.println("[PASS] MBean contract");
+    }
+
+    // Case 4: callers that find others queued for the lock leave the queue length in
+    // lockQueueLengthMax, and every lock wait is timed
+    private static void testLockQueueSample() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = CalculatorMetrics.SHARED.objectName();
+        server.invoke(name, "reset", null, null);
+
+        GateJournal gate = new GateJournal();
+        final CalculatorImplementation cal = new CalculatorImplementation(0, null, null, null, null, gate);
+        Thread[] pushers = new Thread[3];
+        for (int i = 0; i < pushers.length; i++) {
+            final int val = i;
+            pushers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        cal.pushValue(val);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.out);
+                    }
+                }
+            });
+        }
+        // the first holds the lock in the journal, the others queue behind it one by one
+        pushers[0].start();
+        gate.entered.await();
+        for (int i = 1; i < pushers.length; i++) {
+            pushers[i].start();
+            while (pushers[i].getState() != Thread.State.WAITING) Thread.sleep(1);
+        }
+        assertTrue((Integer) server.getAttribute(name, "lockQueueLengthMax") == 1, "the last caller found one queued");
+        gate.open.countDown();
+        for (Thread t : pushers) t.join(5000);
+
+        assertTrue(cal.size() == 3, "all pushes done");
+        assertTrue(count(name, "lockWait.count") >= 3, "lock waits timed");
+        server.invoke(name, "reset", null, null);
+        assertTrue((Integer) server.getAttribute(name, "lockQueueLengthMax") == CalculatorMetrics.SHARED.lockQueueLength(), "reset starts the max over");
+
+        System.out.println("[PASS] lock queue sample");
+    }
+
+    // A journal whose first push holds the stack lock until the test opens the gate
+    private static final class GateJournal implements StackJournal {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        public long pushed(int val) {
+            entered.countDown();
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }
+
+        public long pushedAll(int[] vals) {
+            return 0;
+        }
+
+        public long popped(int count) {
+            return 0;
+        }
+
+        public long collapsed(int result) {
+            return 0;
+        }
+
+        public long collapsedWide(BigInteger result) {
+            return 0;
+        }
+
+        public boolean checkpointDue() {
+            return false;
+        }
+
+        public long checkpoint(int[] bottomFirst, BigInteger wideBottom) {
+            return 0;
+        }
+
+        public void awaitDurable(long seq) {
+        }
+    }
+}
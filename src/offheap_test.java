@@ -0,0 +1,201 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+// In-process test of the off-heap sessions (CalculatorSessionsImpl over SlabStore): a registry of
+// its own on port 2599 for the calls over RMI, and direct calls for the cases with many sessions.
+// No server needed.
+public class offheap_test {
+    private static final int REGISTRY_PORT = 2599;
+    private static final String URL = "rmi://localhost:" + REGISTRY_PORT + "/" + CalculatorServer.SESSIONS_BIND_NAME;
+
+    public static void main(String[] args) throws Exception {
+        Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+        registry.rebind(CalculatorServer.SESSIONS_BIND_NAME, new CalculatorSessionsImpl());
+
+        int passed = 0, failed = 0;
+
+        try {
+            testSessionsOverRmi();
+            passed++;
+        } catch (Throwable t) {
+            fail("sessions over RMI", t);
+            failed++;
+        }
+
+        try {
+            testManySessions();
+            passed++;
+        } catch (Throwable t) {
+            fail("many sessions", t);
+            failed++;
+        }
+
+        try {
+            testLeaseEviction();
+            passed++;
+        } catch (Throwable t) {
+            fail("lease eviction", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // Case 1: sessions from the connector behave like private stacks: isolated, growing past
+    // several block sizes and back, exact wide results, popOrWait, and gone once closed
+    private static void testSessionsOverRmi() throws Exception {
+        final SessionCalculator a = (SessionCalculator) CalculatorConnector.connect(URL);
+        SessionCalculator b = (SessionCalculator) CalculatorConnector.connect(URL);
+        assertTrue(a.getId() != b.getId(), "each connect opens a session of its own");
+
+        a.pushValue(1);
+        b.pushValues(new int[]{7, 8});
+        assertTrue(a.size() == 1 && b.size() == 2, "sessions are isolated");
+        assertTrue(b.peek() == 8 && b.tryPop() == 8 && a.pop() == 1, "peek, tryPop and pop");
+        assertTrue(a.isEmpty() && a.tryPop() == null && a.peek() == null, "empty session");
+
+        int[] many = new int[10000];
+        for (int i = 0; i < many.length; i++) many[i] = i;
+        a.pushValues(many);
+        for (int i = 0; i < 100; i++) a.pushValue(many.length + i);
+        int[] top = a.popN(5100);
+        assertTrue(top[0] == 10099 && top[5099] == 5000, "popN returns the top first");
+        int[] rest = a.drain();
+        assertTrue(rest.length == 5000 && rest[0] == 4999 && rest[4999] == 0, "drain after shrinking");
+
+        a.pushValues(new int[]{2147483647, 2147483646});
+        a.pushOperation("lcm");
+        boolean refused = false;
+        try {
+            a.pop();
+        } catch (RemoteException expected) {
+            refused = true;
+        }
+        assertTrue(refused, "pop refuses a result beyond int");
+        assertTrue(a.popWide().equals(BigInteger.valueOf(2147483647L).multiply(BigInteger.valueOf(2147483646L))), "popWide returns it exactly");
+        a.pushValues(new int[]{12, 18, 30});
+        a.pushOperation("gcd");
+        assertTrue(a.pop() == 6, "gcd over the session");
+
+        Thread pusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    a.pushValue(42);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+        pusher.start();
+        Integer waited = a.popOrWait(5000);
+        pusher.join();
+        assertTrue(waited != null && waited == 42, "popOrWait gets a later push");
+
+        assertTrue(b.close(), "close");
+        boolean gone = false;
+        try {
+            b.pushValue(1);
+        } catch (RemoteException expected) {
+            gone = true;
+        }
+        assertTrue(gone, "a closed session refuses calls");
+        a.close();
+
+        System.out.println("[PASS] sessions over RMI");
+    }
+
+    // Case 2: 200000 small sessions take 16 bytes each in the slabs, closed ones are reused
+    // without more slabs, an old id does not reach the session that took over its slot, and
+    // a live id does not reach its session without the key
+    private static void testManySessions() throws Exception {
+        int n = 200000;
+        CalculatorSessionsImpl sessions = new CalculatorSessionsImpl(CalculatorSessionsImpl.DEFAULT_LEASE_MS, n, 1 << 16, 0, null, null);
+        long[] ids = new long[n];
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            SessionCalculator s = sessions.open();
+            ids[i] = s.getId();
+            keys[i] = s.getKey();
+            sessions.pushValues(ids[i], keys[i], new int[]{i, i + 1, i + 2});
+        }
+        long bytes = sessions.offHeapBytes();
+        assertTrue(bytes >= n * 16L && bytes <= n * 16L + (1 << 16), n + " sessions of 3 values in " + bytes + " bytes");
+        assertTrue(sessions.liveSessions() == n, "all open");
+        for (int i = 0; i < n; i += 997) {
+            assertTrue(sessions.peek(ids[i], keys[i]) == i + 2 && sessions.size(ids[i], keys[i]) == 3, "values of session " + i);
+        }
+
+        boolean full = false;
+        try {
+            sessions.open();
+        } catch (RemoteException expected) {
+            full = true;
+        }
+        assertTrue(full, "maxSessions is enforced");
+
+        boolean guessed = false;
+        try {
+            sessions.pop(ids[1], keys[1] + 1);
+            guessed = true;
+        } catch (RemoteException expected) {
+        }
+        assertTrue(!guessed && !sessions.close(ids[1], keys[2]), "an id with another key is refused");
+
+        for (int i = 0; i < n; i += 2) sessions.close(ids[i], keys[i]);
+        for (int i = 0; i < n; i += 2) {
+            SessionCalculator s = sessions.open();
+            assertTrue(s.getId() != ids[i], "a reused slot gets a new id");
+            sessions.pushValues(s.getId(), s.getKey(), new int[]{-1, -2, -3});
+        }
+        assertTrue(sessions.offHeapBytes() == bytes, "closed sessions' blocks are reused");
+
+        boolean stale = false;
+        try {
+            sessions.pop(ids[0], keys[0]);
+        } catch (RemoteException expected) {
+            stale = true;
+        }
+        assertTrue(stale, "an old id is refused");
+        assertTrue(sessions.pop(ids[1], keys[1]) == 3, "the others are untouched");
+        sessions.shutdown();
+
+        System.out.println("[PASS] many sessions (" + n + " sessions, " + bytes + " bytes off-heap)");
+    }
+
+    // Case 3: a session left alone for a lease is closed, one in use stays
+    private static void testLeaseEviction() throws Exception {
+        CalculatorSessionsImpl sessions = new CalculatorSessionsImpl(200, 10, 1 << 12, 0, null, null);
+        SessionCalculator idle = sessions.open();
+        SessionCalculator busy = sessions.open();
+        idle.pushValue(1);
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(100);
+            busy.pushValue(i);
+        }
+        assertTrue(sessions.evictedSessions() == 1 && sessions.liveSessions() == 1, "the idle session was evicted");
+        boolean gone = false;
+        try {
+            idle.size();
+        } catch (RemoteException expected) {
+            gone = true;
+        }
+        assertTrue(gone, "an evicted session refuses calls");
+        assertTrue(busy.size() == 8, "the busy session kept its values");
+        sessions.shutdown();
+
+        System.out.println("[PASS] lease eviction");
+    }
+}
@@ -0,0 +1,640 @@
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.Stack;
+
+// In-process test: pushOperation on every implementation must give the same
+// results as the original java.util.Stack<Integer> drain-and-fold code. No server needed.
+public class operation_test {
+    private static final String[] OPERATORS = {"min", "max", "gcd", "lcm"};
+    private static final int ROUNDS = 200;
+    private static final long SEED = 20250901L;
+    private static final int STEPS = 20000;
+
+    // every lcm over these stays a divisor of 720720 = lcm(1..16), so no int overflow
+    private static final int[] SMALL = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    public static void main(String[] args) throws Exception {
+        // so the parallel folds really split, even on a one-CPU machine
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+        Calculator shared = new CalculatorImplementation();
+        Calculator perClient = new CalculatorPerClient();
+        Calculator lockFree = new CalculatorLockFree();
+        Calculator[] targets = {shared, perClient, lockFree};
+
+        int passed = 0, failed = 0;
+
+        try {
+            testFixedCases(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("fixed cases", t);
+            failed++;
+        }
+
+        try {
+            testRandomWorkloads(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("random workloads", t);
+            failed++;
+        }
+
+        try {
+            testGrowAndShrink(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("grow and shrink", t);
+            failed++;
+        }
+
+        try {
+            testInterleavedWorkloads(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("interleaved workloads", t);
+            failed++;
+        }
+
+        try {
+            testWideResults(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("wide results", t);
+            failed++;
+        }
+
+        try {
+            testParallelFolds(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("parallel folds", t);
+            failed++;
+        }
+
+        try {
+            testStreamingOperators(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("streaming operators", t);
+            failed++;
+        }
+
+        try {
+            testOrderStatistics(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("order statistics", t);
+            failed++;
+        }
+
+        try {
+            testWideLimit(targets);
+            passed++;
+        } catch (Throwable t) {
+            fail("wide limit", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void assertEquals(int expected, int actual, String msg) {
+        if (expected != actual) {
+            throw new AssertionError(msg + " (expected " + expected + ", got " + actual + ")");
+        }
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // Push the values, apply the operator and pop the single result
+    private static int run(Calculator cal, int[] values, String op) throws Exception {
+        for (int v : values) cal.pushValue(v);
+        cal.pushOperation(op);
+        int got = cal.pop();
+        assertTrue(cal.isEmpty(), op + " should leave exactly one value");
+        return got;
+    }
+
+    // The original fold over a boxed java.util.Stack, kept here as the reference
+    private static int reference(int[] values, String op) {
+        Stack<Integer> stack = new Stack<Integer>();
+        for (int v : values) stack.push(v);
+
+        if (op.equals("min")) {
+            int m = Integer.MAX_VALUE;
+            while (!stack.empty()) m = Math.min(m, stack.pop());
+            return m;
+        }
+        if (op.equals("max")) {
+            int m = Integer.MIN_VALUE;
+            while (!stack.empty()) m = Math.max(m, stack.pop());
+            return m;
+        }
+        if (op.equals("gcd")) {
+            int g = 0;
+            while (!stack.empty()) g = gcd(g, stack.pop());
+            return Math.abs(g);
+        }
+        int l = 1;
+        while (!stack.empty()) l = lcm(l, stack.pop());
+        return Math.abs(l);
+    }
+
+    private static int gcd(int a, int b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        if (a == 0) return b;
+        if (b == 0) return a;
+        while (b != 0) {
+            int temporary = a % b;
+            a = b;
+            b = temporary;
+        }
+        return a;
+    }
+
+    private static int lcm(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        int g = gcd(a, b);
+        return (a / g) * b;
+    }
+
+    private static void check(Calculator[] targets, int[] values, String op) throws Exception {
+        int expected = reference(values, op);
+        for (Calculator cal : targets) {
+            assertEquals(expected, run(cal, values, op), cal.getClass().getName() + " " + op);
+        }
+    }
+
+    // Case 1: the hand-written cases from shared_test plus signs and zeros
+    private static void testFixedCases(Calculator[] targets) throws Exception {
+        check(targets, new int[]{7, 2, 9}, "min");
+        check(targets, new int[]{5, -3, 12, 9}, "max");
+        check(targets, new int[]{4, 8, 16}, "lcm");
+        check(targets, new int[]{18, 30, 42}, "gcd");
+        check(targets, new int[]{-18, 30, 0}, "gcd");
+        check(targets, new int[]{-4, 6, 5}, "lcm");
+        check(targets, new int[]{3, 0, 5}, "lcm");
+        check(targets, new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}, "min");
+        check(targets, new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}, "max");
+
+        System.out.println("[PASS] fixed cases");
+    }
+
+    // Case 2: random stacks of random size; lcm inputs stay small so the int result does not overflow
+    private static void testRandomWorkloads(Calculator[] targets) throws Exception {
+        Random rnd = new Random(SEED);
+        for (int round = 0; round < ROUNDS; round++) {
+            String op = OPERATORS[rnd.nextInt(OPERATORS.length)];
+            int n = 1 + rnd.nextInt(op.equals("lcm") ? 8 : 300);
+            int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = op.equals("lcm") ? rnd.nextInt(25) - 12 : rnd.nextInt(2001) - 1000;
+            }
+            check(targets, values, op);
+        }
+
+        System.out.println("[PASS] random workloads");
+    }
+
+    // Case 3: a stack large enough to grow the backing array many times, then collapse it
+    private static void testGrowAndShrink(Calculator[] targets) throws Exception {
+        int n = 100000;
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) values[i] = (i % 97) * 6;
+
+        check(targets, values, "max");
+        check(targets, values, "gcd");
+
+        // pop order must still be LIFO after growing and shrinking
+        for (Calculator cal : targets) {
+            for (int v : values) cal.pushValue(v);
+            for (int i = n - 1; i >= 0; i--) {
+                assertEquals(values[i], cal.pop(), "LIFO pop at " + i);
+            }
+            assertTrue(cal.isEmpty(), "empty after popping everything");
+        }
+
+        System.out.println("[PASS] grow and shrink");
+    }
+
+    // Case 4: random push/pushValues/pop/popN/pushOperation sequences, checked step by step
+    // against a java.util.Stack model collapsed with the drain-and-fold reference
+    private static void testInterleavedWorkloads(Calculator[] targets) throws Exception {
+        Random rnd = new Random(SEED + 1);
+        for (Calculator cal : targets) {
+            cal.drain();
+            Stack<Integer> model = new Stack<Integer>();
+
+            for (int step = 0; step < STEPS; step++) {
+                int action = rnd.nextInt(10);
+                if (action < 5 || model.isEmpty()) {
+                    int v = SMALL[rnd.nextInt(SMALL.length)] * (rnd.nextBoolean() ? 1 : -1);
+                    cal.pushValue(v);
+                    model.push(v);
+                } else if (action == 5) {
+                    int[] batch = new int[rnd.nextInt(200)];
+                    for (int i = 0; i < batch.length; i++) batch[i] = SMALL[rnd.nextInt(SMALL.length)];
+                    cal.pushValues(batch);
+                    for (int v : batch) model.push(v);
+                } else if (action == 6) {
+                    assertEquals(model.pop(), cal.pop(), "pop at step " + step);
+                } else if (action == 7) {
+                    int n = rnd.nextInt(Math.min(model.size(), 100) + 1);
+                    int[] got = cal.popN(n);
+                    for (int i = 0; i < n; i++) {
+                        assertEquals(model.pop(), got[i], "popN at step " + step);
+                    }
+                } else if (rnd.nextInt(20) == 0) {
+                    // rare, so the stack gets deep enough to span many checkpoints
+                    String op = OPERATORS[rnd.nextInt(OPERATORS.length)];
+                    int[] values = new int[model.size()];
+                    for (int i = 0; i < values.length; i++) values[i] = model.get(i);
+                    int expected = reference(values, op);
+                    cal.pushOperation(op);
+                    model.clear();
+                    model.push(expected);
+                    int[] top = cal.popN(1);
+                    assertEquals(expected, top[0], op + " at step " + step + " over " + values.length + " values");
+                    cal.pushValue(top[0]);
+                }
+            }
+
+            int[] rest = cal.drain();
+            assertEquals(model.size(), rest.length, "size at the end");
+            for (int v : rest) assertEquals(model.pop(), v, "final drain");
+        }
+
+        System.out.println("[PASS] interleaved workloads");
+    }
+
+    // pop() must refuse a value that does not fit in an int
+    private static void assertPopRefused(Calculator cal, String msg) throws Exception {
+        boolean refused = false;
+        try {
+            cal.pop();
+        } catch (RemoteException e) {
+            refused = true;
+        }
+        assertTrue(refused, msg);
+    }
+
+    // Case 5: lcm beyond int and beyond long stays exact as a wide value, which only popWide
+    // returns and which later operations fold exactly
+    private static void testWideResults(Calculator[] targets) throws Exception {
+        int[] primes = {1000003, 1000033, 1000037, 1000039};
+        BigInteger product = BigInteger.ONE;
+        for (int p : primes) product = product.multiply(BigInteger.valueOf(p));
+
+        for (Calculator cal : targets) {
+            String name = cal.getClass().getName();
+
+            // beyond int but inside a long
+            cal.pushValues(new int[]{100003, -100019});
+            cal.pushOperation("lcm");
+            assertPopRefused(cal, name + " pop of a long lcm");
+            assertTrue(cal.popWide().equals(BigInteger.valueOf(100003L * 100019L)), name + " long lcm");
+            assertTrue(cal.isEmpty(), name + " empty after popWide");
+
+            // beyond long; popN and drain leave it alone
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValues(new int[]{6, 1000003});
+            boolean refused = false;
+            try {
+                cal.popN(3);
+            } catch (RemoteException e) {
+                refused = true;
+            }
+            assertTrue(refused, name + " popN reaching the wide value");
+            cal.pushOperation("lcm");
+            assertTrue(cal.popWide().equals(product.multiply(BigInteger.valueOf(6))), name + " lcm over a wide value");
+
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValue(-5);
+            cal.pushOperation("max");
+            assertTrue(cal.popWide().equals(product), name + " max with a wide value");
+
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValue(1000037 * 3);
+            cal.pushOperation("gcd");
+            assertEquals(1000037, cal.pop(), name + " gcd back into int");
+
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValue(0);
+            cal.pushOperation("lcm");
+            assertEquals(0, cal.pop(), name + " lcm with 0");
+
+            cal.pushValue(7);
+            assertTrue(cal.popWide().equals(BigInteger.valueOf(7)), name + " popWide of an int");
+            assertTrue(cal.isEmpty(), name + " empty at the end");
+        }
+
+        System.out.println("[PASS] wide results");
+    }
+
+    // Push, collapse and read back the result whatever its width
+    private static BigInteger runWide(Calculator cal, int[] values, String op) throws Exception {
+        cal.pushValues(values);
+        cal.pushOperation(op);
+        BigInteger got = cal.popWide();
+        assertTrue(cal.isEmpty(), op + " should leave exactly one value");
+        return got;
+    }
+
+    // Case 6: with a low ParallelFold threshold, large batches and BigInteger lcm folds split
+    // across the common pool and must give the same results as the sequential folds
+    private static void testParallelFolds(Calculator[] targets) throws Exception {
+        Random rnd = new Random(SEED + 2);
+        int n = 200000;
+        int[] mixed = new int[n];
+        int[] small = new int[n];
+        for (int i = 0; i < n; i++) {
+            mixed[i] = rnd.nextInt();
+            small[i] = 1 + rnd.nextInt(1000);
+        }
+        int[] multiples = new int[n];
+        for (int i = 0; i < n; i++) multiples[i] = 6 * (1 + rnd.nextInt(100000));
+
+        try {
+            for (Calculator cal : targets) {
+                String name = cal.getClass().getName();
+                for (String op : OPERATORS) {
+                    // lcm over random ints would grow to millions of bits; small values keep it to ~1400
+                    int[][] inputs = op.equals("lcm") ? new int[][]{small} : new int[][]{mixed, small, multiples};
+                    for (int[] values : inputs) {
+                        ParallelFold.setThreshold(0);
+                        BigInteger expected = runWide(cal, values, op);
+                        ParallelFold.setThreshold(1 << 14);
+                        assertTrue(expected.equals(runWide(cal, values, op)), name + " parallel " + op);
+                    }
+                }
+
+                // lcm beyond a long at the bottom, then a large batch folded onto it
+                ParallelFold.setThreshold(0);
+                cal.pushValues(new int[]{1000003, 1000033, 1000037, 1000039});
+                cal.pushOperation("lcm");
+                BigInteger expected = runWide(cal, small, "lcm");
+                cal.pushValues(new int[]{1000003, 1000033, 1000037, 1000039});
+                cal.pushOperation("lcm");
+                ParallelFold.setThreshold(1 << 14);
+                assertTrue(expected.equals(runWide(cal, small, "lcm")), name + " parallel lcm over a wide value");
+            }
+        } finally {
+            ParallelFold.setThreshold(ParallelFold.DEFAULT_THRESHOLD);
+        }
+
+        System.out.println("[PASS] parallel folds");
+    }
+
+    // Case 7: sum/product/avg and a registered operator, by name and by opcode, exact against
+    // BigInteger folds, also over a wide bottom value
+    private static void testStreamingOperators(Calculator[] targets) throws Exception {
+        int xor = Operators.register("xor", new Reducer() {
+            public long identity() {
+                return 0;
+            }
+
+            public long step(long acc, int v) {
+                return acc ^ v;
+            }
+
+            public BigInteger stepBig(BigInteger acc, BigInteger v) {
+                return acc.xor(v);
+            }
+        });
+        assertEquals(xor, Operators.code(" XOR"), "registered opcode by name");
+
+        Random rnd = new Random(SEED + 3);
+        int[] primes = {1000003, 1000033, 1000037, 1000039};
+        BigInteger lcm = BigInteger.ONE;
+        for (int p : primes) lcm = lcm.multiply(BigInteger.valueOf(p));
+
+        for (Calculator cal : targets) {
+            String name = cal.getClass().getName();
+            for (int round = 0; round < ROUNDS; round++) {
+                int n = 1 + rnd.nextInt(300);
+                int[] values = new int[n];
+                int[] factors = new int[n];
+                BigInteger sum = BigInteger.ZERO, product = BigInteger.ONE;
+                int x = 0;
+                for (int i = 0; i < n; i++) {
+                    values[i] = rnd.nextInt();
+                    factors[i] = rnd.nextInt(7) - 3;   // small, so the product spills past a long but stays short
+                    sum = sum.add(BigInteger.valueOf(values[i]));
+                    product = product.multiply(BigInteger.valueOf(factors[i]));
+                    x ^= values[i];
+                }
+                assertTrue(sum.equals(runWide(cal, values, "sum")), name + " sum");
+                assertTrue(sum.divide(BigInteger.valueOf(n)).equals(runWide(cal, values, " Avg ")), name + " avg");
+                assertTrue(product.equals(runWide(cal, factors, "product")), name + " product");
+
+                cal.pushValues(values);
+                cal.pushOperation(IntMath.OP_SUM);
+                assertTrue(sum.equals(cal.popWide()), name + " sum by opcode");
+                cal.pushValues(values);
+                cal.pushOperation(xor);
+                assertEquals(x, cal.pop(), name + " registered xor");
+            }
+
+            // the checkpointed operators by opcode
+            cal.pushValues(new int[]{12, -18, 30});
+            cal.pushOperation(IntMath.OP_GCD);
+            assertEquals(6, cal.pop(), name + " gcd by opcode");
+
+            // sum and avg over a wide bottom value
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValue(-1);
+            cal.pushOperation("sum");
+            assertTrue(lcm.subtract(BigInteger.ONE).equals(cal.popWide()), name + " sum over a wide value");
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValues(new int[]{4, 5});
+            cal.pushOperation(IntMath.OP_AVG);
+            assertTrue(lcm.add(BigInteger.valueOf(9)).divide(BigInteger.valueOf(3)).equals(cal.popWide()), name + " avg over a wide value");
+
+            // unknown opcode and name are refused and leave the stack alone
+            cal.pushValue(5);
+            boolean refused = false;
+            try {
+                cal.pushOperation(Operators.count());
+            } catch (RemoteException e) {
+                refused = true;
+            }
+            assertTrue(refused, name + " unknown opcode");
+            refused = false;
+            try {
+                cal.pushOperation("median?");
+            } catch (RemoteException e) {
+                refused = true;
+            }
+            assertTrue(refused, name + " unknown operator");
+            assertEquals(5, cal.pop(), name + " stack left alone");
+            assertTrue(cal.isEmpty(), name + " empty at the end");
+        }
+
+        System.out.println("[PASS] streaming operators");
+    }
+
+    // Case 8: median/percentile/kth against a sorted copy, on random, duplicate-heavy and
+    // adversarially ordered stacks, by name and by opcode, also next to a wide bottom value
+    private static void testOrderStatistics(Calculator[] targets) throws Exception {
+        Random rnd = new Random(SEED + 4);
+        String[] percentiles = {"0.001", "1", "50", "90", "99", "99.9", "100"};
+
+        for (Calculator cal : targets) {
+            String name = cal.getClass().getName();
+            for (int round = 0; round < ROUNDS; round++) {
+                int n = 1 + rnd.nextInt(round % 2 == 0 ? 40 : 3000);
+                int spread = round % 3 == 0 ? 5 : Integer.MAX_VALUE;
+                int[] values = new int[n];
+                for (int i = 0; i < n; i++) values[i] = rnd.nextInt(spread) - (spread == 5 ? 2 : rnd.nextInt(Integer.MAX_VALUE));
+                int[] sorted = values.clone();
+                java.util.Arrays.sort(sorted);
+
+                long median = n % 2 == 1 ? sorted[n / 2] : ((long) sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+                assertTrue(BigInteger.valueOf(median).equals(runWide(cal, values, "median")), name + " median of " + n);
+                for (String p : percentiles) {
+                    int rank = (int) Math.max(1, Math.ceil(Double.parseDouble(p) / 100 * n));
+                    assertEquals(sorted[rank - 1], runWide(cal, values, "percentile:" + p).intValue(), name + " p" + p + " of " + n);
+                }
+                int k = 1 + rnd.nextInt(n);
+                assertEquals(sorted[k - 1], runWide(cal, values, " KTH: " + k).intValue(), name + " kth " + k);
+                cal.pushValues(values);
+                cal.pushOperation(IntMath.OP_KTH, k);
+                assertEquals(sorted[k - 1], cal.pop(), name + " kth by opcode");
+                cal.pushValues(values);
+                cal.pushOperation(IntMath.OP_PERCENTILE, 99900);
+                assertEquals(sorted[(int) Math.max(1, Math.ceil(0.999 * n)) - 1], cal.pop(), name + " p99.9 by opcode");
+            }
+
+            // orders that defeat a naive pivot: sorted, reversed, organ pipe, all equal
+            int n = 100000;
+            int[][] shapes = new int[4][n];
+            for (int i = 0; i < n; i++) {
+                shapes[0][i] = i;
+                shapes[1][i] = n - i;
+                shapes[2][i] = Math.min(i, n - i);
+                shapes[3][i] = 42;
+            }
+            for (int[] values : shapes) {
+                int[] sorted = values.clone();
+                java.util.Arrays.sort(sorted);
+                assertEquals((sorted[n / 2 - 1] + sorted[n / 2]) / 2, runWide(cal, values, "median").intValue(), name + " median of a shaped stack");
+                assertEquals(sorted[n / 10 - 1], runWide(cal, values, "kth:" + (n / 10)).intValue(), name + " kth of a shaped stack");
+            }
+
+            // a positive wide bottom is above every int, a negative one below
+            int[] primes = {1000003, 1000033, 1000037, 1000039};
+            BigInteger lcm = BigInteger.ONE;
+            for (int p : primes) lcm = lcm.multiply(BigInteger.valueOf(p));
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValues(new int[]{3, 1, 2});
+            cal.pushOperation("median");
+            assertEquals(2, cal.pop(), name + " median next to a wide lcm");
+            cal.pushValues(primes);
+            cal.pushOperation("lcm");
+            cal.pushValues(new int[]{3, 1});
+            cal.pushOperation("percentile:100");
+            assertTrue(lcm.equals(cal.popWide()), name + " p100 is the wide lcm");
+            cal.pushValues(new int[]{Integer.MIN_VALUE, Integer.MIN_VALUE});
+            cal.pushOperation("sum");
+            cal.pushValue(10);
+            cal.pushOperation("median");
+            assertTrue(BigInteger.valueOf(Integer.MIN_VALUE).add(BigInteger.valueOf(5)).equals(cal.popWide()), name + " median with a negative wide sum");
+
+            // bad arguments are refused and leave the stack alone
+            cal.pushValues(new int[]{1, 2, 3});
+            String[] bad = {"kth:4", "kth:0", "kth", "percentile:0", "percentile:101", "percentile:4294967.396", "percentile:NaN", "percentile:x", "median:3"};
+            for (String op : bad) {
+                boolean refused = false;
+                try {
+                    cal.pushOperation(op);
+                } catch (RemoteException e) {
+                    refused = true;
+                }
+                assertTrue(refused, name + " " + op + " refused");
+            }
+            boolean refused = false;
+            try {
+                cal.pushOperation(IntMath.OP_KTH);
+            } catch (RemoteException e) {
+                refused = true;
+            }
+            assertTrue(refused, name + " kth opcode without an argument refused");
+            assertEquals(3, cal.popN(3).length, name + " stack left alone");
+            assertTrue(cal.isEmpty(), name + " empty at the end");
+        }
+
+        System.out.println("[PASS] order statistics");
+    }
+
+    // Case 9: a product or lcm wider than IntMath.maxWideBits is refused with a RemoteException,
+    // soon and with the stack left alone; one just inside the limit is still exact
+    private static void testWideLimit(Calculator[] targets) throws Exception {
+        int[] big = new int[5000];
+        java.util.Arrays.fill(big, Integer.MAX_VALUE);
+        int[] primes = new int[400];
+        BigInteger p = BigInteger.valueOf(1000000);
+        for (int i = 0; i < primes.length; i++) {
+            p = p.nextProbablePrime();
+            primes[i] = p.intValue();
+        }
+
+        for (Calculator cal : targets) {
+            String name = cal.getClass().getName();
+
+            // 5000 values of 31 bits is far past the default limit
+            cal.pushValues(big);
+            long start = System.nanoTime();
+            assertOperationRefused(cal, "product", name + " wide product refused");
+            assertTrue(System.nanoTime() - start < 2000000000L, name + " refused without multiplying it all out");
+            assertEquals(big.length, cal.size(), name + " stack left alone by the product");
+            cal.pushOperation("max");
+            assertEquals(Integer.MAX_VALUE, cal.pop(), name + " values still there");
+
+            IntMath.setMaxWideBits(4096);
+            try {
+                // 400 primes of 20 bits is about 8000 bits
+                cal.pushValues(primes);
+                assertOperationRefused(cal, "lcm", name + " wide lcm refused");
+                assertEquals(primes.length, cal.size(), name + " stack left alone by the lcm");
+                cal.popN(primes.length);
+
+                // 100 values of 31 bits fit
+                cal.pushValues(java.util.Arrays.copyOf(big, 100));
+                cal.pushOperation("product");
+                assertTrue(cal.popWide().equals(BigInteger.valueOf(Integer.MAX_VALUE).pow(100)), name + " product inside the limit");
+            } finally {
+                IntMath.setMaxWideBits(IntMath.DEFAULT_MAX_WIDE_BITS);
+            }
+            assertTrue(cal.isEmpty(), name + " empty at the end");
+        }
+
+        System.out.println("[PASS] wide limit");
+    }
+
+    private static void assertOperationRefused(Calculator cal, String op, String msg) throws Exception {
+        boolean refused = false;
+        try {
+            cal.pushOperation(op);
+        } catch (RemoteException e) {
+            refused = true;
+        }
+        assertTrue(refused, msg);
+    }
+}
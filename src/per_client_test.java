@@ -1,6 +1,3 @@
-import java.rmi.Naming;
-
-
 //This is the Bonus automated testing where each client has its own per-client stacks
 public class per_client_test {
     private static final String FACTORY_URL = CalculatorServer.PRIVATE_URL;
@@ -12,7 +9,7 @@ public class per_client_test {
     public static void main(String[] args) throws Exception {
         CalculatorPrivate factory;
         try {
-            factory = (CalculatorPrivate) Naming.lookup(FACTORY_URL);
+            factory = StubCache.get(FACTORY_URL, CalculatorPrivate.class);
         } catch (Exception e){
             System.out.println("Cannot lookup CalculatorFactory at " + FACTORY_URL);
             e.printStackTrace(System.out);
@@ -62,6 +59,38 @@ public class per_client_test {
             failed++;
         }
 
+        try {
+            testBulkOpsOnOwnStack(factory);
+            passed++;
+        } catch (Throwable t) {
+            fail("bulk ops isolation", t);
+            failed++;
+        }
+
+        try {
+            testDelayPopAsyncOnOwnStack(factory);
+            passed++;
+        } catch (Throwable t) {
+            fail("delayPopAsync isolation", t);
+            failed++;
+        }
+
+        try {
+            testSessionReconnectAndClose(factory);
+            passed++;
+        } catch (Throwable t) {
+            fail("session reconnect/close", t);
+            failed++;
+        }
+
+        try {
+            testPopOrWaitOnOwnStack(factory);
+            passed++;
+        } catch (Throwable t) {
+            fail("popOrWait isolation", t);
+            failed++;
+        }
+
         System.out.println("\n RESULT: passed=" + passed + " failed=" + failed);
         System.exit(failed == 0 ? 0 : 1);
     }
@@ -85,9 +114,7 @@ public class per_client_test {
 
     // Clear the stack of the specified Calculator
     private static void clearStack(Calculator c) throws Exception {
-        while (!c.isEmpty()) {
-            try { c.pop(); } catch (Exception ignored) { break; }
-        }
+        c.drain();
     }
 
     // Case 1: Two dedicated stacks do not interfere with each other
@@ -206,4 +233,181 @@ public class per_client_test {
 
         System.out.println("[PASS] delayPop independence");
     }
+
+    // Case 6: Bulk pushes on A are not visible to B, and drain only empties A
+    private static void testBulkOpsOnOwnStack(CalculatorPrivate factory) throws Exception{
+        Calculator A = factory.connect();
+        Calculator B = factory.connect();
+
+        A.pushValues(new int[]{1, 2, 3, 4});
+        B.pushValues(new int[]{9});
+
+        int[] top = A.popN(2);
+        assertEquals(4, top[0], "A popN top");
+        assertEquals(3, top[1], "A popN second");
+
+        int[] rest = A.drain();
+        assertEquals(2, rest.length, "A drain size");
+        assertTrue(A.isEmpty(), "A empty after drain");
+        assertEquals(9, B.pop(), "B keeps its own value");
+
+        System.out.println("[PASS] bulk ops isolation");
+    }
+
+    // Case 7: A's delayPopAsync pops from A only, a failing pop is reported through the callback,
+    // a value whose callback cannot be reached goes back on the stack, and one whose callback
+    // failed after it got the value does not (delivery is at most once)
+    private static void testDelayPopAsyncOnOwnStack(CalculatorPrivate factory) throws Exception{
+        Calculator A = factory.connect();
+        Calculator B = factory.connect();
+
+        A.pushValue(11);
+        B.pushValue(22);
+        DelayPopFuture a = DelayPopFuture.request(A, DELAY_MS);
+        DelayPopFuture empty = DelayPopFuture.request(factory.connect(), SHORT_DELAY_MS);
+
+        assertEquals(11, a.get(), "A delayPopAsync result");
+        assertEquals(22, B.pop(), "B keeps its own value");
+
+        boolean failedAsExpected = false;
+        try {
+            empty.get();
+        } catch (java.util.concurrent.ExecutionException expected) {
+            failedAsExpected = true;
+        }
+        assertTrue(failedAsExpected, "delayPopAsync on an empty stack reports failure");
+
+        // a client that is gone by the time the value is popped
+        DelayPopCallback gone = new DelayPopCallback() {
+            public void popped(int val) {
+            }
+
+            public void failed(String reason) {
+            }
+        };
+        DelayPopCallback goneStub = (DelayPopCallback) java.rmi.server.UnicastRemoteObject.exportObject(gone, 0);
+        java.rmi.server.UnicastRemoteObject.unexportObject(gone, true);
+        A.pushValue(33);
+        A.delayPopAsync(SHORT_DELAY_MS, goneStub);
+        Thread.sleep(SHORT_DELAY_MS + 1000);
+        assertEquals(1, A.size(), "the value is pushed back when the callback fails");
+        assertEquals(33, A.pop(), "the value pushed back");
+
+        // a client that takes the value but whose reply does not make it back
+        final int[] got = new int[1];
+        DelayPopCallback lost = new DelayPopCallback() {
+            public void popped(int val) throws java.rmi.RemoteException {
+                got[0] = val;
+                throw new java.rmi.RemoteException("reply lost");
+            }
+
+            public void failed(String reason) {
+            }
+        };
+        DelayPopCallback lostStub = (DelayPopCallback) java.rmi.server.UnicastRemoteObject.exportObject(lost, 0);
+        A.pushValue(44);
+        A.delayPopAsync(SHORT_DELAY_MS, lostStub);
+        Thread.sleep(SHORT_DELAY_MS + 1000);
+        java.rmi.server.UnicastRemoteObject.unexportObject(lost, true);
+        assertEquals(44, got[0], "the client got the value");
+        assertTrue(A.isEmpty(), "a value the client may have is not pushed back");
+
+        System.out.println("[PASS] delayPopAsync isolation");
+    }
+
+    // Case 8: reconnect(id) returns the same warm stack; after closeSession it is gone. Ids are
+    // not guessable from one another. Plain connect() stacks are leased apart from sessions: counted,
+    // capped and unexported once idle
+    private static void testSessionReconnectAndClose(CalculatorPrivate factory) throws Exception{
+        CalculatorSession session = factory.openSession();
+        int liveBefore = factory.liveSessions();
+        session.getCalculator().pushValues(new int[]{4, 5});
+
+        CalculatorSession other = factory.openSession();
+        assertTrue(session.getId().length() == 32 && !session.getId().equals(other.getId()), "128-bit ids of their own");
+        assertTrue(factory.closeSession(other.getId()), "close the other session");
+        int connectionsBefore = factory.liveConnections();
+        factory.connect();
+        assertEquals(liveBefore, factory.liveSessions(), "connect() does not count as a session");
+        assertTrue(factory.liveConnections() > connectionsBefore, "connect() counts as a connection");
+
+        Calculator again = factory.reconnect(session.getId());
+        assertEquals(5, again.pop(), "reconnect sees the values pushed before");
+
+        assertTrue(factory.closeSession(session.getId()), "close a live session");
+        assertEquals(liveBefore - 1, factory.liveSessions(), "live sessions after close");
+
+        boolean rejected = false;
+        try {
+            factory.reconnect(session.getId());
+        } catch (java.rmi.RemoteException expected) {
+            rejected = true;
+        }
+        assertTrue(rejected, "reconnect after close must fail");
+
+        rejected = false;
+        try {
+            again.pop();
+        } catch (java.rmi.NoSuchObjectException expected) {
+            rejected = true;
+        }
+        assertTrue(rejected, "the closed stack is unexported");
+
+        // a factory of its own with a short lease and room for two connect() stacks
+        CalculatorPrivateImpl leased = new CalculatorPrivateImpl(200, 1, 2, 0, null, null, null);
+        Calculator idle = (Calculator) java.rmi.server.RemoteObject.toStub((java.rmi.Remote) leased.connect());
+        leased.connect();
+        rejected = false;
+        try {
+            leased.connect();
+        } catch (java.rmi.RemoteException expected) {
+            rejected = true;
+        }
+        assertTrue(rejected && leased.liveConnections() == 2, "connect() has a cap of its own");
+        assertTrue(leased.openSession() != null, "a session still fits");
+        Thread.sleep(600);
+        assertTrue(leased.liveConnections() == 0 && leased.evictedSessions() == 3, "idle connect() stacks are evicted");
+        rejected = false;
+        try {
+            idle.pushValue(1);
+        } catch (java.rmi.NoSuchObjectException expected) {
+            rejected = true;
+        }
+        assertTrue(rejected, "an evicted connect() stack is unexported");
+        java.rmi.server.UnicastRemoteObject.unexportObject(leased, true);
+
+        System.out.println("[PASS] session reconnect/close");
+    }
+
+    // Case 9: A waiting in popOrWait is not woken by B's push, only by its own; an empty wait times out
+    private static void testPopOrWaitOnOwnStack(CalculatorPrivate factory) throws Exception{
+        final Calculator A = factory.connect();
+        Calculator B = factory.connect();
+
+        assertTrue(A.popOrWait(SHORT_DELAY_MS) == null, "popOrWait on an empty stack times out with null");
+
+        final Integer[] got = new Integer[1];
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    got[0] = A.popOrWait(5000);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(SHORT_DELAY_MS);
+        B.pushValue(7);
+        Thread.sleep(SHORT_DELAY_MS);
+        assertTrue(waiter.isAlive(), "B's push must not wake A");
+
+        A.pushValue(8);
+        waiter.join(5000);
+        assertTrue(got[0] != null, "A's own push wakes its popOrWait");
+        assertEquals(8, got[0], "A popOrWait result");
+        assertEquals(7, B.pop(), "B keeps its own value");
+
+        System.out.println("[PASS] popOrWait isolation");
+    }
 }
@@ -0,0 +1,172 @@
+import java.io.File;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+// Two-process test of hot-standby replication: starts a primary and a replica CalculatorServer
+// on their own registry ports, writes to the primary, fails over to the replica and checks
+// that nothing was lost. Needs no server running; uses ports 2198, 2199 and 2299.
+public class replication_test {
+    private static final int PRIMARY_REGISTRY = 2199;
+    private static final int REPLICA_REGISTRY = 2299;
+    private static final int REPLICATION_PORT = 2198;
+    private static final long CATCH_UP_MS = 10000;
+
+    private static final List<Process> servers = new ArrayList<Process>();
+
+    public static void main(String[] args) throws Exception {
+        int passed = 0, failed = 0;
+        Stack<Integer> model = new Stack<Integer>();
+
+        try {
+            Process primaryProcess = startServer("primary", PRIMARY_REGISTRY,
+                    "-Dcalculator.replication.port=" + REPLICATION_PORT);
+            Calculator primary = lookup(PRIMARY_REGISTRY, CalculatorServer.BIND_NAME);
+
+            try {
+                testStream(primary, model);
+                passed++;
+            } catch (Throwable t) {
+                fail("snapshot and stream", t);
+                failed++;
+            }
+
+            try {
+                testFailover(primaryProcess, model);
+                passed++;
+            } catch (Throwable t) {
+                fail("failover", t);
+                failed++;
+            }
+        } finally {
+            for (Process p : servers) p.destroyForcibly();
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // java -cp <ours> CalculatorServer on its own registry, NIO off; output goes to a temp file
+    private static Process startServer(String name, int registryPort, String... props) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-Dcalculator.registry.port=" + registryPort);
+        cmd.add("-Dcalculator.nio.port=0");
+        for (String p : props) cmd.add(p);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("CalculatorServer");
+        File log = File.createTempFile("replication_test-" + name, ".log");
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+        servers.add(p);
+        System.out.println(name + " server output: " + log);
+        return p;
+    }
+
+    // Retry until the server has bound the name
+    private static <T> T lookup(int registryPort, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + CATCH_UP_MS;
+        while (true) {
+            try {
+                @SuppressWarnings("unchecked")
+                T stub = (T) Naming.lookup("rmi://localhost:" + registryPort + "/" + name);
+                return stub;
+            } catch (Exception e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    // Poll until the replica has applied everything the primary shipped
+    private static void awaitCaughtUp(CalculatorReplication primary, CalculatorReplication replica) throws Exception {
+        long deadline = System.currentTimeMillis() + CATCH_UP_MS;
+        while (replica.sequence() != primary.sequence() || primary.lagRecords() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "replica stuck at " + replica.sequence()
+                    + " of " + primary.sequence());
+            Thread.sleep(50);
+        }
+    }
+
+    // Case 1: values pushed before the replica starts arrive in its snapshot, the rest in the stream
+    private static void testStream(Calculator primary, Stack<Integer> model) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            primary.pushValue(i);
+            model.push(i);
+        }
+
+        startServer("replica", REPLICA_REGISTRY, "-Dcalculator.replication.primary=localhost:" + REPLICATION_PORT);
+        Calculator replica = lookup(REPLICA_REGISTRY, CalculatorServer.BIND_NAME);
+        CalculatorReplication primaryStatus = lookup(PRIMARY_REGISTRY, CalculatorServer.REPLICATION_BIND_NAME);
+        CalculatorReplication replicaStatus = lookup(REPLICA_REGISTRY, CalculatorServer.REPLICATION_BIND_NAME);
+
+        int[] batch = new int[1000];
+        for (int i = 0; i < batch.length; i++) batch[i] = 6 * i;
+        primary.pushValues(batch);
+        for (int v : batch) model.push(v);
+        primary.popN(300);
+        for (int i = 0; i < 300; i++) model.pop();
+        primary.pushValue(42);
+        model.push(42);
+
+        awaitCaughtUp(primaryStatus, replicaStatus);
+        assertTrue(primaryStatus.replicas() == 1, "primary should see one replica, got " + primaryStatus.replicas());
+        assertTrue(replicaStatus.role().equals("replica"), "role " + replicaStatus.role());
+        assertTrue(!replica.isEmpty(), "replica should hold the stack");
+
+        boolean refused = false;
+        try {
+            replica.pushValue(1);
+        } catch (RemoteException e) {
+            refused = true;
+        }
+        assertTrue(refused, "a standby replica must refuse writes");
+
+        System.out.println("[PASS] snapshot and stream (lag " + replicaStatus.lagMillis() + " ms)");
+    }
+
+    // Case 2: kill the primary, promote the replica, and everything acknowledged is still there
+    private static void testFailover(Process primaryProcess, Stack<Integer> model) throws Exception {
+        Calculator primary = lookup(PRIMARY_REGISTRY, CalculatorServer.BIND_NAME);
+        primary.pushOperation("max");
+        int max = 0;
+        for (int v : model) max = Math.max(max, v);
+        model.clear();
+        model.push(max);
+        for (int i = 1; i <= 100; i++) {
+            primary.pushValue(-i);
+            model.push(-i);
+        }
+
+        CalculatorReplication primaryStatus = lookup(PRIMARY_REGISTRY, CalculatorServer.REPLICATION_BIND_NAME);
+        CalculatorReplication replicaStatus = lookup(REPLICA_REGISTRY, CalculatorServer.REPLICATION_BIND_NAME);
+        awaitCaughtUp(primaryStatus, replicaStatus);
+
+        primaryProcess.destroyForcibly().waitFor();
+        replicaStatus.promote();
+        assertTrue(replicaStatus.role().equals("promoted"), "role after promote " + replicaStatus.role());
+
+        Calculator replica = lookup(REPLICA_REGISTRY, CalculatorServer.BIND_NAME);
+        replica.pushValue(7);
+        model.push(7);
+        int[] all = replica.drain();
+        assertTrue(all.length == model.size(), "size after failover: " + all.length + " vs " + model.size());
+        for (int v : all) {
+            int expected = model.pop();
+            assertTrue(v == expected, "value after failover: " + v + " vs " + expected);
+        }
+
+        System.out.println("[PASS] failover");
+    }
+}
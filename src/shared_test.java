@@ -1,12 +1,23 @@
 import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // test for All clients share the same stack
 
 public class shared_test {
     private static final String URL = CalculatorServer.URL;
+    private static final String PRIVATE_URL = CalculatorServer.PRIVATE_URL;
     private static final int N_CLIENTS = 4;
     private static final int BASE_VALUE = 100;
     private static final int DELAY_MS = 120;
+    private static final int BULK_SIZE = 100000;
+    private static final int ASYNC_CLIENTS = 200;
 
     //The waiting time for a single delayPop
     private static final int SINGLE_DELAY_MS = 80;
@@ -57,6 +68,62 @@ public class shared_test {
             fail++;
         }
 
+        try{
+            testBulkPushPop(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("bulk push/pop", t);
+            fail++;
+        }
+
+        try{
+            testMultiClient_DelayPopAsyncBurst(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("multi client delayPopAsync burst", t);
+            fail++;
+        }
+
+        try{
+            testSharedStackAcrossTransports(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("shared-stack across RMI and NIO", t);
+            fail++;
+        }
+
+        try{
+            testNamedStacks();
+            success++;
+        } catch (Throwable t) {
+            fail("named shared stacks", t);
+            fail++;
+        }
+
+        try{
+            testAsyncSessions(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("async pipelined sessions", t);
+            fail++;
+        }
+
+        try{
+            testPopOrWaitHandoff(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("popOrWait handoff", t);
+            fail++;
+        }
+
+        try{
+            testTryPopPeekSize(cal);
+            success++;
+        } catch (Throwable t) {
+            fail("tryPop/peek/size", t);
+            fail++;
+        }
+
         System.out.println("\nRESULT: success=" + success + " fail=" + fail);
         System.exit(fail == 0 ? 0 : 1);
     }
@@ -76,14 +143,9 @@ public class shared_test {
         t.printStackTrace(System.out);
     }
 
+    // one round trip regardless of how many values are left over
     private static void clearStack(Calculator cal) throws Exception{
-        while(!cal.isEmpty()){
-            try{
-                cal.pop();
-            } catch (Exception ignored) {
-                break;
-            }
-        }
+        cal.drain();
     }
 
     // Checks whether the given array contains exactly the integers in the
@@ -161,7 +223,7 @@ public class shared_test {
 
     // Case 3:N clients concurrently push values 1...N; When the main thread performs max() once, it should obtain N
     private static void testMultiClient_PushThenMax() throws Exception{
-        final Calculator main = (Calculator) Naming.lookup(URL);
+        final Calculator main = StubCache.get(URL, Calculator.class);
         clearStack(main);
 
         Thread[] workers = new Thread[N_CLIENTS];
@@ -171,7 +233,7 @@ public class shared_test {
                 @Override
                 public void run() {
                         try{
-                            Calculator stub = (Calculator) Naming.lookup(URL);
+                            Calculator stub = StubCache.get(URL, Calculator.class);
                             stub.pushValue(val);
                         } catch (Exception ignored){}
                     }
@@ -204,7 +266,7 @@ public class shared_test {
                 @Override
                 public void run() {
                     try{
-                        Calculator stub = (Calculator) Naming.lookup(URL);
+                        Calculator stub = StubCache.get(URL, Calculator.class);
                         result[index] = stub.pop();
                     } catch (Exception ignored){}
                 }
@@ -234,7 +296,7 @@ public class shared_test {
                 @Override
                 public void run() {
                     try{
-                        Calculator stub = (Calculator) Naming.lookup(URL);
+                        Calculator stub = StubCache.get(URL, Calculator.class);
                         result[index] = stub.delayPop(DELAY_MS);
                     } catch (Exception ignored){}
                 }
@@ -249,4 +311,335 @@ public class shared_test {
         System.out.println("[PASS] multi-client delayPop burst");
         }
 
+    // Case 6: Load BULK_SIZE values in one call, then take them back with popN/drain
+    private static void testBulkPushPop(Calculator cal) throws Exception {
+        clearStack(cal);
+
+        int[] values = new int[BULK_SIZE];
+        for(int i = 0; i < BULK_SIZE; i++) values[i] = i;
+        cal.pushValues(values);
+
+        int[] top = cal.popN(3);
+        assertEquals(BULK_SIZE - 1, top[0], "popN returns the old top first");
+        assertEquals(BULK_SIZE - 3, top[2], "popN third value");
+
+        boolean rejected = false;
+        try{
+            cal.popN(BULK_SIZE);
+        } catch (java.rmi.RemoteException expected){
+            rejected = true;
+        }
+        assertTrue(rejected, "popN larger than the stack must be rejected");
+
+        int[] rest = cal.drain();
+        assertEquals(BULK_SIZE - 3, rest.length, "drain returns everything that is left");
+        assertEquals(BULK_SIZE - 4, rest[0], "drain returns the top first");
+        assertEquals(0, rest[rest.length - 1], "drain returns the bottom last");
+        assertTrue(cal.isEmpty(), "empty after drain");
+
+        System.out.println("[PASS] bulk push/pop");
+    }
+
+    // Case 7: ASYNC_CLIENTS delayed pops are all pending at once on the server timer,
+    // none of them holds a thread while waiting, and together they drain the stack exactly once
+    private static void testMultiClient_DelayPopAsyncBurst(Calculator cal) throws Exception {
+        clearStack(cal);
+
+        int[] values = new int[ASYNC_CLIENTS];
+        for(int i = 0; i < ASYNC_CLIENTS; i++) values[i] = i + 1;
+        cal.pushValues(values);
+
+        DelayPopFuture[] futures = new DelayPopFuture[ASYNC_CLIENTS];
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < ASYNC_CLIENTS; i++){
+            futures[i] = DelayPopFuture.request(cal, DELAY_MS);
+        }
+        long issued = System.currentTimeMillis() - start;
+        assertTrue(issued < (long) ASYNC_CLIENTS * DELAY_MS, "delayPopAsync must not block the caller");
+
+        int[] result = new int[ASYNC_CLIENTS];
+        for(int i = 0; i < ASYNC_CLIENTS; i++){
+            result[i] = futures[i].get(10, java.util.concurrent.TimeUnit.SECONDS);
+        }
+
+        assertTrue(cal.isEmpty(), "empty after delayPopAsync");
+        assertTrue(equalsExactRange(result, 1, ASYNC_CLIENTS), "delayPopAsync results must equal {1.." + ASYNC_CLIENTS + "}");
+
+        System.out.println("[PASS] multi-client delayPopAsync burst");
+    }
+
+    // Case 8: RMI and the NIO front end serve the same shared stack, with the same errors. On an
+    // NIO server of its own with one worker, a popOrWait holding that worker does not hold up
+    // requests that cannot wait, and a client whose connection broke fails every later call
+    private static void testSharedStackAcrossTransports(Calculator cal) throws Exception {
+        clearStack(cal);
+        Calculator nio = CalculatorConnector.connect(CalculatorServer.NIO_URL);
+
+        cal.pushValues(new int[]{18, 30});
+        nio.pushValue(42);
+        nio.pushOperation("gcd");
+        assertEquals(6, cal.pop(), "gcd over values pushed through both transports");
+
+        nio.pushValues(new int[]{1, 2, 3});
+        int[] top = nio.popN(2);
+        assertEquals(3, top[0], "NIO popN top");
+        assertEquals(1, nio.delayPop(SINGLE_DELAY_MS), "NIO delayPop");
+        assertTrue(cal.isEmpty() && nio.isEmpty(), "both transports see the empty stack");
+
+        boolean rejected = false;
+        try{
+            nio.pop();
+        } catch (java.rmi.RemoteException expected){
+            rejected = true;
+        }
+        assertTrue(rejected, "NIO pop on empty stack must fail like RMI");
+
+        NioCalculatorServer one = new NioCalculatorServer(new CalculatorImplementation(),
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0), NioCalculatorServer.DEFAULT_MAX_BUFFERED, 1);
+        Thread loop = one.start();
+        final NioCalculatorClient waiting = NioCalculatorClient.connectShared(one.getLocalAddress());
+        NioCalculatorClient own = NioCalculatorClient.connectPrivate(one.getLocalAddress());
+        NioCalculatorClient reader = NioCalculatorClient.connectShared(one.getLocalAddress());
+        final Integer[] waited = new Integer[1];
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    waited[0] = waiting.popOrWait(5000);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(DELAY_MS);
+        long t0 = System.nanoTime();
+        own.pushValues(new int[]{5, 6});
+        assertEquals(6, own.pop(), "private stack while the only worker waits");
+        assertTrue(reader.isEmpty() && reader.peek() == null, "shared reads while the only worker waits");
+        long tookMs = (System.nanoTime() - t0) / 1_000_000;
+        assertTrue(tookMs < 1000 && waiter.isAlive(), "answered in " + tookMs + " ms without the worker");
+        reader.pushValue(9);
+        waiter.join(5000);
+        assertTrue(waited[0] != null && waited[0] == 9, "popOrWait gets the push once the worker is free");
+
+        one.stop();
+        loop.join(5000);
+        rejected = false;
+        try {
+            own.pop();
+        } catch (java.rmi.RemoteException expected) {
+            rejected = true;
+        }
+        assertTrue(rejected, "a call on a closed server fails");
+        rejected = false;
+        try {
+            own.size();
+        } catch (java.rmi.RemoteException expected) {
+            rejected = expected.getMessage().contains("closed");
+        }
+        assertTrue(rejected, "later calls fail at once once the connection broke");
+
+        System.out.println("[PASS] shared-stack across RMI and NIO");
+    }
+
+    // Case 9: the same name is the same stack for every client, different names are independent,
+    // and a removed stack is gone for stubs that still point at it
+    private static void testNamedStacks() throws Exception {
+        CalculatorStacks stacks = (CalculatorStacks) Naming.lookup(CalculatorServer.STACKS_URL);
+        CalculatorStacks other = (CalculatorStacks) Naming.lookup(CalculatorServer.STACKS_URL);
+
+        Calculator a = stacks.stack("shared_test-a");
+        Calculator b = stacks.stack("shared_test-b");
+        clearStack(a);
+        clearStack(b);
+
+        a.pushValue(1);
+        b.pushValue(2);
+        assertEquals(1, other.stack("shared_test-a").pop(), "same name, same stack");
+        assertTrue(a.isEmpty(), "a empty after another client popped it");
+        assertEquals(2, b.pop(), "b only holds its own value");
+
+        assertTrue(stacks.removeStack("shared_test-b"), "remove an existing stack");
+        boolean gone = false;
+        try{
+            b.pushValue(3);
+        } catch (java.rmi.NoSuchObjectException expected){
+            gone = true;
+        }
+        assertTrue(gone, "a removed stack rejects calls");
+        assertTrue(stacks.stack("shared_test-b").isEmpty(), "the name comes back as a new empty stack");
+        stacks.removeStack("shared_test-a");
+        stacks.removeStack("shared_test-b");
+
+        System.out.println("[PASS] named shared stacks");
+    }
+
+    // Case 10: AsyncCalculator sessions fire calls without waiting; each session's calls stay in order,
+    // a failed call does not stop the ones queued behind it
+    private static void testAsyncSessions(Calculator cal) throws Exception {
+        clearStack(cal);
+        AsyncCalculator session = new AsyncCalculator(StubCache.get(URL, Calculator.class));
+
+        CompletableFuture<Integer> empty = session.pop();
+        for (int i = 1; i <= 50; i++) session.pushValue(i);
+        CompletableFuture<int[]> top = session.popN(10);
+        session.pushOperation("max");
+        CompletableFuture<Integer> max = session.pop();
+        CompletableFuture<Boolean> done = session.isEmpty();
+
+        boolean failed = false;
+        try {
+            empty.get();
+        } catch (ExecutionException e) {
+            failed = e.getCause() instanceof RemoteException;
+        }
+        assertTrue(failed, "pop on an empty stack should fail its future");
+        int[] popped = top.get();
+        for (int i = 0; i < 10; i++) assertEquals(50 - i, popped[i], "popN after async pushes");
+        assertEquals(40, max.get(), "max after popN");
+        assertTrue(done.get(), "empty at the end");
+
+        // sessions on separate stacks run side by side, each in its own order
+        AsyncCalculator[] sessions = new AsyncCalculator[N_CLIENTS];
+        List<CompletableFuture<Integer>> tops = new ArrayList<CompletableFuture<Integer>>();
+        for (int c = 0; c < N_CLIENTS; c++) {
+            sessions[c] = new AsyncCalculator(StubCache.get(PRIVATE_URL, CalculatorPrivate.class).connect());
+            for (int i = 0; i < 100; i++) sessions[c].pushValue(c * 1000 + i);
+            sessions[c].pushOperation("max");
+            tops.add(sessions[c].pop());
+        }
+        for (int c = 0; c < N_CLIENTS; c++) {
+            assertEquals(c * 1000 + 99, tops.get(c).get(), "max of session " + c);
+        }
+
+        // a session waiting in popOrWait leaves the only worker free for another session
+        ExecutorService one = AsyncCalculator.newWorkerPool(1);
+        CalculatorPrivate connector = StubCache.get(PRIVATE_URL, CalculatorPrivate.class);
+        Calculator waitStack = connector.connect();
+        AsyncCalculator waiting = new AsyncCalculator(waitStack, one);
+        AsyncCalculator other = new AsyncCalculator(connector.connect(), one);
+        CompletableFuture<Integer> waited = waiting.popOrWait(5000);
+        CompletableFuture<Integer> after = waiting.pop();
+        other.pushValue(3);
+        assertEquals(3, other.pop().get(2, TimeUnit.SECONDS), "another session while one waits");
+        assertTrue(!waited.isDone() && !after.isDone(), "the waiting session keeps its order");
+        waitStack.pushValues(new int[]{4, 5});
+        assertEquals(5, waited.get(2, TimeUnit.SECONDS), "popOrWait gets a later push");
+        assertEquals(4, after.get(2, TimeUnit.SECONDS), "the call after popOrWait");
+        one.shutdown();
+
+        System.out.println("[PASS] async pipelined sessions");
+    }
+
+    // Case 11: popOrWait times out with null on an empty stack, and consumers blocked in it
+    // (over RMI and NIO) each take exactly one of the values pushed later, without polling
+    private static void testPopOrWaitHandoff(Calculator cal) throws Exception {
+        clearStack(cal);
+
+        long t0 = System.nanoTime();
+        assertTrue(cal.popOrWait(150) == null, "popOrWait on an empty stack times out with null");
+        long waitedMs = (System.nanoTime() - t0) / 1_000_000;
+        assertTrue(waitedMs >= 140, "popOrWait returned after " + waitedMs + " ms, before its timeout");
+        cal.pushValue(7);
+        assertEquals(7, cal.popOrWait(0), "popOrWait with a value there returns at once");
+
+        final int consumers = N_CLIENTS + 1;
+        final Integer[] got = new Integer[consumers];
+        final Throwable[] errors = new Throwable[consumers];
+        Thread[] threads = new Thread[consumers];
+        for (int i = 0; i < consumers; i++) {
+            final int id = i;
+            // the last consumer waits through the NIO front end
+            final Calculator consumer = (i == N_CLIENTS)
+                    ? CalculatorConnector.connect(CalculatorServer.NIO_URL)
+                    : (Calculator) Naming.lookup(URL);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        got[id] = consumer.popOrWait(10000);
+                    } catch (Throwable t) {
+                        errors[id] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        Thread.sleep(300);
+        t0 = System.nanoTime();
+        cal.pushValues(new int[]{BASE_VALUE, BASE_VALUE + 1});
+        for (int v = BASE_VALUE + 2; v < BASE_VALUE + consumers; v++) {
+            cal.pushValue(v);
+        }
+        for (Thread t : threads) t.join(10000);
+        long handoffMs = (System.nanoTime() - t0) / 1_000_000;
+
+        int[] values = new int[consumers];
+        for (int i = 0; i < consumers; i++) {
+            if (errors[i] != null) throw new AssertionError("consumer " + i + " failed", errors[i]);
+            assertTrue(got[i] != null, "consumer " + i + " timed out instead of taking a value");
+            values[i] = got[i];
+        }
+        assertTrue(equalsExactRange(values, BASE_VALUE, consumers), "each waiting consumer takes exactly one pushed value");
+        assertTrue(handoffMs < 5000, "handoff took " + handoffMs + " ms");
+        assertTrue(cal.isEmpty(), "empty after the handoff");
+
+        System.out.println("[PASS] popOrWait handoff");
+    }
+
+    // Case 12: tryPop/peek answer an empty stack with null instead of an exception, and a
+    // client polling size() while batches are pushed only ever sees whole batches
+    private static void testTryPopPeekSize(Calculator cal) throws Exception {
+        clearStack(cal);
+        Calculator nio = CalculatorConnector.connect(CalculatorServer.NIO_URL);
+
+        assertTrue(cal.tryPop() == null, "tryPop on an empty stack returns null");
+        assertTrue(nio.peek() == null, "peek on an empty stack returns null");
+        assertEquals(0, cal.size(), "size of an empty stack");
+
+        cal.pushValues(new int[]{1, 2, 3});
+        assertEquals(3, nio.peek(), "peek sees the top");
+        assertEquals(3, cal.size(), "peek does not pop");
+        assertEquals(3, nio.tryPop(), "tryPop takes the top");
+        assertEquals(2, cal.tryPop(), "tryPop takes the next one");
+        assertEquals(1, nio.size(), "size after two tryPops");
+        clearStack(cal);
+
+        final int batch = 1000;
+        final int batches = BULK_SIZE / batch;
+        final Calculator monitor = (Calculator) Naming.lookup(URL);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final String[] problem = new String[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    int last = 0;
+                    while (writing.get()) {
+                        int n = monitor.size();
+                        if (n % batch != 0 || n < last) {
+                            problem[0] = "size() saw " + n + " after " + last;
+                            return;
+                        }
+                        last = n;
+                    }
+                } catch (Throwable t) {
+                    problem[0] = String.valueOf(t);
+                }
+            }
+        });
+        reader.start();
+        int[] values = new int[batch];
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < batch; i++) values[i] = b * batch + i;
+            cal.pushValues(values);
+        }
+        writing.set(false);
+        reader.join(5000);
+        assertTrue(problem[0] == null, problem[0]);
+        assertEquals(BULK_SIZE, cal.size(), "size after the batches");
+        assertEquals(BULK_SIZE - 1, cal.peek(), "peek after the batches");
+        clearStack(cal);
+
+        System.out.println("[PASS] tryPop/peek/size");
     }
+}
@@ -0,0 +1,96 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+// In-process test of StubCache: a registry of its own on port 2399 with a CalculatorPerClient
+// bound in it, which the test replaces behind the cache's back. No server needed.
+public class stub_cache_test {
+    private static final int REGISTRY_PORT = 2399;
+    private static final String URL = "rmi://localhost:" + REGISTRY_PORT + "/Calculator";
+
+    public static void main(String[] args) throws Exception {
+        Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+        Calculator first = new CalculatorPerClient();
+        registry.rebind("Calculator", first);
+
+        int passed = 0, failed = 0;
+
+        try {
+            testCachedLookup();
+            passed++;
+        } catch (Throwable t) {
+            fail("cached lookup", t);
+            failed++;
+        }
+
+        try {
+            testStaleReference(registry, first);
+            passed++;
+        } catch (Throwable t) {
+            fail("stale reference", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertTrue(boolean cond, String msg) {
+        if (!cond) throw new AssertionError(msg);
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    // Case 1: many proxies and threads, one registry lookup; server errors do not evict the stub
+    private static void testCachedLookup() throws Exception {
+        long before = StubCache.lookups();
+        StubCache.warm(URL, 4);
+        for (int i = 0; i < 10; i++) {
+            Calculator cal = StubCache.get(URL, Calculator.class);
+            cal.pushValue(i);
+            assertTrue(cal.pop() == i, "pop through the proxy");
+        }
+
+        boolean refused = false;
+        try {
+            StubCache.get(URL, Calculator.class).pop();
+        } catch (RemoteException e) {
+            refused = !StubCache.isStale(e);
+        }
+        assertTrue(refused, "pop on an empty stack must fail as an application error");
+        assertTrue(StubCache.lookups() - before == 1, "lookups: " + (StubCache.lookups() - before));
+
+        System.out.println("[PASS] cached lookup");
+    }
+
+    // Case 2: the bound object is unexported and replaced; the proxy re-resolves once and carries on
+    private static void testStaleReference(Registry registry, Calculator first) throws Exception {
+        Calculator cal = StubCache.get(URL, Calculator.class);
+        cal.pushValue(1);
+        long before = StubCache.lookups();
+
+        UnicastRemoteObject.unexportObject(first, true);
+        Calculator second = new CalculatorPerClient();
+        registry.rebind("Calculator", second);
+
+        boolean stale = false;
+        try {
+            ((Calculator) StubCache.lookup(URL)).isEmpty();
+        } catch (NoSuchObjectException e) {
+            stale = StubCache.isStale(e);
+        }
+        assertTrue(stale, "the cached stub should now be stale");
+
+        cal.pushValue(2);
+        assertTrue(cal.pop() == 2, "call after re-resolving");
+        assertTrue(cal.isEmpty(), "the new object starts empty");
+        assertTrue(StubCache.lookups() - before == 1, "one more lookup, got " + (StubCache.lookups() - before));
+
+        System.out.println("[PASS] stale reference");
+    }
+}
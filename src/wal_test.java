@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import java.util.Stack;
+
+// In-process test of the durable shared stack: run a workload against CalculatorImplementation
+// with a WriteAheadLog, reopen the log directory and compare the recovered stack with a
+// java.util.Stack model. No server needed.
+public class wal_test {
+    private static final long SEED = 20251018L;
+    private static final int STEPS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int passed = 0, failed = 0;
+
+        for (WriteAheadLog.FsyncPolicy policy : WriteAheadLog.FsyncPolicy.values()) {
+            try {
+                testRecovery(policy);
+                passed++;
+            } catch (Throwable t) {
+                fail("recovery " + policy, t);
+                failed++;
+            }
+        }
+
+        try {
+            testCheckpoints();
+            passed++;
+        } catch (Throwable t) {
+            fail("checkpoints", t);
+            failed++;
+        }
+
+        try {
+            testTornTail();
+            passed++;
+        } catch (Throwable t) {
+            fail("torn tail", t);
+            failed++;
+        }
+
+        try {
+            testWideValue();
+            passed++;
+        } catch (Throwable t) {
+            fail("wide value", t);
+            failed++;
+        }
+
+        System.out.println("\nRESULT: passed=" + passed + " failed=" + failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void assertEquals(int expected, int actual, String msg) {
+        if (expected != actual) {
+            throw new AssertionError(msg + " (expected " + expected + ", got " + actual + ")");
+        }
+    }
+
+    private static void fail(String name, Throwable t) {
+        System.out.println("[FAIL] " + name + ": " + t);
+        t.printStackTrace(System.out);
+    }
+
+    private static WriteAheadLog open(Path dir, WriteAheadLog.FsyncPolicy policy, int segmentBytes, long checkpointMs) throws IOException {
+        return new WriteAheadLog(dir, policy, segmentBytes, policy == WriteAheadLog.FsyncPolicy.ASYNC ? 5 : 0, checkpointMs);
+    }
+
+    // Random pushes, batches, pops and collapses, mirrored on the model
+    private static void workload(Calculator cal, Stack<Integer> model, Random rnd, int steps) throws Exception {
+        for (int step = 0; step < steps; step++) {
+            int action = rnd.nextInt(10);
+            if (action < 5 || model.isEmpty()) {
+                int v = rnd.nextInt(2001) - 1000;
+                cal.pushValue(v);
+                model.push(v);
+            } else if (action == 5) {
+                int[] batch = new int[rnd.nextInt(100)];
+                for (int i = 0; i < batch.length; i++) batch[i] = rnd.nextInt();
+                cal.pushValues(batch);
+                for (int v : batch) model.push(v);
+            } else if (action == 6) {
+                assertEquals(model.pop(), cal.pop(), "pop at step " + step);
+            } else if (action == 7) {
+                int n = rnd.nextInt(Math.min(model.size(), 20) + 1);
+                int[] got = cal.popN(n);
+                for (int i = 0; i < n; i++) assertEquals(model.pop(), got[i], "popN at step " + step);
+            } else if (rnd.nextInt(50) == 0) {
+                cal.pushOperation("max");
+                int m = Integer.MIN_VALUE;
+                for (int v : model) m = Math.max(m, v);
+                model.clear();
+                model.push(m);
+            }
+        }
+    }
+
+    private static void assertRecovered(Stack<Integer> model, int[] recovered, String msg) {
+        assertEquals(model.size(), recovered.length, msg + " size");
+        for (int i = 0; i < recovered.length; i++) {
+            assertEquals(model.get(i), recovered[i], msg + " value " + i);
+        }
+    }
+
+    private static int count(Path dir, String glob) throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+            for (Path f : files) n++;
+        }
+        return n;
+    }
+
+    // Case 1: close the log after a workload, reopen it twice and keep going in between
+    private static void testRecovery(WriteAheadLog.FsyncPolicy policy) throws Exception {
+        Path dir = Files.createTempDirectory("wal_test");
+        Random rnd = new Random(SEED);
+        Stack<Integer> model = new Stack<Integer>();
+
+        for (int run = 0; run < 3; run++) {
+            WriteAheadLog wal = open(dir, policy, WriteAheadLog.DEFAULT_SEGMENT_BYTES, 60000);
+            assertRecovered(model, wal.recovered(), "run " + run);
+            CalculatorImplementation cal = new CalculatorImplementation(0, null, null, wal.recovered(), wal.recoveredWide(), wal);
+            workload(cal, model, rnd, STEPS);
+            wal.close();
+            UnicastRemoteObject.unexportObject(cal, true);
+        }
+
+        System.out.println("[PASS] recovery " + policy);
+    }
+
+    // Case 2: small segments and a checkpoint after every mutation; old generations get deleted
+    private static void testCheckpoints() throws Exception {
+        Path dir = Files.createTempDirectory("wal_test");
+        Random rnd = new Random(SEED + 1);
+        Stack<Integer> model = new Stack<Integer>();
+
+        WriteAheadLog wal = open(dir, WriteAheadLog.FsyncPolicy.BATCHED, 4096, 0);
+        CalculatorImplementation cal = new CalculatorImplementation(0, null, null, wal.recovered(), wal.recoveredWide(), wal);
+        workload(cal, model, rnd, 500);
+        wal.close();
+        UnicastRemoteObject.unexportObject(cal, true);
+
+        if (count(dir, "wal-*.log") > 2 || count(dir, "snapshot-*.bin") > 1) {
+            throw new AssertionError("old generations left behind: " + count(dir, "wal-*.log") + " segments");
+        }
+        WriteAheadLog reopened = open(dir, WriteAheadLog.FsyncPolicy.BATCHED, 4096, 0);
+        assertRecovered(model, reopened.recovered(), "after checkpoints");
+        reopened.close();
+
+        System.out.println("[PASS] checkpoints");
+    }
+
+    // Case 3: a record whose checksum does not match ends recovery just before it, and what is
+    // written after that restart is not lost behind the torn segment on the next one
+    private static void testTornTail() throws Exception {
+        Path dir = Files.createTempDirectory("wal_test");
+        WriteAheadLog wal = open(dir, WriteAheadLog.FsyncPolicy.PER_OP, 4096, 60000);
+        CalculatorImplementation cal = new CalculatorImplementation(0, null, null, wal.recovered(), wal.recoveredWide(), wal);
+        cal.pushValue(1);
+        cal.pushValue(2);
+        cal.pushValue(3);
+        wal.close();
+        UnicastRemoteObject.unexportObject(cal, true);
+
+        // third record: 9 bytes in, flip one byte of its value
+        try (FileChannel ch = FileChannel.open(dir.resolve("wal-0.log"), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[]{0x7f}), 2 * 9 + 1);
+        }
+        WriteAheadLog reopened = open(dir, WriteAheadLog.FsyncPolicy.PER_OP, 4096, 60000);
+        int[] recovered = reopened.recovered();
+        assertEquals(2, recovered.length, "values before the torn record");
+        assertEquals(2, recovered[1], "top after recovery");
+
+        // a push acknowledged after that recovery survives the next one, also with no checkpoint
+        // taken in between (journaled directly, not through a stack)
+        reopened.awaitDurable(reopened.pushed(42));
+        reopened.close();
+        WriteAheadLog again = open(dir, WriteAheadLog.FsyncPolicy.PER_OP, 4096, 60000);
+        recovered = again.recovered();
+        again.close();
+        assertEquals(3, recovered.length, "values after the second restart");
+        assertEquals(42, recovered[2], "push after the first restart");
+
+        System.out.println("[PASS] torn tail");
+    }
+
+    // Case 4: an lcm beyond long survives both replay of its record and a snapshot
+    private static void testWideValue() throws Exception {
+        Path dir = Files.createTempDirectory("wal_test");
+        BigInteger wide = BigInteger.valueOf(1000003L * 1000033L).multiply(BigInteger.valueOf(1000037L * 1000039L));
+        WriteAheadLog wal = open(dir, WriteAheadLog.FsyncPolicy.PER_OP, 4096, 60000);
+        CalculatorImplementation cal = new CalculatorImplementation(0, null, null, wal.recovered(), wal.recoveredWide(), wal);
+        cal.pushValues(new int[]{1000003, 1000033, 1000037, 1000039});
+        cal.pushOperation("lcm");
+        cal.pushValue(5);
+        wal.close();
+        UnicastRemoteObject.unexportObject(cal, true);
+
+        for (int run = 0; run < 2; run++) {
+            WriteAheadLog reopened = open(dir, WriteAheadLog.FsyncPolicy.PER_OP, 4096, 60000);
+            cal = new CalculatorImplementation(0, null, null, reopened.recovered(), reopened.recoveredWide(), reopened);
+            if (!wide.equals(reopened.recoveredWide())) {
+                throw new AssertionError("run " + run + ": wide bottom " + reopened.recoveredWide());
+            }
+            assertEquals(2, reopened.recovered().length, "run " + run + ": values");
+            assertEquals(5, reopened.recovered()[1], "run " + run + ": top");
+            // the first reopen replayed a log and snapshotted the stack for the second
+            cal.pushValue(6);
+            cal.pop();
+            reopened.close();
+            UnicastRemoteObject.unexportObject(cal, true);
+        }
+        if (count(dir, "snapshot-*.bin") != 1) {
+            throw new AssertionError("expected a snapshot holding the wide value");
+        }
+
+        System.out.println("[PASS] wide value");
+    }
+}